@@ -0,0 +1,49 @@
+package ht.highlig.storedobject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.SearchableTagValuePair;
+
+public class BenchDog implements Database.StoredObject {
+    public String name;
+    public String id;
+    public String owner_id;
+    public int age;
+    public long ts;
+
+    public BenchDog() {
+    }
+
+    public BenchDog(String id, String name, String owner_id, int age, long ts) {
+        this.id = id;
+        this.name = name;
+        this.owner_id = owner_id;
+        this.age = age;
+        this.ts = ts;
+    }
+
+    @Override
+    public TYPE getStoredObjectType() {
+        return BenchType.dog;
+    }
+
+    @Override
+    public String getStoredObjectId() {
+        return id;
+    }
+
+    @Override
+    public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
+        List<SearchableTagValuePair> tags = new ArrayList<SearchableTagValuePair>(2);
+        tags.add(new SearchableTagValuePair("name", name));
+        tags.add(new SearchableTagValuePair("owner_id", owner_id));
+        return tags;
+    }
+
+    @Override
+    public Long getStoredObjectTimestampMillis() {
+        return ts;
+    }
+}
@@ -0,0 +1,66 @@
+package ht.highlig.storedobject.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.SearchableTagValuePair;
+
+/**
+ * Person with a handful of searchable tags, sized like a typical profile object.
+ */
+public class BenchPerson implements Database.StoredObject {
+    public static final String[] TAGS = {"name", "city", "age", "is_real", "team"};
+
+    public String name;
+    public String id;
+    public String image_url;
+    public String city;
+    public String bio;
+    public int age;
+    public boolean is_real;
+    public int team;
+    public long ts;
+
+    public BenchPerson() {
+    }
+
+    public BenchPerson(String id, String name, String city, String bio, int age, boolean is_real,
+                       int team, long ts) {
+        this.id = id;
+        this.name = name;
+        this.image_url = "http://images.example.com/" + id + ".jpg";
+        this.city = city;
+        this.bio = bio;
+        this.age = age;
+        this.is_real = is_real;
+        this.team = team;
+        this.ts = ts;
+    }
+
+    @Override
+    public TYPE getStoredObjectType() {
+        return BenchType.person;
+    }
+
+    @Override
+    public String getStoredObjectId() {
+        return id;
+    }
+
+    @Override
+    public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
+        List<SearchableTagValuePair> tags = new ArrayList<SearchableTagValuePair>(TAGS.length);
+        tags.add(new SearchableTagValuePair("name", name));
+        tags.add(new SearchableTagValuePair("city", city));
+        tags.add(new SearchableTagValuePair("age", String.valueOf(age)));
+        tags.add(new SearchableTagValuePair("is_real", String.valueOf(is_real)));
+        tags.add(new SearchableTagValuePair("team", String.valueOf(team)));
+        return tags;
+    }
+
+    @Override
+    public Long getStoredObjectTimestampMillis() {
+        return ts;
+    }
+}
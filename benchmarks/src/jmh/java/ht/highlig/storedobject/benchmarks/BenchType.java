@@ -0,0 +1,24 @@
+package ht.highlig.storedobject.benchmarks;
+
+import ht.highlig.storedobject.Database;
+
+public enum BenchType implements Database.StoredObject.TYPE {
+    person(BenchPerson.class),
+    dog(BenchDog.class);
+
+    private final Class cls;
+
+    private BenchType(Class cls) {
+        this.cls = cls;
+    }
+
+    @Override
+    public String getTypeName() {
+        return name();
+    }
+
+    @Override
+    public Class getTypeClass() {
+        return cls;
+    }
+}
@@ -0,0 +1,60 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ht.highlig.storedobject.Database;
+
+/**
+ * deleteObjects of a batch that is re-saved, outside of the measurement, before every
+ * invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 20)
+@Measurement(iterations = 100)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeleteBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    File file;
+    Database db;
+    List<BenchPerson> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        file = Fixtures.newDatabaseFile();
+        db = Fixtures.newDatabase(file);
+        batch = Fixtures.people(batchSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void populate() {
+        db.saveObjects(batch).toBlocking().single();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteDatabase(file);
+    }
+
+    @Benchmark
+    public Object deleteObjects() {
+        return db.deleteObjects(batch).toBlocking().single();
+    }
+}
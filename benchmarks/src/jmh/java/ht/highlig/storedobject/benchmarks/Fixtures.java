@@ -0,0 +1,98 @@
+package ht.highlig.storedobject.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.JdbcStorageBackend;
+
+/**
+ * Deterministic test data and database setup shared by the benchmarks.
+ */
+final class Fixtures {
+    static final long SEED = 42;
+    static final String[] NAMES = {"frank", "harold", "james", "zach", "anna", "maria", "li", "sam"};
+    static final String[] CITIES = {"sf", "nyc", "berlin", "tokyo", "paris"};
+    static final long BASE_TS = 1400000000000L;
+
+    private Fixtures() {
+    }
+
+    static File newDatabaseFile() {
+        try {
+            File file = File.createTempFile("storedobject-bench", ".db");
+            file.deleteOnExit();
+            file.delete();
+            return file;
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Database newDatabase(File file) {
+        return Database.create(new JdbcStorageBackend(file));
+    }
+
+    static void deleteDatabase(File file) {
+        String[] suffixes = {"", "-journal", "-wal", "-shm"};
+        for (String suffix : suffixes) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    static List<BenchPerson> people(int count) {
+        Random random = new Random(SEED);
+        List<BenchPerson> people = new ArrayList<BenchPerson>(count);
+        StringBuilder bio = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            bio.setLength(0);
+            int words = 20 + random.nextInt(60);
+            for (int w = 0; w < words; w++) {
+                bio.append(NAMES[random.nextInt(NAMES.length)]).append(' ');
+            }
+            people.add(new BenchPerson(
+                    "person_" + i,
+                    NAMES[random.nextInt(NAMES.length)],
+                    CITIES[random.nextInt(CITIES.length)],
+                    bio.toString(),
+                    18 + random.nextInt(60),
+                    random.nextBoolean(),
+                    random.nextInt(10),
+                    BASE_TS + i * 1000L));
+        }
+        return people;
+    }
+
+    static List<BenchDog> dogs(int count, int owners) {
+        Random random = new Random(SEED + 1);
+        List<BenchDog> dogs = new ArrayList<BenchDog>(count);
+        for (int i = 0; i < count; i++) {
+            dogs.add(new BenchDog(
+                    "dog_" + i,
+                    NAMES[random.nextInt(NAMES.length)],
+                    "person_" + random.nextInt(owners),
+                    1 + random.nextInt(15),
+                    BASE_TS + i * 1000L));
+        }
+        return dogs;
+    }
+
+    /** Fails the benchmark if a load came back empty handed or short **/
+    static <T> List<T> checkSize(List<T> result, int expected) {
+        if (result == null || result.size() != expected) {
+            throw new IllegalStateException("Expected " + expected + " objects but loaded "
+                    + (result == null ? null : result.size()));
+        }
+        return result;
+    }
+
+    static List<String> ids(List<? extends Database.StoredObject> objects, int count) {
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(objects.get(i).getStoredObjectId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,38 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * load(type).addIds(ids) for a growing number of ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoadByIdBenchmark {
+    @Param({"1", "10", "100", "1000", "5000"})
+    public int idCount;
+
+    List<String> ids;
+
+    @Setup(Level.Trial)
+    public void setup(PopulatedStore store) {
+        ids = Fixtures.ids(store.people, idCount);
+    }
+
+    @Benchmark
+    public List<BenchPerson> loadByIds(PopulatedStore store) {
+        return Fixtures.checkSize(store.db.load(BenchType.person).addIds(ids).<BenchPerson>execute()
+                .toBlocking().single(), idCount);
+    }
+}
@@ -0,0 +1,34 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ht.highlig.storedobject.Database;
+
+/**
+ * The feed query: newest n objects of a type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OrderByTsBenchmark {
+    @Param({"1", "20", "100", "1000"})
+    public int limit;
+
+    @Benchmark
+    public List<BenchPerson> newest(PopulatedStore store) {
+        return store.db.load(BenchType.person)
+                .orderByTs(Database.SORT_ORDER.DESC)
+                .limit(limit)
+                .<BenchPerson>execute()
+                .toBlocking().single();
+    }
+}
@@ -0,0 +1,40 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.List;
+
+import ht.highlig.storedobject.Database;
+
+/**
+ * A store pre-populated with {@link #PEOPLE} people and {@link #DOGS} dogs, shared by the
+ * read benchmarks.
+ */
+@State(Scope.Benchmark)
+public class PopulatedStore {
+    public static final int PEOPLE = 10000;
+    public static final int DOGS = 5000;
+
+    File file;
+    Database db;
+    List<BenchPerson> people;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        file = Fixtures.newDatabaseFile();
+        db = Fixtures.newDatabase(file);
+        people = Fixtures.people(PEOPLE);
+        db.saveObjects(people).toBlocking().single();
+        db.saveObjects(Fixtures.dogs(DOGS, PEOPLE)).toBlocking().single();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteDatabase(file);
+    }
+}
@@ -0,0 +1,50 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ht.highlig.storedobject.Database;
+
+/**
+ * saveObjects of a batch of people, replacing the same ids on every invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SaveBenchmark {
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int batchSize;
+
+    File file;
+    Database db;
+    List<BenchPerson> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        file = Fixtures.newDatabaseFile();
+        db = Fixtures.newDatabase(file);
+        batch = Fixtures.people(batchSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.deleteDatabase(file);
+    }
+
+    @Benchmark
+    public Object saveObjects() {
+        return db.saveObjects(batch).toBlocking().single();
+    }
+}
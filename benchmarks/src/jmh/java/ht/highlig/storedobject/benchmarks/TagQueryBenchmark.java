@@ -0,0 +1,56 @@
+package ht.highlig.storedobject.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.SqliteType;
+
+/**
+ * Queries with one to five tag predicates, each narrowing the previous result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TagQueryBenchmark {
+    @Param({"1", "2", "3", "4", "5"})
+    public int predicates;
+
+    int expected;
+
+    @Setup(Level.Trial)
+    public void setup(PopulatedStore store) {
+        expected = 0;
+        for (BenchPerson person : store.people) {
+            if (matches(person)) expected++;
+        }
+    }
+
+    private boolean matches(BenchPerson person) {
+        if (!person.name.equals("frank")) return false;
+        if (predicates > 1 && !person.city.equals("sf")) return false;
+        if (predicates > 2 && person.age <= 30) return false;
+        if (predicates > 3 && !person.is_real) return false;
+        return predicates <= 4 || person.team < 5;
+    }
+
+    @Benchmark
+    public List<BenchPerson> tagQuery(PopulatedStore store) {
+        Database.Request request = store.db.load(BenchType.person).tagEquals("name", "frank");
+        if (predicates > 1) request.tagEquals("city", "sf");
+        if (predicates > 2) request.tagGt("age", "30", SqliteType.INTEGER);
+        if (predicates > 3) request.tagEquals("is_real", "true");
+        if (predicates > 4) request.tagLt("team", "5", SqliteType.INTEGER);
+        return Fixtures.checkSize(request.<BenchPerson>execute().toBlocking().single(), expected);
+    }
+}
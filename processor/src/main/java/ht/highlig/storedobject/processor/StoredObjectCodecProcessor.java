@@ -0,0 +1,582 @@
+package ht.highlig.storedobject.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates &lt;Class&gt;_StoredObjectCodec for every class annotated with
+ * ht.highlig.storedobject.GenerateCodec. The codec reads and writes fields directly and
+ * writes the json Gson's reflective adapter would, so it works on objects stored before it
+ * existed. Fields of types other than primitives, their boxes and String go through the
+ * Gson adapter of their type, looked up once.
+ */
+public class StoredObjectCodecProcessor extends AbstractProcessor {
+    private static final String LIBRARY_PACKAGE = "ht.highlig.storedobject";
+    private static final String GENERATE_CODEC = LIBRARY_PACKAGE + ".GenerateCodec";
+    private static final String SEARCHABLE_TAG = LIBRARY_PACKAGE + ".SearchableTag";
+    private static final String STORED_OBJECT = LIBRARY_PACKAGE + ".Database.StoredObject";
+    private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    private static final String SUFFIX = "_StoredObjectCodec";
+
+    /** How a field is written and read **/
+    private enum Kind {
+        BOOLEAN, INTEGRAL, LONG, FLOAT, DOUBLE, CHAR, BOXED_BOOLEAN, BOXED_INTEGRAL, BOXED_LONG,
+        BOXED_FLOAT, BOXED_DOUBLE, BOXED_CHAR, STRING, ADAPTER
+    }
+
+    private static class Property {
+        VariableElement field;
+        TypeElement owner;
+        TypeMirror type;
+        Kind kind;
+        String jsonName;
+        String tagName;
+        int index;
+
+        String javaName() {
+            return field.getSimpleName().toString();
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(GENERATE_CODEC);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@GenerateCodec only applies to classes");
+                    continue;
+                }
+                try {
+                    generate((TypeElement) element);
+                } catch (IOException e) {
+                    error(element, "Unable to write codec: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private void generate(TypeElement cls) throws IOException {
+        if (!checkClass(cls)) return;
+        List<Property> properties = collectProperties(cls);
+        if (properties == null) return;
+        ExecutableElement constructor = null;
+        boolean fieldAssignment = canAssignFields(cls, properties);
+        if (!fieldAssignment) {
+            constructor = findConstructor(cls, properties);
+            if (constructor == null) {
+                error(cls, "@GenerateCodec needs a no-arg constructor and non-final fields, or a "
+                        + "constructor taking every serialized field, with parameters named after them");
+                return;
+            }
+        }
+
+        String packageName = packageOf(cls).getQualifiedName().toString();
+        String className = codecName(cls);
+        String target = cls.getQualifiedName().toString();
+        StringBuilder src = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        src.append("/** Generated by ").append(getClass().getName()).append(", do not edit **/\n");
+        src.append("public final class ").append(className).append(" implements ")
+                .append(LIBRARY_PACKAGE).append(".StoredObjectCodec<").append(target).append("> {\n");
+        src.append("    public static final ").append(className).append(" INSTANCE = new ")
+                .append(className).append("();\n");
+        for (Property property : properties) {
+            if (property.kind == Kind.ADAPTER) {
+                src.append("    private static final com.google.gson.TypeAdapter<")
+                        .append(boxedName(property.type)).append("> ").append(adapterName(property))
+                        .append(" = ").append(LIBRARY_PACKAGE).append(".Database.GSON.getAdapter(")
+                        .append(typeLiteral(property.type)).append(");\n");
+            }
+        }
+        src.append("\n    private ").append(className).append("() {\n    }\n");
+        appendWrite(src, cls, target, properties);
+        appendRead(src, cls, target, properties, constructor);
+        appendEmitTags(src, cls, target, properties);
+        src.append("}\n");
+
+        Writer writer = processingEnv.getFiler()
+                .createSourceFile(packageName.isEmpty() ? className : packageName + "." + className, cls)
+                .openWriter();
+        try {
+            writer.write(src.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private boolean checkClass(TypeElement cls) {
+        TypeElement storedObject = processingEnv.getElementUtils().getTypeElement(STORED_OBJECT);
+        if (storedObject != null && !processingEnv.getTypeUtils().isAssignable(
+                cls.asType(), processingEnv.getTypeUtils().erasure(storedObject.asType()))) {
+            error(cls, "@GenerateCodec classes must implement Database.StoredObject");
+            return false;
+        }
+        if (cls.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(cls, "@GenerateCodec classes can't be abstract");
+            return false;
+        }
+        if (!cls.getTypeParameters().isEmpty()) {
+            error(cls, "@GenerateCodec classes can't have type parameters");
+            return false;
+        }
+        for (Element e = cls; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            TypeElement type = (TypeElement) e;
+            if (type.getModifiers().contains(Modifier.PRIVATE)
+                    || type.getNestingKind() == NestingKind.LOCAL
+                    || type.getNestingKind() == NestingKind.ANONYMOUS
+                    || (type.getNestingKind() == NestingKind.MEMBER
+                    && !type.getModifiers().contains(Modifier.STATIC))) {
+                error(cls, "@GenerateCodec classes must be top level or static nested classes "
+                        + "visible to their package");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Serialized fields in Gson's order, the class's own first then each superclass's **/
+    private List<Property> collectProperties(TypeElement cls) {
+        List<Property> properties = new ArrayList<Property>();
+        Set<String> jsonNames = new HashSet<String>();
+        PackageElement clsPackage = packageOf(cls);
+        boolean valid = true;
+        TypeElement owner = cls;
+        while (owner != null && !owner.getQualifiedName().contentEquals("java.lang.Object")) {
+            boolean samePackage = packageOf(owner).equals(clsPackage);
+            for (VariableElement field : ElementFilter.fieldsIn(owner.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                AnnotationMirror tag = annotation(field, SEARCHABLE_TAG);
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    if (tag != null) {
+                        error(field, "@SearchableTag fields must be serialized, not static or transient");
+                        valid = false;
+                    }
+                    continue;
+                }
+                if (modifiers.contains(Modifier.PRIVATE)
+                        || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) {
+                    error(field, "Field " + field.getSimpleName() + " isn't visible to the generated "
+                            + "codec, make it package-private or transient");
+                    valid = false;
+                    continue;
+                }
+                Property property = new Property();
+                property.field = field;
+                property.owner = owner;
+                property.type = processingEnv.getTypeUtils()
+                        .asMemberOf((DeclaredType) cls.asType(), field);
+                property.kind = kindOf(property.type);
+                property.index = properties.size();
+                AnnotationMirror serializedName = annotation(field, SERIALIZED_NAME);
+                property.jsonName = serializedName != null
+                        ? stringValue(serializedName, "value") : field.getSimpleName().toString();
+                if (tag != null) {
+                    String name = stringValue(tag, "value");
+                    property.tagName = name == null || name.isEmpty()
+                            ? field.getSimpleName().toString() : name;
+                }
+                if (!jsonNames.add(property.jsonName)) {
+                    error(field, cls.getQualifiedName() + " declares multiple JSON fields named "
+                            + property.jsonName);
+                    valid = false;
+                }
+                properties.add(property);
+            }
+            TypeMirror superclass = owner.getSuperclass();
+            owner = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return valid ? properties : null;
+    }
+
+    private boolean canAssignFields(TypeElement cls, List<Property> properties) {
+        for (Property property : properties) {
+            if (property.field.getModifiers().contains(Modifier.FINAL)) return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(cls.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A visible constructor whose parameters are the serialized fields, matched by name **/
+    private ExecutableElement findConstructor(TypeElement cls, List<Property> properties) {
+        Map<String, Property> byJavaName = new HashMap<String, Property>();
+        for (Property property : properties) {
+            if (byJavaName.put(property.javaName(), property) != null) return null;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(cls.getEnclosedElements())) {
+            List<? extends VariableElement> parameters = constructor.getParameters();
+            if (constructor.getModifiers().contains(Modifier.PRIVATE)
+                    || parameters.size() != properties.size()) {
+                continue;
+            }
+            boolean matches = true;
+            for (VariableElement parameter : parameters) {
+                Property property = byJavaName.get(parameter.getSimpleName().toString());
+                if (property == null || !processingEnv.getTypeUtils()
+                        .isSameType(property.type, parameter.asType())) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) return constructor;
+        }
+        return null;
+    }
+
+    private void appendWrite(StringBuilder src, TypeElement cls, String target,
+                             List<Property> properties) {
+        src.append("\n    @Override\n    public void write(com.google.gson.stream.JsonWriter out, ")
+                .append(target).append(" object) throws java.io.IOException {\n");
+        src.append("        if (object == null) {\n            out.nullValue();\n            return;\n        }\n");
+        src.append("        out.beginObject();\n");
+        for (Property property : properties) {
+            String value = access(cls, property);
+            src.append("        out.name(").append(quote(property.jsonName)).append(");\n");
+            switch (property.kind) {
+                case CHAR:
+                    src.append("        out.value(String.valueOf(").append(value).append("));\n");
+                    break;
+                case FLOAT:
+                    // Gson writes floats through Number so they print as Float.toString
+                    src.append("        out.value((Number) Float.valueOf(").append(value).append("));\n");
+                    break;
+                case BOXED_BOOLEAN:
+                case BOXED_CHAR:
+                    src.append("        if (").append(value).append(" == null) {\n")
+                            .append("            out.nullValue();\n        } else {\n")
+                            .append("            out.value(").append(property.kind == Kind.BOXED_CHAR
+                            ? "String.valueOf(" + value + ")" : value + ".booleanValue()")
+                            .append(");\n        }\n");
+                    break;
+                case BOXED_INTEGRAL:
+                case BOXED_LONG:
+                case BOXED_FLOAT:
+                case BOXED_DOUBLE:
+                    src.append("        out.value((Number) ").append(value).append(");\n");
+                    break;
+                case ADAPTER:
+                    src.append("        ").append(adapterName(property)).append(".write(out, ")
+                            .append(value).append(");\n");
+                    break;
+                default:
+                    src.append("        out.value(").append(value).append(");\n");
+                    break;
+            }
+        }
+        src.append("        out.endObject();\n    }\n");
+    }
+
+    private void appendRead(StringBuilder src, TypeElement cls, String target,
+                            List<Property> properties, ExecutableElement constructor) {
+        src.append("\n    @Override\n    public ").append(target)
+                .append(" read(com.google.gson.stream.JsonReader in) throws java.io.IOException {\n");
+        if (constructor == null) {
+            src.append("        ").append(target).append(" object = new ").append(target).append("();\n");
+        } else {
+            for (Property property : properties) {
+                src.append("        ").append(property.type).append(" v").append(property.index)
+                        .append(" = ").append(defaultValue(property.type)).append(";\n");
+            }
+        }
+        src.append("        in.beginObject();\n        while (in.hasNext()) {\n")
+                .append("            String name = in.nextName();\n");
+        String keyword = "if";
+        for (Property property : properties) {
+            String variable = constructor == null ? access(cls, property) : "v" + property.index;
+            src.append("            ").append(keyword).append(" (").append(quote(property.jsonName))
+                    .append(".equals(name)) {\n");
+            if (property.kind == Kind.ADAPTER) {
+                src.append("                ").append(variable).append(" = ").append(adapterName(property))
+                        .append(".read(in);\n");
+            } else {
+                // Null leaves primitives at their default, like Gson
+                src.append("                if (in.peek() == com.google.gson.stream.JsonToken.NULL) {\n")
+                        .append("                    in.nextNull();\n");
+                if (!property.type.getKind().isPrimitive()) {
+                    src.append("                    ").append(variable).append(" = null;\n");
+                }
+                src.append("                } else {\n                    ").append(variable)
+                        .append(" = ").append(readExpression(property)).append(";\n")
+                        .append("                }\n");
+            }
+            keyword = "} else if";
+        }
+        if (properties.isEmpty()) {
+            src.append("            in.skipValue();\n");
+        } else {
+            src.append("            } else {\n                in.skipValue();\n            }\n");
+        }
+        src.append("        }\n        in.endObject();\n");
+        if (constructor == null) {
+            src.append("        return object;\n");
+        } else {
+            Map<String, Property> byJavaName = new HashMap<String, Property>();
+            for (Property property : properties) {
+                byJavaName.put(property.javaName(), property);
+            }
+            src.append("        return new ").append(target).append("(");
+            String separator = "";
+            for (VariableElement parameter : constructor.getParameters()) {
+                src.append(separator).append("v")
+                        .append(byJavaName.get(parameter.getSimpleName().toString()).index);
+                separator = ", ";
+            }
+            src.append(");\n");
+        }
+        src.append("    }\n");
+    }
+
+    private void appendEmitTags(StringBuilder src, TypeElement cls, String target,
+                                List<Property> properties) {
+        src.append("\n    @Override\n    public void emitTags(").append(target).append(" object, ")
+                .append(LIBRARY_PACKAGE).append(".TagSink sink) {\n");
+        boolean tagged = false;
+        for (Property property : properties) {
+            if (property.tagName == null) continue;
+            tagged = true;
+            String value = access(cls, property);
+            String name = quote(property.tagName);
+            switch (property.kind) {
+                case INTEGRAL:
+                case LONG:
+                    src.append("        sink.tag(").append(name).append(", ").append(value).append(");\n");
+                    break;
+                case BOOLEAN:
+                    src.append("        sink.tag(").append(name).append(", ").append(value)
+                            .append(" ? \"true\" : \"false\");\n");
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                case CHAR:
+                    src.append("        sink.tag(").append(name).append(", String.valueOf(").append(value)
+                            .append("));\n");
+                    break;
+                default:
+                    String emitted = property.kind == Kind.STRING ? value
+                            : property.kind == Kind.BOXED_INTEGRAL || property.kind == Kind.BOXED_LONG
+                            ? value + ".longValue()" : "String.valueOf(" + value + ")";
+                    src.append("        if (").append(value).append(" != null) {\n")
+                            .append("            sink.tag(").append(name).append(", ").append(emitted)
+                            .append(");\n        }\n");
+                    break;
+            }
+        }
+        if (!tagged) {
+            src.append("        java.util.List<").append(LIBRARY_PACKAGE)
+                    .append(".SearchableTagValuePair> tags = object.getStoredObjectSearchableTags();\n")
+                    .append("        if (tags == null) return;\n")
+                    .append("        for (").append(LIBRARY_PACKAGE)
+                    .append(".SearchableTagValuePair pair : tags) {\n")
+                    .append("            sink.tag(pair.key, pair.value);\n        }\n");
+        }
+        src.append("    }\n");
+    }
+
+    private String readExpression(Property property) {
+        switch (property.kind) {
+            case BOOLEAN:
+            case BOXED_BOOLEAN:
+                return "in.peek() == com.google.gson.stream.JsonToken.STRING"
+                        + " ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean()";
+            case INTEGRAL:
+            case BOXED_INTEGRAL:
+                String primitive = primitiveName(property.type);
+                return "int".equals(primitive) ? "in.nextInt()" : "(" + primitive + ") in.nextInt()";
+            case LONG:
+            case BOXED_LONG:
+                return "in.nextLong()";
+            case FLOAT:
+            case BOXED_FLOAT:
+                return "(float) in.nextDouble()";
+            case DOUBLE:
+            case BOXED_DOUBLE:
+                return "in.nextDouble()";
+            case CHAR:
+            case BOXED_CHAR:
+                return "in.nextString().charAt(0)";
+            default:
+                return "in.nextString()";
+        }
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return Kind.BOOLEAN;
+            case BYTE:
+            case SHORT:
+            case INT:
+                return Kind.INTEGRAL;
+            case LONG:
+                return Kind.LONG;
+            case FLOAT:
+                return Kind.FLOAT;
+            case DOUBLE:
+                return Kind.DOUBLE;
+            case CHAR:
+                return Kind.CHAR;
+            case DECLARED:
+                String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+                if ("java.lang.String".equals(name)) return Kind.STRING;
+                if ("java.lang.Boolean".equals(name)) return Kind.BOXED_BOOLEAN;
+                if ("java.lang.Byte".equals(name) || "java.lang.Short".equals(name)
+                        || "java.lang.Integer".equals(name)) {
+                    return Kind.BOXED_INTEGRAL;
+                }
+                if ("java.lang.Long".equals(name)) return Kind.BOXED_LONG;
+                if ("java.lang.Float".equals(name)) return Kind.BOXED_FLOAT;
+                if ("java.lang.Double".equals(name)) return Kind.BOXED_DOUBLE;
+                if ("java.lang.Character".equals(name)) return Kind.BOXED_CHAR;
+                return Kind.ADAPTER;
+            default:
+                return Kind.ADAPTER;
+        }
+    }
+
+    /** Name of the primitive a type is or boxes **/
+    private String primitiveName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) return type.toString();
+        return processingEnv.getTypeUtils().unboxedType(type).toString();
+    }
+
+    private String boxedName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type)
+                    .getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private String typeLiteral(TypeMirror type) {
+        String erased = processingEnv.getTypeUtils().erasure(type).toString();
+        if (erased.equals(type.toString())) {
+            return erased + ".class";
+        }
+        return "new com.google.gson.reflect.TypeToken<" + type + ">() {}";
+    }
+
+    private static String defaultValue(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "false";
+            case CHAR:
+                return "'\\0'";
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return "0";
+            default:
+                return "null";
+        }
+    }
+
+    /** The field on the object, through its declaring class in case a subclass hides it **/
+    private static String access(TypeElement cls, Property property) {
+        if (property.owner.equals(cls)) return "object." + property.javaName();
+        return "((" + property.owner.getQualifiedName() + ") object)." + property.javaName();
+    }
+
+    private static String adapterName(Property property) {
+        return "ADAPTER_" + property.index;
+    }
+
+    /** Outer_Inner_StoredObjectCodec for nested classes **/
+    private static String codecName(TypeElement cls) {
+        String name = cls.getSimpleName().toString();
+        for (Element e = cls.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+            name = e.getSimpleName() + "_" + name;
+        }
+        return name + SUFFIX;
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private static AnnotationMirror annotation(Element element, String annotationName) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(annotationName)) return mirror;
+        }
+        return null;
+    }
+
+    private static String stringValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return (String) entry.getValue().getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,370 @@
+package ht.highlig.storedobject.processor;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.JdbcStorageBackend;
+import ht.highlig.storedobject.StorageBackend;
+import ht.highlig.storedobject.StorageCursor;
+import ht.highlig.storedobject.StoredObjectCodec;
+import ht.highlig.storedobject.TagSink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiles stored classes with the processor, then checks their codecs write, read and tag
+ * objects the way Gson and getStoredObjectSearchableTags() would, on their own and through
+ * a Database.
+ */
+public class StoredObjectCodecProcessorTest {
+    private static final String NESTED = lines(
+            "package fixtures;",
+            "public class Nested {",
+            "    String city;",
+            "    int zip;",
+            "}");
+
+    /** Every kind of field, set through fields and a no-arg constructor **/
+    private static final String FIELDS = lines(
+            "package fixtures;",
+            "import com.google.gson.annotations.SerializedName;",
+            "import java.util.List;",
+            "import java.util.Map;",
+            "import ht.highlig.storedobject.*;",
+            "@GenerateCodec",
+            "public class Fields implements Database.StoredObject {",
+            "    String id;",
+            "    @SearchableTag boolean flag;",
+            "    byte tiny;",
+            "    short small;",
+            "    @SearchableTag int count;",
+            "    @SearchableTag(\"when\") long ts;",
+            "    @SearchableTag float ratio;",
+            "    double precise;",
+            "    @SearchableTag char initial;",
+            "    @SearchableTag Boolean boxedFlag;",
+            "    @SearchableTag Integer boxedCount;",
+            "    @SearchableTag Long boxedLong;",
+            "    Float boxedRatio;",
+            "    Double boxedPrecise;",
+            "    Character boxedInitial;",
+            "    @SearchableTag String name;",
+            "    @SerializedName(\"display_name\") String displayName;",
+            "    List<String> labels;",
+            "    Map<String, Integer> scores;",
+            "    Nested nested;",
+            "    transient String ignored;",
+            "    public TYPE getStoredObjectType() { return Types.fields; }",
+            "    public String getStoredObjectId() { return id; }",
+            "    public List<SearchableTagValuePair> getStoredObjectSearchableTags() { return null; }",
+            "    public Long getStoredObjectTimestampMillis() { return null; }",
+            "}");
+
+    /** Final fields set through the constructor, tags from getStoredObjectSearchableTags() **/
+    private static final String CONSTRUCTED = lines(
+            "package fixtures;",
+            "import com.google.gson.annotations.SerializedName;",
+            "import java.util.Collections;",
+            "import java.util.List;",
+            "import ht.highlig.storedobject.*;",
+            "@GenerateCodec",
+            "public class Constructed implements Database.StoredObject {",
+            "    final String id;",
+            "    final int age;",
+            "    @SerializedName(\"full_name\") final String name;",
+            "    final Double score;",
+            "    final List<Nested> friends;",
+            "    public Constructed(String id, int age, String name, Double score, List<Nested> friends) {",
+            "        this.id = id;",
+            "        this.age = age;",
+            "        this.name = name;",
+            "        this.score = score;",
+            "        this.friends = friends;",
+            "    }",
+            "    public TYPE getStoredObjectType() { return Types.constructed; }",
+            "    public String getStoredObjectId() { return id; }",
+            "    public List<SearchableTagValuePair> getStoredObjectSearchableTags() {",
+            "        return Collections.singletonList(new SearchableTagValuePair(\"name\", name));",
+            "    }",
+            "    public Long getStoredObjectTimestampMillis() { return null; }",
+            "}");
+
+    private static final String TYPES = lines(
+            "package fixtures;",
+            "import ht.highlig.storedobject.*;",
+            "public enum Types implements Database.StoredObject.CodecType {",
+            "    fields(Fields.class, Fields_StoredObjectCodec.INSTANCE),",
+            "    constructed(Constructed.class, Constructed_StoredObjectCodec.INSTANCE);",
+            "    private final Class<?> cls;",
+            "    private final StoredObjectCodec<?> codec;",
+            "    Types(Class<?> cls, StoredObjectCodec<?> codec) {",
+            "        this.cls = cls;",
+            "        this.codec = codec;",
+            "    }",
+            "    public String getTypeName() { return name(); }",
+            "    public Class getTypeClass() { return cls; }",
+            "    public StoredObjectCodec<?> getCodec() { return codec; }",
+            "}");
+
+    /** The same types without their codecs, stored and loaded through Gson **/
+    private static final String GSON_TYPES = lines(
+            "package fixtures;",
+            "import ht.highlig.storedobject.*;",
+            "public enum GsonTypes implements Database.StoredObject.TYPE {",
+            "    fields(Fields.class),",
+            "    constructed(Constructed.class);",
+            "    private final Class<?> cls;",
+            "    GsonTypes(Class<?> cls) { this.cls = cls; }",
+            "    public String getTypeName() { return name(); }",
+            "    public Class getTypeClass() { return cls; }",
+            "}");
+
+    private static final String FULL_FIELDS = "{\"id\":\"f1\",\"flag\":true,\"tiny\":-128,\"small\":300,"
+            + "\"count\":7,\"ts\":9007199254740993,\"ratio\":0.1,\"precise\":1.0E-7,\"initial\":\"x\","
+            + "\"boxedFlag\":false,\"boxedCount\":9,\"boxedLong\":-4,\"boxedRatio\":2.5,"
+            + "\"boxedPrecise\":3.25,\"boxedInitial\":\"\\u00e9\",\"name\":\"<b>Tom & 'Jerry'</b>\","
+            + "\"display_name\":\"Tom\",\"labels\":[\"a\",null,\"b\"],\"scores\":{\"x\":1},"
+            + "\"nested\":{\"city\":\"sf\",\"zip\":94110}}";
+    private static final String NULL_FIELDS = "{\"id\":\"f2\",\"count\":-1}";
+    private static final String CONSTRUCTED_FIELDS = "{\"id\":\"c1\",\"age\":3,\"full_name\":\"Ann\","
+            + "\"friends\":[{\"city\":\"nyc\",\"zip\":10001}]}";
+    private static final String CONSTRUCTED_NULLS = "{\"id\":\"c2\",\"age\":0}";
+
+    private File dir;
+    private ClassLoader loader;
+
+    private static String lines(String... lines) {
+        StringBuilder source = new StringBuilder();
+        for (String line : lines) {
+            source.append(line).append('\n');
+        }
+        return source.toString();
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension),
+                    Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    /** Records the tags a codec emits as tag=value **/
+    private static class RecordingSink implements TagSink {
+        final List<String> tags = new ArrayList<String>();
+
+        @Override
+        public void tag(String key, String value) {
+            tags.add(key + "=" + value);
+        }
+
+        @Override
+        public void tag(String key, long value) {
+            tags.add(key + "=" + value);
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("codec-test", "");
+        dir.delete();
+        File classes = new File(dir, "classes");
+        classes.mkdirs();
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null);
+        List<JavaFileObject> sources = Arrays.<JavaFileObject>asList(
+                new Source("fixtures.Nested", NESTED),
+                new Source("fixtures.Fields", FIELDS),
+                new Source("fixtures.Constructed", CONSTRUCTED),
+                new Source("fixtures.Types", TYPES),
+                new Source("fixtures.GsonTypes", GSON_TYPES));
+        JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                        "-d", classes.getPath(), "-s", classes.getPath()),
+                null, sources);
+        task.setProcessors(Collections.singletonList(new StoredObjectCodecProcessor()));
+        boolean compiled = task.call();
+        files.close();
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.append(diagnostic).append('\n');
+            }
+        }
+        assertTrue(errors.toString(), compiled);
+        loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private Class<?> fixture(String name) throws ClassNotFoundException {
+        return Class.forName("fixtures." + name, true, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private StoredObjectCodec<Database.StoredObject> codec(String className) throws Exception {
+        return (StoredObjectCodec<Database.StoredObject>)
+                fixture(className + "_StoredObjectCodec").getField("INSTANCE").get(null);
+    }
+
+    private Database.StoredObject.TYPE type(String enumName, String typeName) throws Exception {
+        for (Object constant : fixture(enumName).getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(typeName)) return (Database.StoredObject.TYPE) constant;
+        }
+        throw new IllegalArgumentException(typeName);
+    }
+
+    private Database.StoredObject parse(String className, String json) throws Exception {
+        return (Database.StoredObject) Database.GSON.fromJson(json, fixture(className));
+    }
+
+    /** Writes with the settings Database and Gson's toJson use **/
+    private static String write(StoredObjectCodec<Database.StoredObject> codec,
+                                Database.StoredObject object) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        codec.write(writer, object);
+        return json.toString();
+    }
+
+    private static Database.StoredObject read(StoredObjectCodec<Database.StoredObject> codec,
+                                              String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return codec.read(reader);
+    }
+
+    private static List<String> tags(StoredObjectCodec<Database.StoredObject> codec,
+                                     Database.StoredObject object) {
+        RecordingSink sink = new RecordingSink();
+        codec.emitTags(object, sink);
+        return sink.tags;
+    }
+
+    @Test
+    public void testWritesTheJsonGsonWrites() throws Exception {
+        for (String json : Arrays.asList(FULL_FIELDS, NULL_FIELDS)) {
+            Database.StoredObject object = parse("Fields", json);
+            assertEquals(Database.GSON.toJson(object), write(codec("Fields"), object));
+        }
+        for (String json : Arrays.asList(CONSTRUCTED_FIELDS, CONSTRUCTED_NULLS)) {
+            Database.StoredObject object = parse("Constructed", json);
+            assertEquals(Database.GSON.toJson(object), write(codec("Constructed"), object));
+        }
+    }
+
+    @Test
+    public void testReadsWhatGsonReads() throws Exception {
+        String loose = "{\"id\":\"f3\",\"flag\":\"true\",\"count\":\"12\",\"boxedCount\":null,"
+                + "\"unknown\":{\"a\":[1,2]},\"ratio\":1,\"initial\":\"y\",\"nested\":null,"
+                + "\"display_name\":\"Z\"}";
+        for (String json : Arrays.asList(FULL_FIELDS, NULL_FIELDS, loose)) {
+            assertEquals(Database.GSON.toJson(parse("Fields", json)),
+                    Database.GSON.toJson(read(codec("Fields"), json)));
+        }
+        String unordered = "{\"friends\":[],\"full_name\":\"Bo\",\"extra\":true,\"id\":\"c3\",\"score\":1.5}";
+        for (String json : Arrays.asList(CONSTRUCTED_FIELDS, CONSTRUCTED_NULLS, unordered)) {
+            assertEquals(Database.GSON.toJson(parse("Constructed", json)),
+                    Database.GSON.toJson(read(codec("Constructed"), json)));
+        }
+    }
+
+    @Test
+    public void testEmitsSearchableTags() throws Exception {
+        assertEquals(Arrays.asList("flag=true", "count=7", "when=9007199254740993", "ratio=0.1",
+                "initial=x", "boxedFlag=false", "boxedCount=9", "boxedLong=-4",
+                "name=<b>Tom & 'Jerry'</b>"),
+                tags(codec("Fields"), parse("Fields", FULL_FIELDS)));
+        assertEquals(Arrays.asList("flag=false", "count=-1", "when=0", "ratio=0.0", "initial=\u0000"),
+                tags(codec("Fields"), parse("Fields", NULL_FIELDS)));
+        Database.StoredObject constructed = parse("Constructed", CONSTRUCTED_FIELDS);
+        assertEquals(Collections.singletonList("name=Ann"), tags(codec("Constructed"), constructed));
+    }
+
+    @Test
+    public void testDatabaseStoresAndLoadsWhatGsonWould() throws Exception {
+        File file = new File(dir, "codec.db");
+        StorageBackend backend = new JdbcStorageBackend(file);
+        Database db = Database.create(backend);
+        List<Database.StoredObject> objects = Arrays.asList(parse("Fields", FULL_FIELDS),
+                parse("Fields", NULL_FIELDS), parse("Constructed", CONSTRUCTED_FIELDS),
+                parse("Constructed", CONSTRUCTED_NULLS));
+        db.saveObjects(objects).toBlocking().single();
+
+        for (Database.StoredObject object : objects) {
+            StorageCursor cursor = backend.open(false).rawQuery(
+                    "SELECT json FROM objects WHERE type = ? AND id = ?",
+                    new String[]{object.getStoredObjectType().getTypeName(), object.getStoredObjectId()});
+            try {
+                assertTrue(cursor.moveToNext());
+                assertEquals(Database.GSON.toJson(object), cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        }
+        for (String typeName : Arrays.asList("fields", "constructed")) {
+            List<Database.StoredObject> withCodec = db.load(type("Types", typeName))
+                    .<Database.StoredObject>execute().toBlocking().single();
+            List<Database.StoredObject> withGson = db.load(type("GsonTypes", typeName))
+                    .<Database.StoredObject>execute().toBlocking().single();
+            assertEquals(2, withCodec.size());
+            assertEquals(Database.GSON.toJson(withGson), Database.GSON.toJson(withCodec));
+        }
+        List<Database.StoredObject> tagged = db.load(type("Types", "fields"))
+                .tagEquals("when", "9007199254740993").tagEquals("boxedFlag", "false")
+                .<Database.StoredObject>execute().toBlocking().single();
+        assertEquals(1, tagged.size());
+        assertEquals(Database.GSON.toJson(objects.get(0)), Database.GSON.toJson(tagged.get(0)));
+        backend.close();
+    }
+}
@@ -0,0 +1,274 @@
+package ht.highlig.storedobject;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.io.File;
+
+/**
+ * Default backend, stores objects through {@link SQLiteOpenHelper} in the app's database
+ * directory.
+ */
+public class AndroidStorageBackend implements StorageBackend {
+    private final Context mContext;
+    private final String mName;
+    private final Helper mHelper;
+    private SQLiteDatabase mDb;
+
+    public AndroidStorageBackend(Context context) {
+        this(context, DatabaseSchema.DB_NAME);
+    }
+
+    public AndroidStorageBackend(Context context, String name) {
+        mContext = context;
+        mName = name;
+        mHelper = new Helper(context, name);
+    }
+
+    @Override
+    public synchronized StorageConnection open(boolean writable) {
+        SQLiteDatabase db = writable ? mHelper.getWritableDatabase() : mHelper.getReadableDatabase();
+        if (db != null && !db.isOpen()) {
+            // Sometimes for some reason the db returned could actually be
+            // closed. For now, naively recall super#get*Database
+            // to create or open the db.
+            db = writable ? mHelper.getWritableDatabase() : mHelper.getReadableDatabase();
+        }
+        mDb = db;
+        return db == null ? null : new Connection(db);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mDb != null && mDb.isOpen();
+    }
+
+    @Override
+    public File getDatabaseFile() {
+        return mContext.getDatabasePath(mName);
+    }
+
+    @Override
+    public StorageBackend forShard(String shardName) {
+        return new AndroidStorageBackend(mContext, DatabaseSchema.shardDbName(mName, shardName));
+    }
+
+    @Override
+    public synchronized void close() {
+        mHelper.close();
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        /** Set when the tables were just created, auto vacuum is enabled once they are open **/
+        private boolean mCreated;
+
+        Helper(Context context, String name) {
+            super(context, name, null, DatabaseSchema.DB_VERSION);
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (!db.isReadOnly()) {
+                if (mCreated) {
+                    mCreated = false;
+                    enableAutoVacuum(db);
+                }
+                DatabaseSchema.addMissingTables(new Connection(db));
+            }
+            // Lets readers of one type run while another type is being written
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            DatabaseSchema.recreateDb(new Connection(db));
+            mCreated = true;
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            DatabaseSchema.recreateDb(new Connection(db));
+            mCreated = true;
+        }
+
+        /**
+         * android_metadata is created as soon as the file is opened, so the pragma in the
+         * schema comes too late on its own. The VACUUM applying it can't run in the
+         * transaction of onCreate, on a file that was just created it is quick.
+         */
+        private static void enableAutoVacuum(SQLiteDatabase db) {
+            db.execSQL(DatabaseSchema.AUTO_VACUUM);
+            db.execSQL("VACUUM");
+        }
+    }
+
+    static class Connection implements StorageConnection {
+        private final SQLiteDatabase db;
+
+        Connection(SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        @Override
+        public void execSQL(String sql) {
+            db.execSQL(sql);
+        }
+
+        @Override
+        public void execSQL(String sql, Object[] bindArgs) {
+            db.execSQL(sql, bindArgs);
+        }
+
+        @Override
+        public StorageCursor rawQuery(String sql, String[] selectionArgs) {
+            return new CursorWrapper(db.rawQuery(sql, selectionArgs));
+        }
+
+        @Override
+        public StorageStatement compileStatement(String sql) {
+            return new Statement(db.compileStatement(sql));
+        }
+
+        @Override
+        public void incrementalVacuum(int pages) {
+            // execSQL refuses statements returning rows, the cursor steps through all of them
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public int delete(String table, String whereClause, String[] whereArgs) {
+            return db.delete(table, whereClause, whereArgs);
+        }
+
+        @Override
+        public void beginTransaction() {
+            db.beginTransaction();
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            db.setTransactionSuccessful();
+        }
+
+        @Override
+        public void endTransaction() {
+            db.endTransaction();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return db.isOpen();
+        }
+
+        @Override
+        public void close() {
+            db.close();
+        }
+    }
+
+    private static class Statement implements StorageStatement {
+        private final SQLiteStatement statement;
+
+        Statement(SQLiteStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            if (value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            statement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindNull(int index) {
+            statement.bindNull(index);
+        }
+
+        @Override
+        public void clearBindings() {
+            statement.clearBindings();
+        }
+
+        @Override
+        public void execute() {
+            statement.execute();
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            return statement.simpleQueryForLong();
+        }
+
+        @Override
+        public void close() {
+            statement.close();
+        }
+    }
+
+    private static class CursorWrapper implements StorageCursor {
+        private final Cursor cursor;
+
+        CursorWrapper(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return cursor.moveToNext();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return cursor.getColumnCount();
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            return cursor.getColumnIndex(columnName);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return cursor.getString(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return cursor.getLong(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return cursor.getDouble(columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return cursor.isNull(columnIndex);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ht.highlig.storedobject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps oversized json payloads in files named after the sha1 of their content, in a
+ * directory next to the database. The objects row holds a reference ("@file:" + sha1)
+ * instead of the json and the blobs table counts the rows referencing each file. Counts
+ * change in the same transaction as the rows, files are deleted after that transaction
+ * commits.
+ */
+class BlobStore {
+    static final String REFERENCE_PREFIX = "@file:";
+    static final String DIRECTORY_SUFFIX = ".blobs";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Files to delete once the transaction that dropped their last reference commits, or
+     * that the transaction created if it rolls back
+     */
+    static class Release {
+        private final BlobStore store;
+        private final long writeMark;
+        private final Set<String> candidates = new LinkedHashSet<String>();
+        private final List<String> unreferenced = new ArrayList<String>();
+        /** Write count at which each file the transaction created was written **/
+        private final Map<String, Long> created = new HashMap<String, Long>();
+
+        private Release(BlobStore store, long writeMark) {
+            this.store = store;
+            this.writeMark = writeMark;
+        }
+
+        public BlobStore getStore() {
+            return store;
+        }
+
+        /** Call once the transaction has committed **/
+        public void finish() {
+            if (!unreferenced.isEmpty()) {
+                store.finishRelease(this);
+            }
+        }
+
+        /** Call once the transaction has rolled back **/
+        public void abort() {
+            if (!created.isEmpty()) {
+                store.abortRelease(this);
+            }
+        }
+    }
+
+    private final File mDirectory;
+    private volatile boolean mHasFiles;
+    /** Write count at the last write of each hash, see {@link #finishRelease(Release)} **/
+    private final Map<String, Long> mLastWrite = new HashMap<String, Long>();
+    private long mWrites;
+
+    BlobStore(File databaseFile) {
+        mDirectory = new File(databaseFile.getPath() + DIRECTORY_SUFFIX);
+        mHasFiles = mDirectory.isDirectory();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /** Whether rows may reference files, if not there is nothing to release **/
+    public boolean hasFiles() {
+        if (!mHasFiles) {
+            // A restore may have brought files along
+            mHasFiles = mDirectory.isDirectory();
+        }
+        return mHasFiles;
+    }
+
+    public static boolean isReference(String json) {
+        return json != null && json.startsWith(REFERENCE_PREFIX);
+    }
+
+    private static String hashOf(String reference) {
+        return reference.substring(REFERENCE_PREFIX.length());
+    }
+
+    private File file(String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    /** The reference json would be stored under, without writing anything **/
+    public static String referenceFor(String json) {
+        return REFERENCE_PREFIX + sha1(utf8(json));
+    }
+
+    /**
+     * Writes the json to its file unless it already exists.
+     * @param release release of the transaction the reference is stored in, a file it
+     *                creates is deleted if that transaction rolls back
+     * @return the reference to store in place of the json
+     */
+    public synchronized String write(String json, Release release) throws IOException {
+        byte[] data = utf8(json);
+        String hash = sha1(data);
+        File file = file(hash);
+        boolean created = false;
+        if (!file.exists()) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + mDirectory);
+            }
+            FileUtil.writeAtomically(data, file);
+            created = true;
+        }
+        mHasFiles = true;
+        mLastWrite.put(hash, ++mWrites);
+        if (created || release.created.containsKey(hash)) {
+            release.created.put(hash, mWrites);
+        }
+        return REFERENCE_PREFIX + hash;
+    }
+
+    /** Buffered reader over the json a reference points to **/
+    public Reader open(String reference) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                new FileInputStream(file(hashOf(reference))), "UTF-8"), READ_BUFFER_SIZE);
+    }
+
+    public long length(String reference) {
+        return file(hashOf(reference)).length();
+    }
+
+    public synchronized Release beginRelease() {
+        return new Release(this, mWrites);
+    }
+
+    public static void addRef(StorageConnection db, String reference) {
+        db.execSQL(DatabaseSchema.CREATE_BLOBS_TABLE);
+        db.execSQL(StringUtil.concat("INSERT OR IGNORE INTO ", DatabaseSchema.BLOBS_TABLE,
+                " (", BlobsTableColumn.hash, ", ", BlobsTableColumn.refs, ") VALUES (?, 0)"),
+                new Object[]{hashOf(reference)});
+        db.execSQL(StringUtil.concat("UPDATE ", DatabaseSchema.BLOBS_TABLE, " SET ",
+                BlobsTableColumn.refs, " = ", BlobsTableColumn.refs, " + 1 WHERE ",
+                BlobsTableColumn.hash, " = ?"), new Object[]{hashOf(reference)});
+    }
+
+    public static void removeRef(StorageConnection db, String reference, Release release) {
+        db.execSQL(StringUtil.concat("UPDATE ", DatabaseSchema.BLOBS_TABLE, " SET ",
+                BlobsTableColumn.refs, " = ", BlobsTableColumn.refs, " - 1 WHERE ",
+                BlobsTableColumn.hash, " = ?"), new Object[]{hashOf(reference)});
+        release.candidates.add(hashOf(reference));
+    }
+
+    /**
+     * Drops the counts of released files that are no longer referenced. Called inside the
+     * transaction, after its last addRef.
+     */
+    public static void collectUnreferenced(StorageConnection db, Release release) {
+        for (String hash : release.candidates) {
+            StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", BlobsTableColumn.refs,
+                    " FROM ", DatabaseSchema.BLOBS_TABLE, " WHERE ", BlobsTableColumn.hash, " = ?"),
+                    new String[]{hash});
+            boolean unreferenced;
+            try {
+                unreferenced = !cursor.moveToNext() || cursor.getLong(0) <= 0;
+            } finally {
+                cursor.close();
+            }
+            if (unreferenced) {
+                db.execSQL(StringUtil.concat("DELETE FROM ", DatabaseSchema.BLOBS_TABLE, " WHERE ",
+                        BlobsTableColumn.hash, " = ?"), new Object[]{hash});
+                release.unreferenced.add(hash);
+            }
+        }
+        release.candidates.clear();
+    }
+
+    /**
+     * Deletes the files collected by a committed transaction. A file written again since
+     * the transaction began may be referenced by a newer row and is left for
+     * {@link #sweep(StorageConnection)}.
+     */
+    private synchronized void finishRelease(Release release) {
+        for (String hash : release.unreferenced) {
+            Long lastWrite = mLastWrite.get(hash);
+            if (lastWrite == null || lastWrite <= release.writeMark) {
+                file(hash).delete();
+                mLastWrite.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files a rolled back transaction created. A file written again since,
+     * by a later transaction, is kept.
+     */
+    private synchronized void abortRelease(Release release) {
+        for (Map.Entry<String, Long> entry : release.created.entrySet()) {
+            Long lastWrite = mLastWrite.get(entry.getKey());
+            if (lastWrite != null && lastWrite.equals(entry.getValue())) {
+                file(entry.getKey()).delete();
+                mLastWrite.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Deletes files no row references, e.g. left by a crash between a commit and the file
+     * deletion. Nothing else may write to the database meanwhile.
+     * @return number of files deleted
+     */
+    public synchronized int sweep(StorageConnection db) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return 0;
+        db.execSQL(DatabaseSchema.CREATE_BLOBS_TABLE);
+        db.execSQL(StringUtil.concat("DELETE FROM ", DatabaseSchema.BLOBS_TABLE, " WHERE ",
+                BlobsTableColumn.refs, " <= 0"));
+        Set<String> referenced = new HashSet<String>();
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", BlobsTableColumn.hash,
+                " FROM ", DatabaseSchema.BLOBS_TABLE), null);
+        try {
+            while (cursor.moveToNext()) {
+                referenced.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        int deleted = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.delete()) {
+                mLastWrite.remove(file.getName());
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /** Deletes every file, for when the tables are recreated **/
+    public synchronized void deleteAll() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+        mLastWrite.clear();
+    }
+
+    private static byte[] utf8(String json) {
+        try {
+            return json.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha1(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest(data);
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
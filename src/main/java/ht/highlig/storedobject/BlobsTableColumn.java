@@ -0,0 +1,25 @@
+package ht.highlig.storedobject;
+
+/**
+ * Reference counts of the payload files kept by {@link BlobStore}.
+ */
+enum BlobsTableColumn implements DatabaseColumn {
+  hash(SqliteType.TEXT),
+  refs(SqliteType.INTEGER);
+
+  private final SqliteType sqliteType;
+
+  private BlobsTableColumn(SqliteType sqliteType) {
+    this.sqliteType = sqliteType;
+  }
+
+  @Override
+  public SqliteType getType() {
+    return sqliteType;
+  }
+
+  @Override
+  public String getNameAndType() {
+    return name() + " " + getType();
+  }
+}
@@ -0,0 +1,36 @@
+package ht.highlig.storedobject;
+
+/**
+ * An entry of the change log, see {@link Database#changesSince(long, int)}.
+ */
+public class Change {
+    public enum Op {
+        SAVE,
+        DELETE,
+        /** Every object of the type was deleted, or of every type if typeName is null **/
+        CLEAR
+    }
+
+    /** Increases with every change, in commit order **/
+    public final long seq;
+    public final String typeName;
+    /** Null for {@link Op#CLEAR} **/
+    public final String id;
+    public final Op op;
+
+    Change(long seq, String typeName, String id, Op op) {
+        this.seq = seq;
+        this.typeName = typeName;
+        this.id = id;
+        this.op = op;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "{" +
+                "seq:" + seq +
+                ",typeName:" + typeName +
+                ",id:" + id +
+                ",op:" + op + "}";
+    }
+}
@@ -0,0 +1,185 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of the saves, deletes and clears of a database file, written in the same
+ * transaction as the change so consumers can read what changed since the last entry they
+ * saw instead of rescanning types. Compaction keeps only each object's latest entry,
+ * drops everything a later clear covers and, beyond maxEntries, the oldest entries. The
+ * last seq dropped that way is kept as a TRIM entry, consumers behind it have to rescan.
+ */
+class ChangeLog {
+    private static final String TRIM = "TRIM";
+    /** Fewer new entries than this aren't worth a compaction **/
+    private static final int MIN_ENTRIES_PER_COMPACTION = 64;
+
+    private static final String INSERT_CHANGE = StringUtil.concat(
+            "INSERT INTO ", DatabaseSchema.CHANGES_TABLE, " (",
+            ChangesTableColumn.type, ", ", ChangesTableColumn.id, ", ",
+            ChangesTableColumn.op, ") VALUES (?, ?, ?)");
+
+    /**
+     * Records the changes of one transaction
+     */
+    class Writer {
+        private final StorageConnection db;
+        private final StorageStatement insert;
+        private int count;
+
+        private Writer(StorageConnection db) {
+            this.db = db;
+            this.insert = db.compileStatement(INSERT_CHANGE);
+        }
+
+        /** A null typeName clears every type, a null id the whole type **/
+        public void record(String typeName, String id, Change.Op op) {
+            insert.bindString(1, typeName);
+            insert.bindString(2, id);
+            insert.bindString(3, op.name());
+            insert.execute();
+            count++;
+        }
+
+        /** Call once everything is recorded, before the transaction commits **/
+        public void finish() {
+            if (isCompactionDue(count)) {
+                compact(db);
+            }
+        }
+
+        public void close() {
+            insert.close();
+        }
+    }
+
+    private final int maxEntries;
+    private int entriesSinceCompaction;
+
+    ChangeLog(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** The caller holds a transaction on db, the table is part of the schema **/
+    public Writer begin(StorageConnection db) {
+        return new Writer(db);
+    }
+
+    private synchronized boolean isCompactionDue(int newEntries) {
+        entriesSinceCompaction += newEntries;
+        if (entriesSinceCompaction < Math.max(MIN_ENTRIES_PER_COMPACTION, maxEntries / 4)) {
+            return false;
+        }
+        entriesSinceCompaction = 0;
+        return true;
+    }
+
+    private void compact(StorageConnection db) {
+        String table = DatabaseSchema.CHANGES_TABLE;
+        // A clear of every type covers all earlier entries
+        db.execSQL(StringUtil.concat("DELETE FROM ", table, " WHERE ", ChangesTableColumn.seq,
+                " < (SELECT MAX(", ChangesTableColumn.seq, ") FROM ", table, " WHERE ",
+                ChangesTableColumn.op, " = '", Change.Op.CLEAR, "' AND ",
+                ChangesTableColumn.type, " IS NULL)"));
+        // A clear of a type covers the type's earlier entries
+        List<String> clearedTypes = new ArrayList<String>();
+        List<Long> clearSeqs = new ArrayList<Long>();
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", ChangesTableColumn.type,
+                ", MAX(", ChangesTableColumn.seq, ") FROM ", table, " WHERE ",
+                ChangesTableColumn.op, " = '", Change.Op.CLEAR, "' AND ", ChangesTableColumn.type,
+                " IS NOT NULL GROUP BY ", ChangesTableColumn.type), null);
+        try {
+            while (cursor.moveToNext()) {
+                clearedTypes.add(cursor.getString(0));
+                clearSeqs.add(cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (int i = 0; i < clearedTypes.size(); i++) {
+            db.execSQL(StringUtil.concat("DELETE FROM ", table, " WHERE ", ChangesTableColumn.type,
+                    " = ? AND ", ChangesTableColumn.seq, " < ?"),
+                    new Object[]{clearedTypes.get(i), clearSeqs.get(i)});
+        }
+        // The latest entry of an object covers its earlier ones
+        db.execSQL(StringUtil.concat("DELETE FROM ", table, " WHERE ", ChangesTableColumn.seq,
+                " NOT IN (SELECT MAX(", ChangesTableColumn.seq, ") FROM ", table, " GROUP BY ",
+                ChangesTableColumn.type, ", ", ChangesTableColumn.id, ")"));
+        if (maxEntries <= 0) return;
+        long excess = longQuery(db, StringUtil.concat("SELECT COUNT(*) FROM ", table)) - maxEntries;
+        if (excess <= 0) return;
+        long trimmedThrough = longQuery(db, StringUtil.concat("SELECT ", ChangesTableColumn.seq,
+                " FROM ", table, " ORDER BY ", ChangesTableColumn.seq, " LIMIT 1 OFFSET ", excess - 1));
+        db.execSQL(StringUtil.concat("DELETE FROM ", table, " WHERE ", ChangesTableColumn.seq, " <= ?"),
+                new Object[]{trimmedThrough});
+        db.execSQL(StringUtil.concat("INSERT INTO ", table, " (", ChangesTableColumn.seq, ", ",
+                ChangesTableColumn.op, ") VALUES (?, '", TRIM, "')"), new Object[]{trimmedThrough});
+    }
+
+    /**
+     * Entries after seq in seq order, only those of the type and clears of every type if
+     * typeName isn't null. Up to limit entries if limit is positive.
+     * @throws DatabaseException if entries after seq were compacted away
+     */
+    public static List<Change> read(StorageConnection db, long seq, String typeName, int limit)
+            throws DatabaseException {
+        List<Change> changes = new ArrayList<Change>();
+        String table = DatabaseSchema.CHANGES_TABLE;
+        StorageCursor cursor = db.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table});
+        try {
+            if (!cursor.moveToNext()) return changes;
+        } finally {
+            cursor.close();
+        }
+        long trimmedThrough = longQuery(db, StringUtil.concat("SELECT IFNULL(MAX(",
+                ChangesTableColumn.seq, "), 0) FROM ", table, " WHERE ", ChangesTableColumn.op,
+                " = '", TRIM, "'"));
+        if (seq < trimmedThrough) {
+            throw new DatabaseException(StringUtil.concat("Changes up to ", trimmedThrough,
+                    " were compacted away, the changes after ", seq, " are incomplete"));
+        }
+        StringBuilder sql = new StringBuilder(StringUtil.concat("SELECT ", ChangesTableColumn.seq,
+                ", ", ChangesTableColumn.type, ", ", ChangesTableColumn.id, ", ", ChangesTableColumn.op,
+                " FROM ", table, " WHERE ", ChangesTableColumn.seq, " > ? AND ",
+                ChangesTableColumn.op, " != '", TRIM, "'"));
+        String[] args;
+        if (typeName != null) {
+            sql.append(StringUtil.concat(" AND (", ChangesTableColumn.type, " = ? OR ",
+                    ChangesTableColumn.type, " IS NULL)"));
+            args = new String[]{String.valueOf(seq), typeName};
+        } else {
+            args = new String[]{String.valueOf(seq)};
+        }
+        sql.append(StringUtil.concat(" ORDER BY ", ChangesTableColumn.seq));
+        if (limit > 0) {
+            sql.append(" LIMIT ").append(limit);
+        }
+        cursor = db.rawQuery(sql.toString(), args);
+        try {
+            while (cursor.moveToNext()) {
+                changes.add(new Change(cursor.getLong(0),
+                        cursor.isNull(1) ? null : cursor.getString(1),
+                        cursor.isNull(2) ? null : cursor.getString(2),
+                        Change.Op.valueOf(cursor.getString(3))));
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    private static long longQuery(StorageConnection db, String sql) {
+        StorageCursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
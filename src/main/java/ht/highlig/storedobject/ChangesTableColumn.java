@@ -0,0 +1,27 @@
+package ht.highlig.storedobject;
+
+/**
+ * Entries of the change log kept by {@link ChangeLog}.
+ */
+enum ChangesTableColumn implements DatabaseColumn {
+  seq(SqliteType.INTEGER),
+  type(SqliteType.TEXT),
+  id(SqliteType.TEXT),
+  op(SqliteType.TEXT);
+
+  private final SqliteType sqliteType;
+
+  private ChangesTableColumn(SqliteType sqliteType) {
+    this.sqliteType = sqliteType;
+  }
+
+  @Override
+  public SqliteType getType() {
+    return sqliteType;
+  }
+
+  @Override
+  public String getNameAndType() {
+    return name() + " " + getType();
+  }
+}
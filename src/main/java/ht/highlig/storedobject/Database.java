@@ -2,21 +2,50 @@ package ht.highlig.storedobject;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 
 import com.google.gson.Gson;
-
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.schedulers.Schedulers;
 import timber.log.Timber;
@@ -27,6 +56,15 @@ import timber.log.Timber;
 
 public class Database {
     public static final Gson GSON = new Gson();
+    public static final int DEFAULT_IMPORT_CHUNK_SIZE = 500;
+    public static final long DEFAULT_SAVE_BATCH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_SAVE_BATCH_DELAY_MS = 1000;
+    /** Keeps statements that bind one or two arguments per id under sqlite's 999 argument limit **/
+    private static final int MAX_IDS_PER_STATEMENT = 400;
+    /** Below sqlite's default limit of 999 bound arguments **/
+    private static final int MAX_ARGS_PER_STATEMENT = 2 * MAX_IDS_PER_STATEMENT;
+    /** Below sqlite's default limit of 500 selects in a compound select **/
+    private static final int MAX_SELECTS_PER_STATEMENT = 100;
 
     public interface StoredObject {
         public interface TYPE {
@@ -34,6 +72,14 @@ public class Database {
             public Class getTypeClass();
         }
 
+        /**
+         * A type whose objects are encoded, decoded and tagged by a generated
+         * {@link StoredObjectCodec} instead of Gson and reflection
+         */
+        public interface CodecType extends TYPE {
+            public StoredObjectCodec<?> getCodec();
+        }
+
         public TYPE getStoredObjectType();
         public String getStoredObjectId();
         public List<SearchableTagValuePair> getStoredObjectSearchableTags();
@@ -45,20 +91,549 @@ public class Database {
         DESC
     }
 
+    public enum AGGREGATE {
+        COUNT,
+        MIN,
+        MAX,
+        SUM,
+        AVG
+    }
+
     private DatabaseAccessManager mDbAccessManager;
+    private final SlowQueryLog mSlowQueryLog = new SlowQueryLog(SlowQueryLog.DEFAULT_CAPACITY);
+    private volatile DatabaseMetrics mMetrics;
+    private volatile ShardingPolicy mShardingPolicy;
+    private volatile ObjectCache mObjectCache;
+    private volatile ParallelDecoder mParallelDecoder;
+    private volatile ResultCache mResultCache;
+    private volatile InFlightRequests mInFlightRequests;
+    private volatile ChangeLog mChangeLog;
+    private volatile int mExternalStorageThreshold = -1;
+    private final ConcurrentHashMap<String, TagIndex> mTagIndexes =
+            new ConcurrentHashMap<String, TagIndex>();
+    /** Hot tags each database file had when this instance first used it, by type name **/
+    private final ConcurrentHashMap<DatabaseAccessManager, Map<String, Map<String, SqliteType>>>
+            mStoredTagIndexes = new ConcurrentHashMap<DatabaseAccessManager, Map<String, Map<String, SqliteType>>>();
+    private final ConcurrentHashMap<String, Integer> mMaxObjects =
+            new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentHashMap<String, Durability> mDurabilities =
+            new ConcurrentHashMap<String, Durability>();
+    private final ConcurrentHashMap<String, DatabaseAccessManager> mShards =
+            new ConcurrentHashMap<String, DatabaseAccessManager>();
     private static Database mInstance;
 
-    private Database(Context context) {
-        this.mDbAccessManager = DatabaseAccessManager.getInstance(context);
+    Database(DatabaseAccessManager dbAccessManager) {
+        this.mDbAccessManager = dbAccessManager;
     }
 
     public static Database with(Context context) {
         if (mInstance == null) {
-            mInstance = new Database(context);
+            mInstance = new Database(DatabaseAccessManager.getInstance(context));
         }
         return mInstance;
     }
 
+    /**
+     * Creates a database on top of the given backend, e.g. a {@link JdbcStorageBackend}
+     * to run outside of android. Unlike {@link #with(Context)} every call returns a new
+     * instance, callers should keep one per backend.
+     */
+    public static Database create(StorageBackend backend) {
+        return new Database(new DatabaseAccessManager(backend));
+    }
+
+    /**
+     * Queries slower than the threshold are recorded, with their query plan, in
+     * {@link #getSlowQueryLog()}. A negative threshold (the default) disables recording.
+     */
+    public void setSlowQueryThresholdMillis(long thresholdMillis) {
+        mSlowQueryLog.setThresholdMillis(thresholdMillis);
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return mSlowQueryLog;
+    }
+
+    /**
+     * Keep up to maxEntries decoded objects in memory for loads by id. Writes drop the
+     * entries they touch. 0 (the default) disables the cache.
+     */
+    public void setObjectCacheSize(int maxEntries) {
+        mObjectCache = maxEntries > 0 ? new ObjectCache(maxEntries) : null;
+    }
+
+    /** The object cache or null if it is disabled **/
+    public ObjectCache getObjectCache() {
+        return mObjectCache;
+    }
+
+    /**
+     * Keep the results of up to maxEntries requests in memory, together decoded from at
+     * most maxChars characters of json. Identical requests are answered from memory until a
+     * write to their type. 0 for either (the default) disables the cache.
+     */
+    public void setResultCacheSize(int maxEntries, long maxChars) {
+        mResultCache = maxEntries > 0 && maxChars > 0 ? new ResultCache(maxEntries, maxChars) : null;
+    }
+
+    /** The result cache or null if it is disabled **/
+    public ResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * Let identical requests executing at the same time share one load and its decoded
+     * objects, which must then not be modified. Off by default.
+     */
+    public void setRequestDeduplication(boolean enabled) {
+        mInFlightRequests = enabled ? new InFlightRequests() : null;
+    }
+
+    /** Number of request executions saved by sharing an identical running one **/
+    public long getDeduplicatedRequestCount() {
+        InFlightRequests inFlight = mInFlightRequests;
+        return inFlight == null ? 0 : inFlight.getSavedExecutions();
+    }
+
+    /**
+     * Drops cached results of the type and keeps later requests from sharing loads started
+     * before now. Every write calls it holding the type's write lock.
+     */
+    private void invalidateResults(String typeName) {
+        ResultCache results = mResultCache;
+        if (results != null) {
+            results.invalidateType(typeName);
+        }
+        InFlightRequests inFlight = mInFlightRequests;
+        if (inFlight != null) {
+            inFlight.onWrite(typeName);
+        }
+    }
+
+    private void clearCaches() {
+        ObjectCache cache = mObjectCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        ResultCache results = mResultCache;
+        if (results != null) {
+            results.clear();
+        }
+        InFlightRequests inFlight = mInFlightRequests;
+        if (inFlight != null) {
+            inFlight.onReset();
+        }
+    }
+
+    /**
+     * Decode loads returning at least minRows rows, or at least minChars characters of json,
+     * on a pool with a thread per core once the rows are read and the read lock released.
+     * Result order is kept. Smaller loads decode on the loading thread as before. A
+     * threshold of 0 or less is ignored, both disable parallel decoding (the default).
+     */
+    public void setParallelDecoding(int minRows, long minChars) {
+        ParallelDecoder previous = mParallelDecoder;
+        mParallelDecoder = minRows > 0 || minChars > 0
+                ? new ParallelDecoder(minRows, minChars, Runtime.getRuntime().availableProcessors())
+                : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Objects whose json is longer than this many characters are written to a file next to
+     * the database instead of the objects table, which keeps large payloads out of cursor
+     * windows and out of scans over the other rows. Applies to objects saved from now on.
+     * A negative threshold (the default) keeps everything in the table.
+     */
+    public void setExternalStorageThreshold(int jsonLength) {
+        mExternalStorageThreshold = jsonLength;
+    }
+
+    /**
+     * Record every save, delete and clear in a change log, in the same transaction as the
+     * write, for consumers reading {@link #changesSince(long, int)}. Compaction folds the
+     * entries of each object into its latest one and keeps at most maxEntries, 0 only
+     * folds. A negative value (the default) stops recording, consumers then can't tell what
+     * changed until recording resumes.
+     */
+    public void setChangeLogSize(int maxEntries) {
+        mChangeLog = maxEntries >= 0 ? new ChangeLog(maxEntries) : null;
+    }
+
+    /**
+     * Changes recorded after seq, oldest first, at most limit of them if positive. Start
+     * from 0 and pass the seq of the last change handled to get the next ones. Fails with a
+     * {@link DatabaseException} if some changes after seq were compacted away, the consumer
+     * has to rescan and continue from the latest seq. Only covers the main database file,
+     * see {@link #changesSince(StoredObject.TYPE, long, int)} for types in shards.
+     */
+    public Observable<List<Change>> changesSince(final long seq, final int limit) {
+        return changesSince(mDbAccessManager, null, seq, limit);
+    }
+
+    /**
+     * The changes of one type, and clears of every type, recorded after seq. Sequence
+     * numbers are per database file, types in different shards have their own.
+     */
+    public Observable<List<Change>> changesSince(StoredObject.TYPE type, final long seq,
+                                                 final int limit) {
+        return changesSince(managerFor(type), type.getTypeName(), seq, limit);
+    }
+
+    private Observable<List<Change>> changesSince(final DatabaseAccessManager manager,
+                                                  final String typeName, final long seq,
+                                                  final int limit) {
+        return createDbObservable(new Observable.OnSubscribe<List<Change>>() {
+            @Override
+            public void call(Subscriber<? super List<Change>> subscriber) {
+                List<Change> changes;
+                StorageConnection db = null;
+                String[] typeNames = typeName == null ? new String[0] : new String[]{typeName};
+                manager.lockTypesForRead(typeNames);
+                try {
+                    db = manager.getReadableDatabase();
+                    if (db == null) {
+                        throw new DatabaseException("Database can't be opened for reading");
+                    }
+                    changes = ChangeLog.read(db, seq, typeName, limit);
+                } catch (Exception e) {
+                    Timber.e("Error when reading changes: " + e.getMessage());
+                    subscriber.onError(e);
+                    return;
+                } finally {
+                    manager.releaseDb(db);
+                    manager.unlockTypesForRead(typeNames);
+                }
+                subscriber.onNext(changes);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * Keep only the newest maxObjects objects of the type by timestamp: every save of the
+     * type deletes the oldest ones beyond it, with their tags, in the same transaction.
+     * Declare on every start, 0 or less removes the cap.
+     */
+    public void setMaxObjects(StoredObject.TYPE type, int maxObjects) {
+        if (maxObjects > 0) {
+            mMaxObjects.put(type.getTypeName(), maxObjects);
+        } else {
+            mMaxObjects.remove(type.getTypeName());
+        }
+    }
+
+    /**
+     * Durability of the writes of the type that don't ask for one, a write touching several
+     * types gets the strongest of theirs. Null, the default, leaves sqlite's settings.
+     * Declare on every start.
+     */
+    public void setDurability(StoredObject.TYPE type, Durability durability) {
+        if (durability != null) {
+            mDurabilities.put(type.getTypeName(), durability);
+        } else {
+            mDurabilities.remove(type.getTypeName());
+        }
+    }
+
+    /**
+     * Set a listener for operation latencies, lock waits, transactions and connection
+     * events. Pass null to stop recording.
+     */
+    public void setMetrics(DatabaseMetrics metrics) {
+        mMetrics = metrics;
+        for (DatabaseAccessManager manager : getAccessManagers()) {
+            manager.setMetrics(metrics);
+        }
+    }
+
+    public DatabaseMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Store types in separate database files according to the policy, each with its own
+     * connection and lock. Has to be set before the database is used: objects already
+     * saved are not moved to their shard.
+     */
+    public void setShardingPolicy(ShardingPolicy shardingPolicy) {
+        mShardingPolicy = shardingPolicy;
+    }
+
+    private DatabaseAccessManager managerFor(StoredObject.TYPE type) {
+        ShardingPolicy policy = mShardingPolicy;
+        String shard = policy == null ? null : policy.getShard(type);
+        DatabaseAccessManager manager = shard == null ? mDbAccessManager : mShards.get(shard);
+        if (manager == null) {
+            manager = new DatabaseAccessManager(mDbAccessManager.getBackend().forShard(shard));
+            manager.setMetrics(mMetrics);
+            DatabaseAccessManager existing = mShards.putIfAbsent(shard, manager);
+            if (existing != null) {
+                manager = existing;
+            }
+        }
+        loadTagIndex(manager, type);
+        return manager;
+    }
+
+    /**
+     * Registers the hot tags the type had in the manager's database before this instance
+     * was created, so they keep being read from and written to their columns.
+     */
+    private void loadTagIndex(DatabaseAccessManager manager, StoredObject.TYPE type) {
+        if (mTagIndexes.containsKey(type.getTypeName())) return;
+        Map<String, Map<String, SqliteType>> stored = mStoredTagIndexes.get(manager);
+        if (stored == null) {
+            stored = readTagIndexes(manager);
+            if (stored == null) return;
+            mStoredTagIndexes.putIfAbsent(manager, stored);
+        }
+        Map<String, SqliteType> tags = stored.get(type.getTypeName());
+        if (tags != null && !tags.isEmpty()) {
+            mTagIndexes.putIfAbsent(type.getTypeName(), new TagIndex(type, tags));
+        }
+    }
+
+    /** @return null if the database can't be read **/
+    private Map<String, Map<String, SqliteType>> readTagIndexes(DatabaseAccessManager manager) {
+        StorageConnection db = null;
+        manager.lockTypesForRead();
+        try {
+            db = manager.getReadableDatabase();
+            if (db == null) return null;
+            return TagIndex.readAll(db);
+        } catch (Exception e) {
+            Timber.e("Error when reading hot tags: " + e.getMessage());
+            return null;
+        } finally {
+            manager.releaseDb(db);
+            manager.unlockTypesForRead();
+        }
+    }
+
+    /**
+     * Promotes a tag of the type to a typed, indexed column of its own table. Conditions on
+     * it are then answered from that column instead of the tags table. Values already
+     * stored for the tag are moved over, an error is emitted instead if an object has
+     * several values for it. Hot tags have a single value per object and are
+     * remembered by the database file, declaring them again on the next start is harmless.
+     */
+    public Observable<Void> indexTag(final StoredObject.TYPE type, final String tag,
+                                     final SqliteType valueType) {
+        return createDbObservable(new Observable.OnSubscribe<Void>() {
+            @Override
+            public void call(Subscriber<? super Void> subscriber) {
+                try {
+                    indexTagSync(type, tag, valueType);
+                } catch (Exception e) {
+                    Timber.e("Error when indexing tag " + tag + ": " + e.getMessage());
+                    subscriber.onError(e);
+                    return;
+                }
+                subscriber.onNext(null);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    private void indexTagSync(StoredObject.TYPE type, String tag, SqliteType valueType)
+            throws DatabaseException {
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        long transactionStart = 0;
+        boolean successful = false;
+        manager.lockTypesForWrite(type.getTypeName());
+        try {
+            TagIndex current = mTagIndexes.get(type.getTypeName());
+            TagIndex index = (current == null ? new TagIndex(type) : current).with(tag, valueType);
+            db = manager.getWritableDatabase();
+            if (db == null) {
+                throw new DatabaseException("Database can't be opened for writing");
+            }
+            manager.beginTransaction(db, null);
+            transactionStart = System.nanoTime();
+            try {
+                String multiValued = current != null && current.contains(tag) ? null
+                        : index.findMultiValued(db, tag);
+                if (multiValued != null) {
+                    throw new DatabaseException(StringUtil.concat("Tag ", tag, " has more than one value for ",
+                            type.getTypeName(), " ", multiValued, ", it can't be hot"));
+                }
+                index.create(db);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                endTransaction(manager, db, transactionStart, null, successful);
+            }
+            if (successful) {
+                // Writes wait for the lock held here, so all of them see the column
+                mTagIndexes.put(type.getTypeName(), index);
+            }
+        } finally {
+            manager.releaseDb(db);
+            manager.unlockTypesForWrite(type.getTypeName());
+        }
+    }
+
+    /** Recreates the tables of the hot tags of types stored in the manager's database **/
+    private void createTagIndexes(DatabaseAccessManager manager, StorageConnection db) {
+        for (TagIndex index : mTagIndexes.values()) {
+            if (managerFor(index.getStoredObjectType()) == manager) {
+                index.create(db);
+            }
+        }
+    }
+
+    /**
+     * Contention statistics of the lock guarding the type
+     */
+    public LockStats getLockStats(StoredObject.TYPE type) {
+        return managerFor(type).getLockStats(type.getTypeName());
+    }
+
+    /** The main database followed by every shard opened so far **/
+    private List<DatabaseAccessManager> getAccessManagers() {
+        List<DatabaseAccessManager> managers = new ArrayList<DatabaseAccessManager>(mShards.size() + 1);
+        managers.add(mDbAccessManager);
+        managers.addAll(mShards.values());
+        return managers;
+    }
+
+    private void recordOperation(DatabaseMetrics.Operation operation, StoredObject.TYPE type,
+                                 long startNanos, int rows) {
+        DatabaseMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onOperation(operation, type, System.nanoTime() - startNanos, rows);
+        }
+    }
+
+    /** Commits if successful was marked, else rolls back, which isn't recorded as a commit **/
+    private void endTransaction(DatabaseAccessManager manager, StorageConnection db,
+                                long transactionStart, Durability durability, boolean successful) {
+        long commitStart = System.nanoTime();
+        manager.endTransaction(db);
+        DatabaseMetrics metrics = mMetrics;
+        if (metrics != null) {
+            long end = System.nanoTime();
+            metrics.onTransaction(end - transactionStart);
+            if (successful) {
+                metrics.onCommit(durability, end - commitStart);
+            }
+        }
+    }
+
+    /** The requested durability, else the strongest one declared for the types **/
+    private Durability durabilityFor(String[] typeNames, Durability requested) {
+        if (requested != null || mDurabilities.isEmpty()) return requested;
+        Durability durability = null;
+        for (String typeName : typeNames) {
+            durability = Durability.strongest(durability, mDurabilities.get(typeName));
+        }
+        return durability;
+    }
+
+    /**
+     * The type's codec, if it has one. Objects of a type are instances of its class, which
+     * is what its codec handles, so it is safe to hand it any of them.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends StoredObject> StoredObjectCodec<T> codecFor(StoredObject.TYPE type) {
+        return type instanceof StoredObject.CodecType
+                ? (StoredObjectCodec<T>) ((StoredObject.CodecType) type).getCodec() : null;
+    }
+
+    private String encodeObject(StoredObject object) {
+        StoredObjectCodec<StoredObject> codec = codecFor(object.getStoredObjectType());
+        String json = codec == null ? GSON.toJson(object) : encodeWithCodec(codec, object);
+        DatabaseMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onBytesSerialized(json.length());
+        }
+        return json;
+    }
+
+    private <T extends StoredObject> T decodeObject(StoredObject.TYPE type, String json) {
+        if (BlobStore.isReference(json)) {
+            return decodeBlob(type, json);
+        }
+        DatabaseMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onBytesDeserialized(json.length());
+        }
+        if (codecFor(type) != null) {
+            return readObject(type, new JsonReader(new StringReader(json)));
+        }
+        return GSON.fromJson(json, (Type) type.getTypeClass());
+    }
+
+    /** Writes the json Gson would write for the object, with the same writer settings **/
+    private static String encodeWithCodec(StoredObjectCodec<StoredObject> codec, StoredObject object) {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        try {
+            codec.write(writer, object);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return json.toString();
+    }
+
+    /** Reads one object of the type, through its codec if it has one **/
+    private static <T extends StoredObject> T readObject(StoredObject.TYPE type, JsonReader reader) {
+        StoredObjectCodec<T> codec = codecFor(type);
+        if (codec == null) {
+            return GSON.fromJson(reader, (Type) type.getTypeClass());
+        }
+        boolean lenient = reader.isLenient();
+        reader.setLenient(true);
+        try {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                return null;
+            }
+            return codec.read(reader);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        } finally {
+            reader.setLenient(lenient);
+        }
+    }
+
+    /** Streams the object from its payload file **/
+    private <T extends StoredObject> T decodeBlob(StoredObject.TYPE type, String reference) {
+        BlobStore blobs = managerFor(type).getBlobStore();
+        Reader reader = null;
+        try {
+            reader = blobs.open(reference);
+            DatabaseMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onBytesDeserialized(blobs.length(reference));
+            }
+            if (codecFor(type) != null) {
+                return readObject(type, new JsonReader(reader));
+            }
+            return GSON.fromJson(reader, (Type) type.getTypeClass());
+        } catch (IOException e) {
+            throw new StorageException("Unable to read payload file " + reference, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Timber.e("Unable to close payload file: " + e.getMessage());
+                }
+            }
+        }
+    }
+
     private void saveObjectSync(StoredObject object) {
         List<StoredObject> list = new ArrayList<StoredObject>();
         list.add(object);
@@ -81,26 +656,53 @@ public class Database {
     }
 
     public void recreateTablesSync() {
-        SQLiteDatabase db = null;
-        mDbAccessManager.lockDbForWrite();
+        for (DatabaseAccessManager manager : getAccessManagers()) {
+            recreateTablesSync(manager);
+        }
+    }
+
+    private void recreateTablesSync(DatabaseAccessManager manager) {
+        StorageConnection db = null;
+        long transactionStart = 0;
+        boolean successful = false;
+        manager.lockDbForWrite();
         try {
-            db = mDbAccessManager.getWritableDatabase();
+            db = manager.getWritableDatabase();
             if (db != null) {
-                db.beginTransaction();
+                manager.beginTransaction(db, null);
+                transactionStart = System.nanoTime();
             } else {
                 throw new DatabaseException("Database can't be opened for writing");
             }
 
-            mDbAccessManager.onCreate(db);
+            manager.recreateDb(db);
+            TagIndex.dropAll(db);
+            createTagIndexes(manager, db);
+            mStoredTagIndexes.remove(manager);
+            ChangeLog changeLog = mChangeLog;
+            if (changeLog != null) {
+                ChangeLog.Writer changes = changeLog.begin(db);
+                try {
+                    changes.record(null, null, Change.Op.CLEAR);
+                    changes.finish();
+                } finally {
+                    changes.close();
+                }
+            }
+            clearCaches();
             db.setTransactionSuccessful();
+            successful = true;
         } catch (Exception e) {
             Timber.e("Error when storing object:\n" + e.getMessage());
         } finally {
             if (db != null) {
-                db.endTransaction();
-                db.close();
+                endTransaction(manager, db, transactionStart, null, successful);
+                if (successful) {
+                    manager.getBlobStore().deleteAll();
+                }
+                manager.releaseDb(db);
             }
-            mDbAccessManager.unlockDbForWrite();
+            manager.unlockDbForWrite();
         }
     }
 
@@ -116,94 +718,994 @@ public class Database {
     }
 
     public Observable<Void> saveObjects(final Collection<? extends StoredObject> objects) {
+        return saveObjects(objects, null);
+    }
+
+    /**
+     * Saves the objects with the durability, null falls back to the one declared for their
+     * types, see {@link #setDurability(StoredObject.TYPE, Durability)}.
+     */
+    public Observable<Void> saveObjects(final Collection<? extends StoredObject> objects,
+                                        final Durability durability) {
         return createDbObservable(new Observable.OnSubscribe<Void>() {
             @Override
             public void call(Subscriber<? super Void> subscriber) {
-                saveObjectsSync(objects);
+                saveObjectsSync(objects, durability);
                 subscriber.onNext(null);
                 subscriber.onCompleted();
             }
         });
     }
 
-    private void saveObjectsSync(Collection<? extends StoredObject> objects) {
-        SQLiteDatabase db = null;
-        mDbAccessManager.lockDbForWrite();
-        try {
-            db = mDbAccessManager.getWritableDatabase();
-            if (db != null) {
-                db.beginTransaction();
-            } else {
-                throw new DatabaseException("Database can't be opened for writing");
+    /**
+     * Streams a json array of objects of one type into the database, see
+     * {@link #importObjects(InputStream, Func1, int)}.
+     */
+    public Observable<Integer> importObjects(final InputStream in, final StoredObject.TYPE type) {
+        return importObjects(in, type, DEFAULT_IMPORT_CHUNK_SIZE);
+    }
+
+    public Observable<Integer> importObjects(final InputStream in, final StoredObject.TYPE type,
+                                             final int chunkSize) {
+        return importObjects(in, new Func1<JsonObject, StoredObject.TYPE>() {
+            @Override
+            public StoredObject.TYPE call(JsonObject jsonObject) {
+                return type;
             }
+        }, type, chunkSize);
+    }
 
-            ContentValues contentValues = new ContentValues();
-            ContentValues tagCvs = new ContentValues();
+    /**
+     * Streams a json array of objects into the database, saving every chunkSize objects in
+     * their own transaction. Only one chunk is held in memory and the write lock is released
+     * between chunks. The stream is closed when done.
+     * @param typeResolver maps each array element to the type it should be decoded as
+     * @return emits the total number of objects saved after each chunk
+     */
+    public Observable<Integer> importObjects(final InputStream in,
+                                             final Func1<JsonObject, StoredObject.TYPE> typeResolver,
+                                             final int chunkSize) {
+        return importObjects(in, typeResolver, null, chunkSize);
+    }
 
-            for (StoredObject object : objects) {
-                setStringContentValue(contentValues, ObjectsTableColumn.id,
-                        object.getStoredObjectId());
+    private Observable<Integer> importObjects(final InputStream in,
+                                              final Func1<JsonObject, StoredObject.TYPE> typeResolver,
+                                              final StoredObject.TYPE singleType,
+                                              final int chunkSize) {
+        return createDbObservable(new Observable.OnSubscribe<Integer>() {
+            @Override
+            public void call(Subscriber<? super Integer> subscriber) {
+                JsonReader reader = null;
+                try {
+                    reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+                    JsonParser parser = new JsonParser();
+                    List<StoredObject> chunk = new ArrayList<StoredObject>(chunkSize);
+                    int saved = 0;
+                    reader.beginArray();
+                    while (reader.hasNext() && !subscriber.isUnsubscribed()) {
+                        StoredObject object;
+                        if (singleType != null) {
+                            // No need for the intermediate tree when the type is known upfront
+                            object = readObject(singleType, reader);
+                        } else {
+                            JsonObject json = parser.parse(reader).getAsJsonObject();
+                            object = GSON.fromJson(json, (Type) typeResolver.call(json).getTypeClass());
+                        }
+                        chunk.add(object);
+                        if (chunk.size() >= chunkSize) {
+                            saveObjectsSync(chunk);
+                            saved += chunk.size();
+                            chunk.clear();
+                            subscriber.onNext(saved);
+                        }
+                    }
+                    if (chunk.size() > 0 && !subscriber.isUnsubscribed()) {
+                        saveObjectsSync(chunk);
+                        saved += chunk.size();
+                        subscriber.onNext(saved);
+                    }
+                    subscriber.onCompleted();
+                } catch (Exception e) {
+                    Timber.e("Error when importing objects: " + e.getMessage());
+                    subscriber.onError(e);
+                } finally {
+                    try {
+                        if (reader != null) {
+                            reader.close();
+                        } else {
+                            in.close();
+                        }
+                    } catch (IOException e) {
+                        Timber.e("Unable to close import stream: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
 
-                setStringContentValue(contentValues, ObjectsTableColumn.type,
-                        object.getStoredObjectType().getTypeName());
+    /**
+     * Saves the objects of a stream as they arrive, see
+     * {@link #saveAll(Observable, int, long, long)}.
+     */
+    public Observable<Integer> saveAll(Observable<? extends StoredObject> objects) {
+        return saveAll(objects, DEFAULT_IMPORT_CHUNK_SIZE, DEFAULT_SAVE_BATCH_BYTES,
+                DEFAULT_SAVE_BATCH_DELAY_MS);
+    }
 
-                setStringContentValue(contentValues, ObjectsTableColumn.json,
-                        GSON.toJson(object));
+    /**
+     * Saves the objects of a stream as they arrive, in batches of their own transaction. A
+     * batch is committed once it holds maxBatchSize objects or maxBatchBytes of json, or
+     * maxBatchDelayMillis after its first object, and when the stream ends. At most
+     * maxBatchSize objects are requested ahead, sources that don't support backpressure
+     * wait while a batch is written. A failed write ends the stream with the error, objects
+     * of earlier batches stay saved.
+     * @return emits the number of objects of each committed batch
+     */
+    public Observable<Integer> saveAll(final Observable<? extends StoredObject> objects,
+                                       final int maxBatchSize, final long maxBatchBytes,
+                                       final long maxBatchDelayMillis) {
+        return createDbObservable(new Observable.OnSubscribe<Integer>() {
+            @Override
+            public void call(Subscriber<? super Integer> subscriber) {
+                StreamingSave sink = new StreamingSave(subscriber, Math.max(1, maxBatchSize),
+                        maxBatchBytes, maxBatchDelayMillis);
+                subscriber.add(sink);
+                objects.subscribe(sink);
+            }
+        });
+    }
 
-                Long ts = object.getStoredObjectTimestampMillis();
-                Long msTs = (ts == null || ts == 0) ? System.currentTimeMillis()
-                        : ts;
-                contentValues.put(ObjectsTableColumn.ts.name(), msTs);
+    /**
+     * Collects the objects of a stream into batches, see
+     * {@link #saveAll(Observable, int, long, long)}. Objects are encoded as they arrive,
+     * batches are written on the thread that completes them, the stream's or the timer's.
+     */
+    private final class StreamingSave extends Subscriber<StoredObject> {
+        private final Subscriber<? super Integer> acks;
+        private final int maxBatchSize;
+        private final long maxBatchBytes;
+        private final long maxBatchDelayMillis;
+        private final Scheduler.Worker timer = Schedulers.io().createWorker();
+        private List<StoredObject> batch = new ArrayList<StoredObject>();
+        private List<String> jsons = new ArrayList<String>();
+        private long batchBytes;
+        /** Lets a timer tell whether the batch it was started for is still open **/
+        private long batchNumber;
+        private boolean done;
+
+        StreamingSave(Subscriber<? super Integer> acks, int maxBatchSize, long maxBatchBytes,
+                      long maxBatchDelayMillis) {
+            this.acks = acks;
+            this.maxBatchSize = maxBatchSize;
+            this.maxBatchBytes = maxBatchBytes;
+            this.maxBatchDelayMillis = maxBatchDelayMillis;
+            add(timer);
+        }
 
-                db.insertWithOnConflict(
-                        DatabaseSchema.OBJECTS_TABLE, null, contentValues,
-                        SQLiteDatabase.CONFLICT_REPLACE);
+        @Override
+        public void onStart() {
+            request(maxBatchSize);
+        }
 
-                //Delete old tags
-                String[] whereArgs = new String[]{object.getStoredObjectType().getTypeName(),
-                    object.getStoredObjectId()};
-                db.delete(DatabaseSchema.TAGS_TABLE,
-                        StringUtil.concat(TagsTableColumn.type, "= ?",
-                        " AND ", TagsTableColumn.id, "= ?"),
-                        whereArgs);
-                //Add new tags
-                List<SearchableTagValuePair> tags = object.getStoredObjectSearchableTags();
-                if (tags != null && tags.size() > 0) {
-                    for (SearchableTagValuePair pair: tags) {
-                        setStringContentValue(tagCvs, TagsTableColumn.id, object.getStoredObjectId());
-                        setStringContentValue(tagCvs, TagsTableColumn.type, object.getStoredObjectType().getTypeName());
-                        setStringContentValue(tagCvs, TagsTableColumn.tag, pair.key);
-                        setStringContentValue(tagCvs, TagsTableColumn.value, pair.value);
-                        db.insertWithOnConflict(DatabaseSchema.TAGS_TABLE, null, tagCvs,
-                                SQLiteDatabase.CONFLICT_REPLACE);
-                    }
+        @Override
+        public void onNext(StoredObject object) {
+            int saved = 0;
+            synchronized (this) {
+                if (done) return;
+                String json = encodeObject(object);
+                if (batch.isEmpty()) {
+                    scheduleFlush(batchNumber);
+                }
+                batch.add(object);
+                jsons.add(json);
+                batchBytes += json.length();
+                if (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes) {
+                    saved = flush();
                 }
             }
-            db.setTransactionSuccessful();
-        } catch (Exception e) {
-            Timber.e("Error when storing object:\n" + e.getMessage());
-        } finally {
-            if (db != null) {
-                db.endTransaction();
-                db.close();
+            // Outside the lock, the source may emit the next objects right away
+            if (saved > 0) {
+                request(saved);
             }
-            mDbAccessManager.unlockDbForWrite();
         }
-    }
 
-    /**
+        private void scheduleFlush(final long number) {
+            timer.schedule(new Action0() {
+                @Override
+                public void call() {
+                    int saved = 0;
+                    synchronized (StreamingSave.this) {
+                        if (!done && batchNumber == number && !batch.isEmpty()) {
+                            saved = flush();
+                        }
+                    }
+                    if (saved > 0) {
+                        request(saved);
+                    }
+                }
+            }, maxBatchDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /** @return the number of objects saved, 0 if the write failed **/
+        private int flush() {
+            int size = batch.size();
+            try {
+                saveEncodedObjectsSync(batch, jsons);
+            } catch (Exception e) {
+                Timber.e("Error when storing object:\n" + e.getMessage());
+                finish(e);
+                return 0;
+            }
+            batch = new ArrayList<StoredObject>();
+            jsons = new ArrayList<String>();
+            batchBytes = 0;
+            batchNumber++;
+            acks.onNext(size);
+            return size;
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            if (done) return;
+            if (!batch.isEmpty()) {
+                flush();
+            }
+            finish(null);
+        }
+
+        @Override
+        public synchronized void onError(Throwable e) {
+            if (done) return;
+            if (!batch.isEmpty()) {
+                flush();
+            }
+            finish(e);
+        }
+
+        private void finish(Throwable error) {
+            if (done) return;
+            done = true;
+            unsubscribe();
+            if (error != null) {
+                acks.onError(error);
+            } else {
+                acks.onCompleted();
+            }
+        }
+    }
+
+    /**
+     * Writes the objects of a type, oldest first, as a json array that
+     * {@link #importObjects(InputStream, StoredObject.TYPE)} can read back. Rows are
+     * streamed from the cursor without being decoded. The stream is closed when done.
+     * @return emits the number of objects exported
+     */
+    public Observable<Integer> exportObjects(final StoredObject.TYPE type, final OutputStream out) {
+        return createDbObservable(new Observable.OnSubscribe<Integer>() {
+            @Override
+            public void call(Subscriber<? super Integer> subscriber) {
+                try {
+                    subscriber.onNext(exportObjectsSync(type, out));
+                    subscriber.onCompleted();
+                } catch (Exception e) {
+                    Timber.e("Error when exporting objects: " + e.getMessage());
+                    subscriber.onError(e);
+                }
+            }
+        });
+    }
+
+    private int exportObjectsSync(StoredObject.TYPE type, OutputStream out) throws IOException {
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        StorageCursor cursor = null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        manager.lockTypesForRead(type.getTypeName());
+        try {
+            db = manager.getReadableDatabase();
+            if (db == null) throw new IOException("Database can't be opened for reading");
+            String sql = DatabaseSchema.buildQuery(false, DatabaseSchema.OBJECTS_TABLE,
+                    new String[]{ObjectsTableColumn.json.name()},
+                    StringUtil.concat(ObjectsTableColumn.type, "=?"), null, null,
+                    StringUtil.concat(ObjectsTableColumn.ts, " ", SORT_ORDER.ASC), null);
+            cursor = db.rawQuery(sql, new String[]{type.getTypeName()});
+            int count = 0;
+            writer.write('[');
+            BlobStore blobs = manager.getBlobStore();
+            while (cursor.moveToNext()) {
+                if (count > 0) writer.write(',');
+                String json = cursor.getString(0);
+                if (BlobStore.isReference(json)) {
+                    Reader reader = blobs.open(json);
+                    try {
+                        FileUtil.copy(reader, writer);
+                    } finally {
+                        reader.close();
+                    }
+                } else {
+                    writer.write(json);
+                }
+                count++;
+            }
+            writer.write(']');
+            return count;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            manager.releaseDb(db);
+            manager.unlockTypesForRead(type.getTypeName());
+            writer.close();
+        }
+    }
+
+    /**
+     * Gives the space left by deletes back to the file system and refreshes the query
+     * planner's statistics, in steps that each start only while no operation is running
+     * and free at most pagesPerStep pages. Meant to be run when the app is idle, e.g. in
+     * the background; gives up once maxDurationMillis have passed, the next run picks up
+     * where it left off.
+     */
+    public Observable<MaintenanceReport> runMaintenance(final int pagesPerStep,
+                                                        final long maxDurationMillis) {
+        return createDbObservable(new Observable.OnSubscribe<MaintenanceReport>() {
+            @Override
+            public void call(Subscriber<? super MaintenanceReport> subscriber) {
+                Maintenance maintenance = new Maintenance(pagesPerStep, maxDurationMillis);
+                try {
+                    for (DatabaseAccessManager manager : getAccessManagers()) {
+                        if (!maintenance.run(manager)) break;
+                    }
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    Timber.e("Error during maintenance: " + e.getMessage());
+                    subscriber.onError(e);
+                    return;
+                }
+                MaintenanceReport report = maintenance.getReport();
+                Timber.d("Maintenance: " + report);
+                subscriber.onNext(report);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * Writes a consistent copy of the database file to destination. Writes are held off
+     * while the wal is checkpointed and the file copied; on a database that fits on a phone
+     * that takes milliseconds. Shards, if any, are separate files and are not included.
+     */
+    public Observable<File> snapshot(final File destination) {
+        return createDbObservable(new Observable.OnSubscribe<File>() {
+            @Override
+            public void call(Subscriber<? super File> subscriber) {
+                try {
+                    snapshotSync(destination);
+                    subscriber.onNext(destination);
+                    subscriber.onCompleted();
+                } catch (Exception e) {
+                    Timber.e("Error when taking a snapshot: " + e.getMessage());
+                    subscriber.onError(e);
+                }
+            }
+        });
+    }
+
+    private void snapshotSync(File destination) throws IOException {
+        StorageConnection db = null;
+        mDbAccessManager.lockDbForWrite();
+        try {
+            db = mDbAccessManager.getWritableDatabase();
+            if (db == null) throw new IOException("Database can't be opened");
+            // Move everything committed into the main file so copying it is enough
+            StorageCursor cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // run the checkpoint to completion
+                }
+            } finally {
+                cursor.close();
+            }
+            FileUtil.copyAtomically(mDbAccessManager.getBackend().getDatabaseFile(), destination);
+            FileUtil.copyMissingFiles(mDbAccessManager.getBlobStore().getDirectory(),
+                    new File(destination.getPath() + BlobStore.DIRECTORY_SUFFIX));
+        } finally {
+            mDbAccessManager.releaseDb(db);
+            mDbAccessManager.unlockDbForWrite();
+        }
+    }
+
+    /**
+     * Replaces the database with a snapshot taken by {@link #snapshot(File)}, e.g. a
+     * prebuilt cache shipped with the app. The snapshot is copied next to the database
+     * first, then swapped in with a rename while no operation is running, so the database
+     * is never seen half restored.
+     */
+    public Observable<Void> restore(final File snapshot) {
+        return createDbObservable(new Observable.OnSubscribe<Void>() {
+            @Override
+            public void call(Subscriber<? super Void> subscriber) {
+                try {
+                    restoreSync(snapshot);
+                    subscriber.onNext(null);
+                    subscriber.onCompleted();
+                } catch (Exception e) {
+                    Timber.e("Error when restoring a snapshot: " + e.getMessage());
+                    subscriber.onError(e);
+                }
+            }
+        });
+    }
+
+    private void restoreSync(File snapshot) throws IOException {
+        if (!FileUtil.isSqliteFile(snapshot)) {
+            throw new IOException(snapshot + " is not a sqlite database");
+        }
+        StorageBackend backend = mDbAccessManager.getBackend();
+        File databaseFile = backend.getDatabaseFile();
+        File staged = new File(databaseFile.getPath() + ".restore");
+        // The slow part happens before taking the lock. Payload files are content addressed
+        // so adding the snapshot's to the current ones is safe, unused ones are swept later.
+        FileUtil.copyAtomically(snapshot, staged);
+        FileUtil.copyMissingFiles(new File(snapshot.getPath() + BlobStore.DIRECTORY_SUFFIX),
+                mDbAccessManager.getBlobStore().getDirectory());
+        mDbAccessManager.lockDbForWrite();
+        try {
+            backend.close();
+            clearCaches();
+            FileUtil.deleteSqliteSideFiles(databaseFile);
+            if (!staged.renameTo(databaseFile)) {
+                throw new IOException("Unable to move " + staged + " to " + databaseFile);
+            }
+            // The snapshot may have hot tags this instance hasn't seen
+            mStoredTagIndexes.remove(mDbAccessManager);
+            if (!mTagIndexes.isEmpty()) {
+                // The snapshot may predate some hot tags
+                StorageConnection db = mDbAccessManager.getWritableDatabase();
+                if (db == null) throw new IOException("Database can't be opened");
+                long transactionStart = System.nanoTime();
+                boolean successful = false;
+                Map<String, Map<String, SqliteType>> stored;
+                mDbAccessManager.beginTransaction(db, null);
+                try {
+                    createTagIndexes(mDbAccessManager, db);
+                    stored = TagIndex.readAll(db);
+                    db.setTransactionSuccessful();
+                    successful = true;
+                } finally {
+                    endTransaction(mDbAccessManager, db, transactionStart, null, successful);
+                    mDbAccessManager.releaseDb(db);
+                }
+                // Types already registered aren't read again, they take the snapshot's hot
+                // tags along with their own
+                mStoredTagIndexes.put(mDbAccessManager, stored);
+                for (TagIndex index : mTagIndexes.values()) {
+                    StoredObject.TYPE type = index.getStoredObjectType();
+                    Map<String, SqliteType> tags = stored.get(type.getTypeName());
+                    if (managerFor(type) == mDbAccessManager && tags != null) {
+                        mTagIndexes.put(type.getTypeName(), new TagIndex(type, tags));
+                    }
+                }
+            }
+        } finally {
+            staged.delete();
+            mDbAccessManager.unlockDbForWrite();
+        }
+    }
+
+    /**
+     * Deletes payload files no object references anymore. Files are normally deleted with
+     * the last object using them, this catches the ones left behind by a crash or a
+     * restore. Blocks every other operation while it runs.
+     * @return emits the number of files deleted
+     */
+    public Observable<Integer> sweepExternalFiles() {
+        return createDbObservable(new Observable.OnSubscribe<Integer>() {
+            @Override
+            public void call(Subscriber<? super Integer> subscriber) {
+                int deleted = 0;
+                for (DatabaseAccessManager manager : getAccessManagers()) {
+                    deleted += sweepExternalFilesSync(manager);
+                }
+                subscriber.onNext(deleted);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    private int sweepExternalFilesSync(DatabaseAccessManager manager) {
+        StorageConnection db = null;
+        manager.lockDbForWrite();
+        try {
+            db = manager.getWritableDatabase();
+            if (db == null) return 0;
+            return manager.getBlobStore().sweep(db);
+        } catch (Exception e) {
+            Timber.e("Error when sweeping payload files: " + e.getMessage());
+            return 0;
+        } finally {
+            manager.releaseDb(db);
+            manager.unlockDbForWrite();
+        }
+    }
+
+    private void saveObjectsSync(Collection<? extends StoredObject> objects) {
+        saveObjectsSync(objects, null);
+    }
+
+    private void saveObjectsSync(Collection<? extends StoredObject> objects, Durability durability) {
+        if (mShardingPolicy == null) {
+            saveObjectsSync(mDbAccessManager, objects, durability);
+            return;
+        }
+        Map<DatabaseAccessManager, List<StoredObject>> byShard =
+                new LinkedHashMap<DatabaseAccessManager, List<StoredObject>>();
+        for (StoredObject object : objects) {
+            DatabaseAccessManager manager = managerFor(object.getStoredObjectType());
+            List<StoredObject> shardObjects = byShard.get(manager);
+            if (shardObjects == null) {
+                shardObjects = new ArrayList<StoredObject>();
+                byShard.put(manager, shardObjects);
+            }
+            shardObjects.add(object);
+        }
+        for (Map.Entry<DatabaseAccessManager, List<StoredObject>> entry : byShard.entrySet()) {
+            saveObjectsSync(entry.getKey(), entry.getValue(), durability);
+        }
+    }
+
+    private void saveObjectsSync(DatabaseAccessManager manager,
+                                 Collection<? extends StoredObject> objects,
+                                 Durability durability) {
+        try {
+            saveObjectsSync(manager, objects, null, durability);
+        } catch (Exception e) {
+            Timber.e("Error when storing object:\n" + e.getMessage());
+        }
+    }
+
+    /** Objects already encoded, in the same order and possibly in several shards **/
+    private void saveEncodedObjectsSync(List<StoredObject> objects, List<String> jsons)
+            throws DatabaseException {
+        if (mShardingPolicy == null) {
+            saveObjectsSync(mDbAccessManager, objects, jsons, null);
+            return;
+        }
+        Map<DatabaseAccessManager, List<Integer>> byShard =
+                new LinkedHashMap<DatabaseAccessManager, List<Integer>>();
+        for (int i = 0; i < objects.size(); i++) {
+            DatabaseAccessManager manager = managerFor(objects.get(i).getStoredObjectType());
+            List<Integer> indexes = byShard.get(manager);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byShard.put(manager, indexes);
+            }
+            indexes.add(i);
+        }
+        for (Map.Entry<DatabaseAccessManager, List<Integer>> entry : byShard.entrySet()) {
+            List<StoredObject> shardObjects = new ArrayList<StoredObject>(entry.getValue().size());
+            List<String> shardJsons = new ArrayList<String>(entry.getValue().size());
+            for (int i : entry.getValue()) {
+                shardObjects.add(objects.get(i));
+                shardJsons.add(jsons.get(i));
+            }
+            saveObjectsSync(entry.getKey(), shardObjects, shardJsons, null);
+        }
+    }
+
+    /**
+     * @param jsons already encoded objects, in the same order, or null to encode them here
+     */
+    private void saveObjectsSync(DatabaseAccessManager manager,
+                                 Collection<? extends StoredObject> objects,
+                                 List<String> jsons, Durability durability)
+            throws DatabaseException {
+        StorageConnection db = null;
+        long start = System.nanoTime();
+        long transactionStart = 0;
+        BlobStore.Release release = null;
+        boolean successful = false;
+        String[] typeNames = typeNames(objects);
+        durability = durabilityFor(typeNames, durability);
+        manager.lockTypesForWrite(typeNames);
+        try {
+            db = manager.getWritableDatabase();
+            if (db != null) {
+                manager.beginTransaction(db, durability);
+                transactionStart = System.nanoTime();
+            } else {
+                throw new DatabaseException("Database can't be opened for writing");
+            }
+            release = manager.getBlobStore().beginRelease();
+            saveObjectsInTransaction(db, objects, jsons, release);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            if (db != null) {
+                endTransaction(manager, db, transactionStart, durability, successful);
+                if (successful) {
+                    release.finish();
+                } else if (release != null) {
+                    release.abort();
+                }
+                manager.releaseDb(db);
+            }
+            manager.unlockTypesForWrite(typeNames);
+            recordOperation(DatabaseMetrics.Operation.SAVE, commonType(objects), start,
+                    objects.size());
+        }
+        manager.onCommitted(durability);
+    }
+
+    /**
+     * Writes the objects and their tags. The caller holds the write locks of their types
+     * and a transaction on db.
+     */
+    private void saveObjectsInTransaction(StorageConnection db,
+                                          Collection<? extends StoredObject> objects,
+                                          BlobStore.Release release) {
+        saveObjectsInTransaction(db, objects, null, release);
+    }
+
+    /**
+     * @param jsons already encoded objects, in the same order, or null to encode them here
+     * @param release collects the payload files the replaced rows no longer reference
+     */
+    private void saveObjectsInTransaction(StorageConnection db,
+                                          Collection<? extends StoredObject> objects,
+                                          List<String> jsons, BlobStore.Release release) {
+        BlobStore blobs = release.getStore();
+        if (blobs.hasFiles()) {
+            Map<String, List<String>> idsByType = new HashMap<String, List<String>>();
+            for (StoredObject object : objects) {
+                addToGroup(idsByType, object.getStoredObjectType().getTypeName(),
+                        object.getStoredObjectId());
+            }
+            releaseBlobs(db, idsByType, release);
+        }
+        int threshold = mExternalStorageThreshold;
+        StorageStatement insertObject = db.compileStatement(DatabaseSchema.INSERT_OBJECT);
+        StorageStatement deleteTags = db.compileStatement(DatabaseSchema.DELETE_TAGS);
+        StorageStatement insertTag = db.compileStatement(DatabaseSchema.INSERT_TAG);
+        TagWriter tagWriter = new TagWriter(insertTag);
+        Map<TagIndex, StorageStatement> upsertHotTags = new HashMap<TagIndex, StorageStatement>();
+        ObjectCache cache = mObjectCache;
+        Map<String, StoredObject.TYPE> savedTypes = new HashMap<String, StoredObject.TYPE>();
+        ChangeLog changeLog = mChangeLog;
+        ChangeLog.Writer changes = changeLog != null ? changeLog.begin(db) : null;
+        try {
+            int i = 0;
+            for (StoredObject object : objects) {
+                String json = jsons != null ? jsons.get(i++) : encodeObject(object);
+                if (threshold >= 0 && json.length() > threshold) {
+                    json = writeBlob(release, json);
+                    BlobStore.addRef(db, json);
+                }
+                String id = object.getStoredObjectId();
+                String typeName = object.getStoredObjectType().getTypeName();
+                Long ts = object.getStoredObjectTimestampMillis();
+                long msTs = (ts == null || ts == 0) ? System.currentTimeMillis()
+                        : ts;
+
+                insertObject.bindString(1, id);
+                insertObject.bindString(2, typeName);
+                insertObject.bindString(3, json);
+                insertObject.bindLong(4, msTs);
+                insertObject.execute();
+                if (cache != null) {
+                    cache.invalidate(typeName, id);
+                }
+                savedTypes.put(typeName, object.getStoredObjectType());
+                if (changes != null) {
+                    changes.record(typeName, id, Change.Op.SAVE);
+                }
+
+                //Delete old tags
+                deleteTags.bindString(1, typeName);
+                deleteTags.bindString(2, id);
+                deleteTags.execute();
+                //Add new tags, hot ones go to their columns
+                TagIndex index = mTagIndexes.get(typeName);
+                tagWriter.begin(id, typeName, index);
+                StoredObjectCodec<StoredObject> codec = codecFor(object.getStoredObjectType());
+                if (codec != null) {
+                    codec.emitTags(object, tagWriter);
+                } else {
+                    List<SearchableTagValuePair> tags = object.getStoredObjectSearchableTags();
+                    if (tags != null) {
+                        for (SearchableTagValuePair pair : tags) {
+                            tagWriter.tag(pair.key, pair.value);
+                        }
+                    }
+                }
+                if (index != null) {
+                    StorageStatement upsert = upsertHotTags.get(index);
+                    if (upsert == null) {
+                        upsert = db.compileStatement(index.getUpsertSql());
+                        upsertHotTags.put(index, upsert);
+                    }
+                    tagWriter.bindHotValues(upsert);
+                    upsert.execute();
+                }
+            }
+            if (!mMaxObjects.isEmpty()) {
+                for (StoredObject.TYPE type : savedTypes.values()) {
+                    deleteBeyondMaxObjects(db, type, release);
+                }
+            }
+            BlobStore.collectUnreferenced(db, release);
+            for (String typeName : savedTypes.keySet()) {
+                invalidateResults(typeName);
+            }
+            if (changes != null) {
+                changes.finish();
+            }
+        } finally {
+            if (changes != null) {
+                changes.close();
+            }
+            insertObject.close();
+            deleteTags.close();
+            insertTag.close();
+            for (StorageStatement upsert : upsertHotTags.values()) {
+                upsert.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the objects of a capped type older than its newest maxObjects, found through
+     * the (type, ts) index. The caller holds the type's write lock and a transaction on db.
+     */
+    private void deleteBeyondMaxObjects(StorageConnection db, StoredObject.TYPE type,
+                                        BlobStore.Release release) {
+        Integer maxObjects = mMaxObjects.get(type.getTypeName());
+        if (maxObjects == null) return;
+        List<String> ids = new ArrayList<String>();
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", ObjectsTableColumn.id,
+                " FROM ", DatabaseSchema.OBJECTS_TABLE, " WHERE ", ObjectsTableColumn.type, " = ?",
+                " ORDER BY ", ObjectsTableColumn.ts, " DESC LIMIT -1 OFFSET ", maxObjects),
+                new String[]{type.getTypeName()});
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.isEmpty()) return;
+        StoredObject.TYPE[] types = new StoredObject.TYPE[ids.size()];
+        Arrays.fill(types, type);
+        deleteObjectsInTransaction(db, types, ids.toArray(new String[ids.size()]), release);
+    }
+
+    /**
+     * Writes the tags of the object being saved, to the tags table or, for hot tags, to the
+     * values bound to the upsert of its idx_ row. Reused for every object of a save. A hot
+     * tag holds a single value, emitting a second one fails the save.
+     */
+    private static class TagWriter implements TagSink {
+        private final StorageStatement insertTag;
+        private String id;
+        private String typeName;
+        private TagIndex index;
+        private String[] hotStrings = new String[0];
+        private long[] hotLongs = new long[0];
+        private boolean[] hotIsLong = new boolean[0];
+        private boolean[] hotIsSet = new boolean[0];
+
+        TagWriter(StorageStatement insertTag) {
+            this.insertTag = insertTag;
+        }
+
+        void begin(String id, String typeName, TagIndex index) {
+            this.id = id;
+            this.typeName = typeName;
+            this.index = index;
+            int hotTags = index == null ? 0 : index.getTags().size();
+            if (hotStrings.length != hotTags) {
+                hotStrings = new String[hotTags];
+                hotLongs = new long[hotTags];
+                hotIsLong = new boolean[hotTags];
+                hotIsSet = new boolean[hotTags];
+            } else {
+                Arrays.fill(hotStrings, null);
+                Arrays.fill(hotIsLong, false);
+                Arrays.fill(hotIsSet, false);
+            }
+        }
+
+        /** @return the position of the hot tag, -1 if the tag isn't hot **/
+        private int hotPosition(String key) {
+            int hot = index == null ? -1 : index.indexOf(key);
+            if (hot < 0) return -1;
+            if (hotIsSet[hot]) {
+                throw new StorageException(StringUtil.concat("Hot tag ", key,
+                        " has more than one value for ", typeName, " ", id), null);
+            }
+            hotIsSet[hot] = true;
+            return hot;
+        }
+
+        @Override
+        public void tag(String key, String value) {
+            int hot = hotPosition(key);
+            if (hot >= 0) {
+                hotStrings[hot] = value;
+                hotIsLong[hot] = false;
+                return;
+            }
+            insertTag.bindString(1, id);
+            insertTag.bindString(2, typeName);
+            insertTag.bindString(3, key);
+            insertTag.bindString(4, value);
+            insertTag.execute();
+        }
+
+        @Override
+        public void tag(String key, long value) {
+            int hot = hotPosition(key);
+            if (hot >= 0) {
+                hotLongs[hot] = value;
+                hotIsLong[hot] = true;
+                return;
+            }
+            insertTag.bindString(1, id);
+            insertTag.bindString(2, typeName);
+            insertTag.bindString(3, key);
+            // Stored as text by the column's affinity, same as String.valueOf(value)
+            insertTag.bindLong(4, value);
+            insertTag.execute();
+        }
+
+        /** Binds the id then the hot values, in the order of the index's upsert **/
+        void bindHotValues(StorageStatement upsert) {
+            upsert.bindString(1, id);
+            for (int hot = 0; hot < hotStrings.length; hot++) {
+                if (hotIsLong[hot]) {
+                    upsert.bindLong(hot + 2, hotLongs[hot]);
+                } else {
+                    upsert.bindString(hot + 2, hotStrings[hot]);
+                }
+            }
+        }
+    }
+
+    private static String writeBlob(BlobStore.Release release, String json) {
+        try {
+            return release.getStore().write(json, release);
+        } catch (IOException e) {
+            throw new StorageException("Unable to write payload file", e);
+        }
+    }
+
+    private static void addToGroup(Map<String, List<String>> groups, String key, String value) {
+        List<String> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<String>();
+            groups.put(key, group);
+        }
+        group.add(value);
+    }
+
+    private static void deleteHotTags(StorageConnection db, TagIndex index, List<String> ids) {
+        for (int offset = 0; offset < ids.size(); offset += MAX_IDS_PER_STATEMENT) {
+            List<String> batch = ids.subList(offset, Math.min(offset + MAX_IDS_PER_STATEMENT, ids.size()));
+            db.delete(index.getTable(), StringUtil.concat(ObjectsTableColumn.id, " IN (",
+                    StringUtil.repeat("?", ",", batch.size()), ")"),
+                    batch.toArray(new String[batch.size()]));
+        }
+    }
+
+    /**
+     * Drops the references the stored rows of the given ids hold on payload files
+     */
+    private void releaseBlobs(StorageConnection db, Map<String, List<String>> idsByType,
+                              BlobStore.Release release) {
+        for (Map.Entry<String, List<String>> entry : idsByType.entrySet()) {
+            List<String> ids = entry.getValue();
+            for (int offset = 0; offset < ids.size(); offset += MAX_IDS_PER_STATEMENT) {
+                List<String> batch = ids.subList(offset,
+                        Math.min(offset + MAX_IDS_PER_STATEMENT, ids.size()));
+                String[] args = new String[batch.size() + 1];
+                args[0] = entry.getKey();
+                for (int i = 0; i < batch.size(); i++) {
+                    args[i + 1] = batch.get(i);
+                }
+                releaseBlobs(db, StringUtil.concat(ObjectsTableColumn.type, "=? AND ",
+                        ObjectsTableColumn.id, " IN (", StringUtil.repeat("?", ",", batch.size()), ")"),
+                        args, release);
+            }
+        }
+    }
+
+    private void releaseBlobs(StorageConnection db, String selection, String[] args,
+                              BlobStore.Release release) {
+        String sql = DatabaseSchema.buildQuery(false, DatabaseSchema.OBJECTS_TABLE,
+                new String[]{ObjectsTableColumn.json.name()},
+                StringUtil.concat(selection, " AND ", ObjectsTableColumn.json, " LIKE '",
+                        BlobStore.REFERENCE_PREFIX, "%'"),
+                null, null, null, null);
+        StorageCursor cursor = db.rawQuery(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                BlobStore.removeRef(db, cursor.getString(0), release);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** The type all objects share or null if there are several **/
+    private static StoredObject.TYPE commonType(Collection<? extends StoredObject> objects) {
+        StoredObject.TYPE type = null;
+        for (StoredObject object : objects) {
+            if (type == null) {
+                type = object.getStoredObjectType();
+            } else if (type != object.getStoredObjectType()) {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    private static StoredObject.TYPE commonType(StoredObject.TYPE[] types) {
+        StoredObject.TYPE common = types.length > 0 ? types[0] : null;
+        for (StoredObject.TYPE type : types) {
+            if (type != common) {
+                return null;
+            }
+        }
+        return common;
+    }
+
+    private static String[] typeNames(Collection<? extends StoredObject> objects) {
+        Set<String> typeNames = new HashSet<String>();
+        for (StoredObject object : objects) {
+            typeNames.add(object.getStoredObjectType().getTypeName());
+        }
+        return typeNames.toArray(new String[typeNames.size()]);
+    }
+
+    private static String[] typeNames(StoredObject.TYPE[] types) {
+        String[] typeNames = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            typeNames[i] = types[i].getTypeName();
+        }
+        return typeNames;
+    }
+
+    /**
      * Load objects in descending order by timestamp
      * @param type
      * @param <T>
      * @return
      */
     private  <T extends StoredObject> List<T> loadObjects(StoredObject.TYPE type, String order,
-                                                          int limit, Long before, Long after) {
-        SQLiteDatabase db = null;
-        Cursor cursor = null;
-        mDbAccessManager.lockDbForRead();
+                                                          int limit, Long before, Long after,
+                                                          LoadTally tally) {
+        return loadObjects(type, order, limit, before, after, null, tally);
+    }
+
+    /**
+     * @param cache if not null the loaded objects are also put in the cache
+     * @param tally if not null counts the json characters loaded
+     */
+    private  <T extends StoredObject> List<T> loadObjects(StoredObject.TYPE type, String order,
+                                                          int limit, Long before, Long after,
+                                                          ObjectCache cache, LoadTally tally) {
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        StorageCursor cursor = null;
+        ParallelDecoder parallel = mParallelDecoder;
+        ParallelDecoder.Batch deferred = null;
+        long generation = 0;
+        List<T> storedObjects;
+        long lockWait = manager.lockTypesForRead(type.getTypeName());
         try {
-            db = mDbAccessManager.getReadableDatabase();
+            db = manager.getReadableDatabase();
             if (db == null) return null;
             String[] columns = new String[]{
                     ObjectsTableColumn.id.name(),
@@ -226,124 +1728,404 @@ public class Database {
                         append(">=?");
                 selectionArgs.add(after.toString());
             }
-            cursor = db.query(
+            String sql = DatabaseSchema.buildQuery(
+                    false,
                     DatabaseSchema.OBJECTS_TABLE,
                     columns,
                     selection.toString(),
-                    selectionArgs.toArray(new String[selectionArgs.size()]),
                     null,
                     null,
                     order,
                     limit > 0 ? String.valueOf(limit) : null);
-
-            List<T> storedObjects = new ArrayList<T>();
-            if (cursor.moveToFirst()) {
-                do {
-                    String jsonString = cursor.getString(2);
-                    storedObjects.add((T) GSON.fromJson(jsonString, type.getTypeClass()));
-                } while (cursor.moveToNext());
+            String[] args = selectionArgs.toArray(new String[selectionArgs.size()]);
+
+            long queryStart = System.nanoTime();
+            cursor = db.rawQuery(sql, args);
+            storedObjects = new ArrayList<T>();
+            long decodeNanos = 0;
+            ParallelDecoder.Batch batch = parallel == null ? null : new ParallelDecoder.Batch();
+            while (cursor.moveToNext()) {
+                String jsonString = cursor.getString(2);
+                long chars = charsOf(type, jsonString);
+                if (tally != null) {
+                    tally.chars += chars;
+                }
+                if (batch != null && !BlobStore.isReference(jsonString)) {
+                    // Payload files are read under the lock, a write may delete them after
+                    batch.add(storedObjects.size(), cursor.getString(0), jsonString, cursor.getLong(3));
+                    storedObjects.add(null);
+                    continue;
+                }
+                long decodeStart = System.nanoTime();
+                T storedObject = decodeObject(type, jsonString);
+                storedObjects.add(storedObject);
+                decodeNanos += System.nanoTime() - decodeStart;
+                if (cache != null) {
+                    cache.put(type.getTypeName(), cursor.getString(0),
+                            new ObjectCache.Entry(storedObject, cursor.getLong(3), chars));
+                }
             }
-            return storedObjects;
-
+            long queryNanos = System.nanoTime() - queryStart - decodeNanos;
+            if (batch != null && batch.size() > 0) {
+                if (parallel.isWorthIt(batch)) {
+                    deferred = batch;
+                    generation = cache == null ? 0 : cache.generation(type.getTypeName());
+                } else {
+                    long decodeStart = System.nanoTime();
+                    decodeBatch(type, batch, null, storedObjects, cache, 0, null);
+                    decodeNanos += System.nanoTime() - decodeStart;
+                }
+            }
+            recordIfSlow(db, sql, args, storedObjects.size(), lockWait, queryNanos, decodeNanos);
         } catch (Exception e) {
             Timber.e("Error when fetching stored objects " + e.getMessage());
+            if (tally != null) {
+                tally.failed = true;
+            }
             return new ArrayList<T>();
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            mDbAccessManager.unlockAndCloseDbAfterRead(db);
+            manager.releaseDb(db);
+            manager.unlockTypesForRead(type.getTypeName());
+        }
+        if (deferred != null) {
+            try {
+                decodeBatch(type, deferred, parallel, storedObjects, cache, generation, null);
+            } catch (Exception e) {
+                Timber.e("Error when decoding stored objects " + e.getMessage());
+                if (tally != null) {
+                    tally.failed = true;
+                }
+                return new ArrayList<T>();
+            }
+        }
+        return storedObjects;
+    }
+
+    /**
+     * @param tally if not null counts the json characters loaded
+     */
+    private  <T extends StoredObject> List<T> loadObjects(StoredObject.TYPE type, Collection<String> ids,
+                                                        SORT_ORDER tsOrdering, LoadTally tally) {
+        ObjectCache cache = mObjectCache;
+        List<ObjectCache.Entry> found = null;
+        if (ids == null) {
+            return new ArrayList<T>();
+        }
+        if (cache != null) {
+            found = new ArrayList<ObjectCache.Entry>(ids.size());
+            List<String> missing = new ArrayList<String>();
+            for (String id : new LinkedHashSet<String>(ids)) {
+                ObjectCache.Entry entry = cache.get(type.getTypeName(), id);
+                if (entry == null) {
+                    missing.add(id);
+                } else {
+                    found.add(entry);
+                    if (tally != null) {
+                        tally.chars += entry.chars;
+                    }
+                }
+            }
+            if (missing.isEmpty()) {
+                return fromCacheEntries(found, tsOrdering);
+            }
+            ids = missing;
+        }
+        if (ids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        String orderBy = (tsOrdering == null) ? null :
+                StringUtil.concat(ObjectsTableColumn.ts, " ", tsOrdering);
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        StorageCursor cursor = null;
+        ParallelDecoder parallel = mParallelDecoder;
+        ParallelDecoder.Batch deferred = null;
+        long generation = 0;
+        List<T> storedObjects;
+        // Row timestamps, to merge the results of several statements in order
+        List<Long> timestamps = new ArrayList<Long>(ids.size());
+        long lockWait = manager.lockTypesForRead(type.getTypeName());
+        try {
+            db = manager.getReadableDatabase();
+            if (db == null) return null;
+            String[] columns = new String[]{
+                    ObjectsTableColumn.id.name(),
+                    ObjectsTableColumn.type.name(),
+                    ObjectsTableColumn.json.name(),
+                    ObjectsTableColumn.ts.name()};
+            List<String> idList = new ArrayList<String>(new LinkedHashSet<String>(ids));
+            storedObjects = new ArrayList<T>(idList.size());
+            ParallelDecoder.Batch batch = parallel == null ? null : new ParallelDecoder.Batch();
+            // The ids are bound in chunks to stay under sqlite's variable limit
+            for (int start = 0; start < idList.size(); start += MAX_IDS_PER_STATEMENT) {
+                List<String> chunk = idList.subList(start,
+                        Math.min(idList.size(), start + MAX_IDS_PER_STATEMENT));
+                String selection = StringUtil.concat(ObjectsTableColumn.type.name(), "=? AND ",
+                        ObjectsTableColumn.id.name(), " IN (",
+                        StringUtil.repeat("?", ",", chunk.size()), ")");
+                String[] selectionArgs = new String[chunk.size() + 1];
+                selectionArgs[0] = type.getTypeName();
+                for (int i = 0; i < chunk.size(); i++) {
+                    selectionArgs[i + 1] = chunk.get(i);
+                }
+                String sql = DatabaseSchema.buildQuery(
+                        false,
+                        DatabaseSchema.OBJECTS_TABLE,
+                        columns,
+                        selection,
+                        null,
+                        null,
+                        orderBy,
+                        null);
+
+                long queryStart = System.nanoTime();
+                long decodeNanos = 0;
+                int rows = 0;
+                cursor = db.rawQuery(sql, selectionArgs);
+                while (cursor.moveToNext()) {
+                    rows++;
+                    timestamps.add(cursor.getLong(3));
+                    String json = cursor.getString(2);
+                    long chars = charsOf(type, json);
+                    if (tally != null) {
+                        tally.chars += chars;
+                    }
+                    if (batch != null && !BlobStore.isReference(json)) {
+                        batch.add(storedObjects.size(), cursor.getString(0), json, cursor.getLong(3));
+                        storedObjects.add(null);
+                        continue;
+                    }
+                    long decodeStart = System.nanoTime();
+                    T storedObject = decodeObject(type, json);
+                    decodeNanos += System.nanoTime() - decodeStart;
+                    storedObjects.add(storedObject);
+                    if (found != null) {
+                        // Still under the read lock, no write can have replaced the row yet
+                        ObjectCache.Entry entry = new ObjectCache.Entry(storedObject, cursor.getLong(3), chars);
+                        cache.put(type.getTypeName(), cursor.getString(0), entry);
+                        found.add(entry);
+                    }
+                }
+                cursor.close();
+                cursor = null;
+                long queryNanos = System.nanoTime() - queryStart - decodeNanos;
+                boolean last = start + MAX_IDS_PER_STATEMENT >= idList.size();
+                if (last && batch != null && batch.size() > 0) {
+                    if (parallel.isWorthIt(batch)) {
+                        deferred = batch;
+                        generation = found == null ? 0 : cache.generation(type.getTypeName());
+                    } else {
+                        // The rows of every statement decode at once, timed with the last one
+                        long decodeStart = System.nanoTime();
+                        decodeBatch(type, batch, null, storedObjects, found == null ? null : cache, 0, found);
+                        decodeNanos += System.nanoTime() - decodeStart;
+                    }
+                }
+                recordIfSlow(db, sql, selectionArgs, rows, lockWait, queryNanos, decodeNanos);
+                // Only the first statement waited on the lock
+                lockWait = 0;
+            }
+        } catch (Exception e) {
+            Timber.e("Unable to fetch stored object: " + e.getMessage());
+            if (tally != null) {
+                tally.failed = true;
+            }
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            manager.releaseDb(db);
+            manager.unlockTypesForRead(type.getTypeName());
+        }
+        if (deferred != null) {
+            try {
+                decodeBatch(type, deferred, parallel, storedObjects, found == null ? null : cache,
+                        generation, found);
+            } catch (Exception e) {
+                Timber.e("Unable to decode stored objects: " + e.getMessage());
+                if (tally != null) {
+                    tally.failed = true;
+                }
+                return null;
+            }
+        }
+        if (found != null) {
+            return fromCacheEntries(found, tsOrdering);
+        }
+        if (tsOrdering != null && ids.size() > MAX_IDS_PER_STATEMENT) {
+            return sortByTs(storedObjects, timestamps, tsOrdering);
+        }
+        return storedObjects;
+    }
+
+    /** Orders objects by their timestamps, for results merged from several statements **/
+    private static <T> List<T> sortByTs(List<T> objects, final List<Long> timestamps,
+                                        final SORT_ORDER tsOrdering) {
+        Integer[] positions = new Integer[objects.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(positions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int order = timestamps.get(lhs).compareTo(timestamps.get(rhs));
+                return tsOrdering == SORT_ORDER.DESC ? -order : order;
+            }
+        });
+        List<T> sorted = new ArrayList<T>(objects.size());
+        for (Integer position : positions) {
+            sorted.add(objects.get(position));
+        }
+        return sorted;
+    }
+
+    /** Json characters a load decoded its objects from, to weigh cached results **/
+    private static class LoadTally {
+        long chars;
+        boolean failed;
+    }
+
+    /** Length of the json, read from its payload file's size if it is stored in one **/
+    private long charsOf(StoredObject.TYPE type, String json) {
+        return BlobStore.isReference(json) ? managerFor(type).getBlobStore().length(json) : json.length();
+    }
+
+    /**
+     * Decodes the rows of the batch into their positions in objects, on the decoder's pool
+     * if one is given. Decoded objects are put in the cache if there is one, and their
+     * entries added to entries if not null. Without a pool this runs under the read lock,
+     * with one the lock is released and objects are only cached if no write invalidated the
+     * type since generation was taken.
+     */
+    private <T extends StoredObject> void decodeBatch(final StoredObject.TYPE type,
+                                                      ParallelDecoder.Batch batch,
+                                                      ParallelDecoder parallel, List<T> objects,
+                                                      ObjectCache cache, long generation,
+                                                      List<ObjectCache.Entry> entries) {
+        List<T> decoded;
+        if (parallel == null) {
+            decoded = new ArrayList<T>(batch.size());
+            for (String json : batch.jsons) {
+                decoded.add(this.<T>decodeObject(type, json));
+            }
+        } else {
+            decoded = parallel.decode(batch.jsons, new Func1<String, T>() {
+                @Override
+                public T call(String json) {
+                    return decodeObject(type, json);
+                }
+            });
+        }
+        for (int i = 0; i < decoded.size(); i++) {
+            T object = decoded.get(i);
+            objects.set(batch.positions.get(i), object);
+            if (cache != null) {
+                ObjectCache.Entry entry = new ObjectCache.Entry(object, batch.timestamps.get(i),
+                        batch.jsons.get(i).length());
+                if (parallel == null) {
+                    cache.put(type.getTypeName(), batch.ids.get(i), entry);
+                } else {
+                    cache.putIfCurrent(type.getTypeName(), batch.ids.get(i), entry, generation);
+                }
+                if (entries != null) {
+                    entries.add(entry);
+                }
+            }
         }
     }
 
-    private  <T extends StoredObject> List<T> loadObjects(StoredObject.TYPE type, Collection<String> ids,
-                                                        String orderBy) {
-        SQLiteDatabase db = null;
-        Cursor cursor = null;
-        mDbAccessManager.lockDbForRead();
-        try {
-            db = mDbAccessManager.getReadableDatabase();
-            if (db == null) return null;
-            String singleSelect = StringUtil.concat(ObjectsTableColumn.id.name(),
-                    "=? AND ", ObjectsTableColumn.type.name(), "=?");
-            String selection = StringUtil.repeat(singleSelect, " OR ", ids.size());
-            String[] columns = new String[]{
-                    ObjectsTableColumn.id.name(),
-                    ObjectsTableColumn.type.name(),
-                    ObjectsTableColumn.json.name(),
-                    ObjectsTableColumn.ts.name()};
-            String[] selectionArgs = new String[ids.size()*2];
-            int i = 0;
-            for (String id : ids) {
-                selectionArgs[i*2] = id;
-                selectionArgs[i*2 + 1] = type.getTypeName();
-                i++;
-            }
-            cursor = db.query(
-                    DatabaseSchema.OBJECTS_TABLE,
-                    columns,
-                    selection,
-                    selectionArgs,
-                    null,
-                    null,
-                    orderBy
-            );
-
-            List<T> storedObjects = new ArrayList<T>();
-            if (cursor.moveToFirst()){
-                do {
-                    String objectType = cursor.getString(1);
-                    String json = cursor.getString(2);
-                    StoredObject storedObject = (T)GSON.fromJson(json, type.getTypeClass());
-                    storedObjects.add((T) storedObject);
-                } while (cursor.moveToNext());
-            }
-            return storedObjects;
-        } catch (Exception e) {
-            Timber.e("Unable to fetch stored object: " + e.getMessage());
-            return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            mDbAccessManager.unlockAndCloseDbAfterRead(db);
+    @SuppressWarnings("unchecked")
+    private <T extends StoredObject> List<T> fromCacheEntries(List<ObjectCache.Entry> entries,
+                                                            final SORT_ORDER tsOrdering) {
+        if (tsOrdering != null) {
+            Collections.sort(entries, new Comparator<ObjectCache.Entry>() {
+                @Override
+                public int compare(ObjectCache.Entry lhs, ObjectCache.Entry rhs) {
+                    int order = lhs.ts < rhs.ts ? -1 : (lhs.ts == rhs.ts ? 0 : 1);
+                    return tsOrdering == SORT_ORDER.DESC ? -order : order;
+                }
+            });
+        }
+        List<T> objects = new ArrayList<T>(entries.size());
+        for (ObjectCache.Entry entry : entries) {
+            objects.add((T) entry.object);
         }
+        return objects;
     }
 
-    private Set<String> getIdsFromSelection(StoredObject.TYPE type, List<String> selections,
-                                             List<String> args, int limit) {
-        if (selections == null || selections.size() == 0 || selections.size() != args.size()) return null;
-        SQLiteDatabase db = null;
-        Cursor cursor = null;
-        mDbAccessManager.lockDbForRead();
+    /**
+     * Conditions on hot tags are answered by one query on the type's idx table, each other
+     * condition by a query on the tags table. The ids matching all of them are returned.
+     */
+    private Set<String> getIdsFromSelection(StoredObject.TYPE type, List<TagPredicate> predicates,
+                                            int limit) {
+        if (predicates == null || predicates.size() == 0) return null;
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        StorageCursor cursor = null;
+        long lockWait = manager.lockTypesForRead(type.getTypeName());
         try {
-            db = mDbAccessManager.getReadableDatabase();
+            db = manager.getReadableDatabase();
             if (db == null) return null;
             String[] columns = new String[]{TagsTableColumn.id.name()};
+            String limitClause = limit > 0 ? String.valueOf(limit) : null;
 
-            ListIterator<String> selectionIt = selections.listIterator();
-            ListIterator<String> argsIt = args.listIterator();
+            List<String> queries = new ArrayList<String>();
+            List<String[]> queryArgs = new ArrayList<String[]>();
+            TagIndex index = mTagIndexes.get(type.getTypeName());
+            List<String> hotSelections = new ArrayList<String>();
+            List<String> hotArgs = new ArrayList<String>();
             String typeSelection = StringUtil.concat(TagsTableColumn.type, "='", type, "' AND ");
+            for (TagPredicate predicate : predicates) {
+                if (index != null && index.contains(predicate.tag)) {
+                    hotSelections.add(predicate.columnSelection(index));
+                    hotArgs.add(predicate.value);
+                } else {
+                    queries.add(DatabaseSchema.buildQuery(true,
+                            DatabaseSchema.TAGS_TABLE,
+                            columns,
+                            StringUtil.concat(typeSelection, predicate.tagsTableSelection()),
+                            null,
+                            null,
+                            null,
+                            limitClause));
+                    queryArgs.add(new String[]{predicate.value});
+                }
+            }
+            if (!hotSelections.isEmpty()) {
+                queries.add(0, DatabaseSchema.buildQuery(false, index.getTable(),
+                        new String[]{ObjectsTableColumn.id.name()},
+                        StringUtil.join(" AND ", hotSelections.toArray()),
+                        null, null, null, limitClause));
+                queryArgs.add(0, hotArgs.toArray(new String[hotArgs.size()]));
+            }
+
             Set<String> finalIds = null;
-            while (selectionIt.hasNext()) {
+            for (int q = 0; q < queries.size(); q++) {
                 if (finalIds != null && finalIds.size() == 0) break;
-                cursor = db.query(true,
-                        DatabaseSchema.TAGS_TABLE,
-                        columns,
-                        StringUtil.concat(typeSelection, selectionIt.next()),
-                        new String[]{argsIt.next()},
-                        null,
-                        null,
-                        null,
-                        limit > 0 ? String.valueOf(limit) : null);
-                if (cursor.getCount() == 0) break;
-
-                Set currentIds = new HashSet(cursor.getCount());
-                if (cursor.moveToFirst()){
-                    do {
-                        currentIds.add(cursor.getString(0));
-                    } while (cursor.moveToNext());
+                String sql = queries.get(q);
+                String[] sqlArgs = queryArgs.get(q);
+                if (cursor != null) {
+                    cursor.close();
                 }
+                long queryStart = System.nanoTime();
+                cursor = db.rawQuery(sql, sqlArgs);
+                Set<String> currentIds = new HashSet<String>();
+                while (cursor.moveToNext()) {
+                    currentIds.add(cursor.getString(0));
+                }
+                recordIfSlow(db, sql, sqlArgs, currentIds.size(), lockWait,
+                        System.nanoTime() - queryStart, 0);
+                if (currentIds.size() == 0) {
+                    finalIds = currentIds;
+                    break;
+                }
+                // Only the first query waited on the lock
+                lockWait = 0;
                 if (finalIds == null)  {
                     finalIds = new HashSet<String>(currentIds);
                 } else {
@@ -358,22 +2140,61 @@ public class Database {
             if (cursor != null) {
                 cursor.close();
             }
-            mDbAccessManager.unlockAndCloseDbAfterRead(db);
+            manager.releaseDb(db);
+            manager.unlockTypesForRead(type.getTypeName());
+        }
+    }
+
+    /**
+     * Records the query in the slow query log along with its query plan if it exceeded
+     * the threshold. Must be called while the db is still open.
+     */
+    private void recordIfSlow(StorageConnection db, String sql, String[] args, int rowCount,
+                              long lockWaitNanos, long queryNanos, long decodeNanos) {
+        if (!mSlowQueryLog.isSlow(lockWaitNanos + queryNanos + decodeNanos)) return;
+        StringBuilder plan = new StringBuilder();
+        StorageCursor cursor = null;
+        try {
+            cursor = db.rawQuery(StringUtil.concat("EXPLAIN QUERY PLAN ", sql), args);
+            int detailIndex = cursor.getColumnIndex("detail");
+            if (detailIndex < 0) detailIndex = cursor.getColumnCount() - 1;
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) plan.append('\n');
+                plan.append(cursor.getString(detailIndex));
+            }
+        } catch (Exception e) {
+            Timber.e("Unable to explain query: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
+        mSlowQueryLog.record(new SlowQueryLog.Entry(sql, args == null ? 0 : args.length, rowCount,
+                lockWaitNanos, queryNanos, decodeNanos, plan.toString()));
     }
 
     public Observable<Void> deleteObjects(final Collection<? extends StoredObject> objects) {
+        return deleteObjects(objects, null);
+    }
+
+    /**
+     * Deletes the objects with the durability, null falls back to the one declared for
+     * their types, see {@link #setDurability(StoredObject.TYPE, Durability)}.
+     */
+    public Observable<Void> deleteObjects(final Collection<? extends StoredObject> objects,
+                                          final Durability durability) {
         return createDbObservable(new Observable.OnSubscribe<Void>() {
             @Override
             public void call(Subscriber<? super Void> subscriber) {
-                deleteObjectsSync(objects);
+                deleteObjectsSync(objects, durability);
                 subscriber.onNext(null);
                 subscriber.onCompleted();
             }
         });
     }
 
-    private void deleteObjectsSync(Collection<? extends StoredObject> objects) {
+    private void deleteObjectsSync(Collection<? extends StoredObject> objects,
+                                   Durability durability) {
         if (objects == null || objects.size() == 0) return;
         StoredObject.TYPE[] types = new StoredObject.TYPE[objects.size()];
         String[] ids = new String[objects.size()];
@@ -383,51 +2204,159 @@ public class Database {
             ids[i] = object.getStoredObjectId();
             i++;
         }
-        deleteObjectsSync(types, ids);
+        deleteObjectsSync(types, ids, durability);
     }
 
     public Observable<Void> deleteObjects(final StoredObject.TYPE[] types, final String[] ids) {
         return createDbObservable(new Observable.OnSubscribe<Void>() {
             @Override
             public void call(Subscriber<? super Void> subscriber) {
-                deleteObjectsSync(types, ids);
+                deleteObjectsSync(types, ids, null);
                 subscriber.onNext(null);
                 subscriber.onCompleted();
             }
         });
     }
 
-    private void deleteObjectsSync(StoredObject.TYPE[] types, String[] ids) {
+    private void deleteObjectsSync(StoredObject.TYPE[] types, String[] ids,
+                                   Durability durability) {
         if (types == null || ids == null || types.length == 0 || ids.length == 0) return;
-        SQLiteDatabase db = null;
-        mDbAccessManager.lockDbForWrite();
+        if (mShardingPolicy == null) {
+            deleteObjectsSync(mDbAccessManager, types, ids, durability);
+            return;
+        }
+        Map<DatabaseAccessManager, List<Integer>> byShard =
+                new LinkedHashMap<DatabaseAccessManager, List<Integer>>();
+        for (int i = 0; i < types.length; i++) {
+            DatabaseAccessManager manager = managerFor(types[i]);
+            List<Integer> indexes = byShard.get(manager);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byShard.put(manager, indexes);
+            }
+            indexes.add(i);
+        }
+        for (Map.Entry<DatabaseAccessManager, List<Integer>> entry : byShard.entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            StoredObject.TYPE[] shardTypes = new StoredObject.TYPE[indexes.size()];
+            String[] shardIds = new String[indexes.size()];
+            for (int i = 0; i < shardTypes.length; i++) {
+                shardTypes[i] = types[indexes.get(i)];
+                shardIds[i] = ids[indexes.get(i)];
+            }
+            deleteObjectsSync(entry.getKey(), shardTypes, shardIds, durability);
+        }
+    }
+
+    private void deleteObjectsSync(DatabaseAccessManager manager, StoredObject.TYPE[] types,
+                                   String[] ids, Durability durability) {
+        StorageConnection db = null;
+        long start = System.nanoTime();
+        long transactionStart = 0;
+        BlobStore.Release release = null;
+        boolean successful = false;
+        int deleted = 0;
+        String[] typeNames = typeNames(types);
+        durability = durabilityFor(typeNames, durability);
+        manager.lockTypesForWrite(typeNames);
         try {
-            db = mDbAccessManager.getWritableDatabase();
+            db = manager.getWritableDatabase();
             if (db != null) {
-                db.beginTransaction();
+                manager.beginTransaction(db, durability);
+                transactionStart = System.nanoTime();
             } else {
                 throw new DatabaseException("Database can't be opened for writing");
             }
-            String selection = StringUtil.repeat(
-                    StringUtil.concat(ObjectsTableColumn.type, "=?", " AND ", ObjectsTableColumn.id, " =? ")
-            , " OR ", ids.length);
-            String[] whereArgs = new String[ids.length * 2];
-            for (int i=0; i < ids.length; i++) {
-                whereArgs[i*2] = types[i].getTypeName();
-                whereArgs[i*2 + 1] = ids[i];
-            }
-            db.delete(DatabaseSchema.OBJECTS_TABLE, selection, whereArgs);
-            db.delete(DatabaseSchema.TAGS_TABLE, selection, whereArgs);
+            release = manager.getBlobStore().beginRelease();
+            deleted = deleteObjectsInTransaction(db, types, ids, release);
             db.setTransactionSuccessful();
+            successful = true;
         } catch (Exception e) {
             Timber.e("Error when storing object:\n" + e.getMessage());
         } finally {
             if (db != null) {
-                db.endTransaction();
-                db.close();
+                endTransaction(manager, db, transactionStart, durability, successful);
+                if (successful) {
+                    release.finish();
+                } else if (release != null) {
+                    release.abort();
+                }
+                manager.releaseDb(db);
+            }
+            manager.unlockTypesForWrite(typeNames);
+            // Rows the statements removed, ids that weren't stored don't count
+            recordOperation(DatabaseMetrics.Operation.DELETE, commonType(types), start,
+                    successful ? deleted : 0);
+        }
+        if (successful) {
+            manager.onCommitted(durability);
+        }
+    }
+
+    /**
+     * Deletes objects and their tags in batches that stay below sqlite's limit on bound
+     * arguments. The caller holds the write locks of the types and a transaction on db.
+     * @return number of objects deleted
+     */
+    private int deleteObjectsInTransaction(StorageConnection db, StoredObject.TYPE[] types,
+                                           String[] ids, BlobStore.Release release) {
+        if (release.getStore().hasFiles()) {
+            Map<String, List<String>> idsByType = new HashMap<String, List<String>>();
+            for (int i = 0; i < ids.length; i++) {
+                addToGroup(idsByType, types[i].getTypeName(), ids[i]);
+            }
+            releaseBlobs(db, idsByType, release);
+            BlobStore.collectUnreferenced(db, release);
+        }
+        int deleted = 0;
+        for (int offset = 0; offset < ids.length; offset += MAX_IDS_PER_STATEMENT) {
+            int count = Math.min(MAX_IDS_PER_STATEMENT, ids.length - offset);
+            String selection = StringUtil.repeat(
+                    StringUtil.concat(ObjectsTableColumn.type, "=?", " AND ", ObjectsTableColumn.id, " =? ")
+            , " OR ", count);
+            String[] whereArgs = new String[count * 2];
+            for (int i=0; i < count; i++) {
+                whereArgs[i*2] = types[offset + i].getTypeName();
+                whereArgs[i*2 + 1] = ids[offset + i];
+            }
+            deleted += db.delete(DatabaseSchema.OBJECTS_TABLE, selection, whereArgs);
+            db.delete(DatabaseSchema.TAGS_TABLE, selection, whereArgs);
+        }
+        if (!mTagIndexes.isEmpty()) {
+            Map<String, List<String>> idsByType = new HashMap<String, List<String>>();
+            for (int i = 0; i < ids.length; i++) {
+                if (mTagIndexes.containsKey(types[i].getTypeName())) {
+                    addToGroup(idsByType, types[i].getTypeName(), ids[i]);
+                }
+            }
+            for (Map.Entry<String, List<String>> entry : idsByType.entrySet()) {
+                deleteHotTags(db, mTagIndexes.get(entry.getKey()), entry.getValue());
+            }
+        }
+        ObjectCache cache = mObjectCache;
+        Set<String> deletedTypes = new HashSet<String>();
+        for (int i = 0; i < ids.length; i++) {
+            if (cache != null) {
+                cache.invalidate(types[i].getTypeName(), ids[i]);
+            }
+            deletedTypes.add(types[i].getTypeName());
+        }
+        ChangeLog changeLog = mChangeLog;
+        if (changeLog != null) {
+            ChangeLog.Writer changes = changeLog.begin(db);
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    changes.record(types[i].getTypeName(), ids[i], Change.Op.DELETE);
+                }
+                changes.finish();
+            } finally {
+                changes.close();
             }
-            mDbAccessManager.unlockDbForWrite();
         }
+        for (String typeName : deletedTypes) {
+            invalidateResults(typeName);
+        }
+        return deleted;
     }
 
     public Observable<Void> deleteObject(final StoredObject object) {
@@ -444,7 +2373,7 @@ public class Database {
     private void deleteObjectSync(StoredObject object) {
         if (object == null || object.getStoredObjectId() == null || object.getStoredObjectType() == null) return;
         deleteObjectsSync(new StoredObject.TYPE[]{object.getStoredObjectType()},
-                new String[]{object.getStoredObjectId()});
+                new String[]{object.getStoredObjectId()}, null);
     }
 
     public Observable<Void> clearObjectsOfType(final StoredObject.TYPE type) {
@@ -458,36 +2387,492 @@ public class Database {
         });
     }
 
-    private void clearObjectsOfTypeSync(StoredObject.TYPE type) {
-        SQLiteDatabase db = null;
-        mDbAccessManager.lockDbForWrite();
-        try {
-            db = mDbAccessManager.getWritableDatabase();
-            if (db != null) {
-                db.beginTransaction();
-            } else {
-                throw new DatabaseException("Database can't be opened for writing");
+    private void clearObjectsOfTypeSync(StoredObject.TYPE type) {
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        long start = System.nanoTime();
+        long transactionStart = 0;
+        BlobStore.Release release = null;
+        boolean successful = false;
+        int deleted = 0;
+        Durability durability = durabilityFor(new String[]{type.getTypeName()}, null);
+        manager.lockTypesForWrite(type.getTypeName());
+        try {
+            db = manager.getWritableDatabase();
+            if (db != null) {
+                manager.beginTransaction(db, durability);
+                transactionStart = System.nanoTime();
+            } else {
+                throw new DatabaseException("Database can't be opened for writing");
+            }
+            release = manager.getBlobStore().beginRelease();
+            deleted = clearObjectsOfTypeInTransaction(db, type, release);
+            db.setTransactionSuccessful();
+            successful = true;
+        } catch (Exception e) {
+            Timber.e("Error when storing object:\n" + e.getMessage());
+            System.out.println(e);
+        } finally {
+            if (db != null) {
+                endTransaction(manager, db, transactionStart, durability, successful);
+                if (successful) {
+                    release.finish();
+                } else if (release != null) {
+                    release.abort();
+                }
+                manager.releaseDb(db);
+            }
+            manager.unlockTypesForWrite(type.getTypeName());
+            recordOperation(DatabaseMetrics.Operation.CLEAR, type, start, deleted);
+        }
+        if (successful) {
+            manager.onCommitted(durability);
+        }
+    }
+
+    /**
+     * @return number of objects deleted
+     */
+    private int clearObjectsOfTypeInTransaction(StorageConnection db, StoredObject.TYPE type,
+                                                BlobStore.Release release) {
+        String selection = StringUtil.concat(ObjectsTableColumn.type, "=?");
+        String[] whereArgs = new String[]{type.getTypeName()};
+        if (release.getStore().hasFiles()) {
+            releaseBlobs(db, selection, whereArgs, release);
+            BlobStore.collectUnreferenced(db, release);
+        }
+        int deleted = db.delete(DatabaseSchema.OBJECTS_TABLE, selection, whereArgs);
+        db.delete(DatabaseSchema.TAGS_TABLE, selection, whereArgs);
+        TagIndex index = mTagIndexes.get(type.getTypeName());
+        if (index != null) {
+            db.delete(index.getTable(), null, null);
+        }
+        ObjectCache cache = mObjectCache;
+        if (cache != null) {
+            cache.invalidateType(type.getTypeName());
+        }
+        invalidateResults(type.getTypeName());
+        ChangeLog changeLog = mChangeLog;
+        if (changeLog != null) {
+            ChangeLog.Writer changes = changeLog.begin(db);
+            try {
+                changes.record(type.getTypeName(), null, Change.Op.CLEAR);
+                changes.finish();
+            } finally {
+                changes.close();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * See {@link #prewarm(int, StoredObject.TYPE...)}
+     */
+    public Observable<Void> prewarm(StoredObject.TYPE... types) {
+        return prewarm(0, types);
+    }
+
+    /**
+     * Does the work the first loads of the types would otherwise pay for, meant to be
+     * called at startup: opens the database (creating the schema if needed) and keeps it
+     * open, and builds the json adapters of the type classes. With the object cache enabled
+     * the newest objects of each type are also loaded into it.
+     * @param newestPerType number of objects per type to load into the object cache
+     */
+    public Observable<Void> prewarm(final int newestPerType, final StoredObject.TYPE... types) {
+        return createDbObservable(new Observable.OnSubscribe<Void>() {
+            @Override
+            public void call(Subscriber<? super Void> subscriber) {
+                prewarmSync(newestPerType, types);
+                subscriber.onNext(null);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    private void prewarmSync(int newestPerType, StoredObject.TYPE[] types) {
+        Set<DatabaseAccessManager> pinned = new HashSet<DatabaseAccessManager>();
+        for (StoredObject.TYPE type : types) {
+            DatabaseAccessManager manager = managerFor(type);
+            if (pinned.add(manager)) {
+                // The read lock keeps a restore from swapping the file while it is opened
+                manager.lockTypesForRead(type.getTypeName());
+                try {
+                    if (!manager.pin()) {
+                        Timber.e("Unable to open database for " + type.getTypeName());
+                    }
+                } finally {
+                    manager.unlockTypesForRead(type.getTypeName());
+                }
+            }
+            if (codecFor(type) == null) {
+                GSON.getAdapter((Class<?>) type.getTypeClass());
+            }
+        }
+        ObjectCache cache = mObjectCache;
+        if (cache == null || newestPerType <= 0) return;
+        String order = StringUtil.concat(ObjectsTableColumn.ts, " ", SORT_ORDER.DESC);
+        for (StoredObject.TYPE type : types) {
+            loadObjects(type, order, newestPerType, null, null, cache, null);
+        }
+    }
+
+    /**
+     * Reads the object, applies the mutator and writes the result back within one write
+     * transaction, so no other writer can interleave. The mutator may change the object in
+     * place or return a new one with the same id; returning null leaves it untouched.
+     * Nothing is written if the object encodes to the json that is already stored.
+     * @return emits the object as stored after the update or null if there is no such object
+     */
+    public <T extends StoredObject> Observable<T> update(final StoredObject.TYPE type,
+                                                         final String id,
+                                                         final Func1<T, T> mutator) {
+        return createDbObservable(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(Subscriber<? super T> subscriber) {
+                List<T> updated;
+                try {
+                    updated = updateObjectsSync(type, Collections.singletonList(id), mutator);
+                } catch (Exception e) {
+                    subscriber.onError(e);
+                    return;
+                }
+                subscriber.onNext(updated.isEmpty() ? null : updated.get(0));
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * Batched {@link #update(StoredObject.TYPE, String, Func1)}: all ids are read, mutated
+     * and written back in a single write transaction.
+     * @return emits the objects found, as stored after the update
+     */
+    public <T extends StoredObject> Observable<List<T>> update(final StoredObject.TYPE type,
+                                                               final Collection<String> ids,
+                                                               final Func1<T, T> mutator) {
+        return createDbObservable(new Observable.OnSubscribe<List<T>>() {
+            @Override
+            public void call(Subscriber<? super List<T>> subscriber) {
+                List<T> updated;
+                try {
+                    updated = updateObjectsSync(type, ids, mutator);
+                } catch (Exception e) {
+                    subscriber.onError(e);
+                    return;
+                }
+                subscriber.onNext(updated);
+                subscriber.onCompleted();
+            }
+        });
+    }
+
+    private <T extends StoredObject> List<T> updateObjectsSync(StoredObject.TYPE type,
+                                                               Collection<String> ids,
+                                                               Func1<T, T> mutator)
+            throws DatabaseException {
+        List<T> results = new ArrayList<T>();
+        if (ids == null || ids.isEmpty()) return results;
+        DatabaseAccessManager manager = managerFor(type);
+        StorageConnection db = null;
+        long start = System.nanoTime();
+        long transactionStart = 0;
+        BlobStore.Release release = null;
+        boolean successful = false;
+        List<T> changed = new ArrayList<T>();
+        Durability durability = durabilityFor(new String[]{type.getTypeName()}, null);
+        manager.lockTypesForWrite(type.getTypeName());
+        try {
+            db = manager.getWritableDatabase();
+            if (db == null) {
+                throw new DatabaseException("Database can't be opened for writing");
+            }
+            manager.beginTransaction(db, durability);
+            transactionStart = System.nanoTime();
+            release = manager.getBlobStore().beginRelease();
+            List<String> changedJsons = new ArrayList<String>();
+            for (Map.Entry<String, String> stored : loadJsonInTransaction(db, type, ids).entrySet()) {
+                T object = decodeObject(type, stored.getValue());
+                T updated = mutator.call(object);
+                if (updated == null) {
+                    results.add(this.<T>decodeObject(type, stored.getValue()));
+                    continue;
+                }
+                if (updated.getStoredObjectType() != type
+                        || !stored.getKey().equals(updated.getStoredObjectId())) {
+                    throw new IllegalArgumentException("update can't change the id or type of "
+                            + type.getTypeName() + " " + stored.getKey());
+                }
+                String json = encodeObject(updated);
+                String storedJson = stored.getValue();
+                boolean unchanged = BlobStore.isReference(storedJson)
+                        ? storedJson.equals(BlobStore.referenceFor(json)) : json.equals(storedJson);
+                if (!unchanged) {
+                    changed.add(updated);
+                    changedJsons.add(json);
+                }
+                results.add(updated);
+            }
+            if (!changed.isEmpty()) {
+                saveObjectsInTransaction(db, changed, changedJsons, release);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            if (db != null) {
+                endTransaction(manager, db, transactionStart, durability, successful);
+                if (successful) {
+                    release.finish();
+                } else if (release != null) {
+                    release.abort();
+                }
+                manager.releaseDb(db);
+            }
+            manager.unlockTypesForWrite(type.getTypeName());
+            recordOperation(DatabaseMetrics.Operation.UPDATE, type, start, changed.size());
+        }
+        manager.onCommitted(durability);
+        return results;
+    }
+
+    /**
+     * @return stored json by id, in the order the ids were given. Missing ids are left out.
+     */
+    private Map<String, String> loadJsonInTransaction(StorageConnection db, StoredObject.TYPE type,
+                                                      Collection<String> ids) {
+        Map<String, String> found = new HashMap<String, String>();
+        List<String> idList = new ArrayList<String>(ids);
+        for (int offset = 0; offset < idList.size(); offset += MAX_IDS_PER_STATEMENT) {
+            List<String> batch = idList.subList(offset,
+                    Math.min(offset + MAX_IDS_PER_STATEMENT, idList.size()));
+            String selection = StringUtil.concat(ObjectsTableColumn.type, "=? AND ",
+                    ObjectsTableColumn.id, " IN (", StringUtil.repeat("?", ",", batch.size()), ")");
+            String[] args = new String[batch.size() + 1];
+            args[0] = type.getTypeName();
+            for (int i = 0; i < batch.size(); i++) {
+                args[i + 1] = batch.get(i);
+            }
+            String sql = DatabaseSchema.buildQuery(false, DatabaseSchema.OBJECTS_TABLE,
+                    new String[]{ObjectsTableColumn.id.name(), ObjectsTableColumn.json.name()},
+                    selection, null, null, null, null);
+            StorageCursor cursor = db.rawQuery(sql, args);
+            try {
+                while (cursor.moveToNext()) {
+                    found.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        Map<String, String> ordered = new LinkedHashMap<String, String>();
+        for (String id : idList) {
+            String json = found.get(id);
+            if (json != null) {
+                ordered.put(id, json);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Groups saves, deletes and clears into one atomic unit: the write locks of every
+     * type involved are taken once and all steps are committed together or not at all.
+     */
+    public Transaction transaction() {
+        return new Transaction();
+    }
+
+    private interface TransactionStep {
+        DatabaseMetrics.Operation getOperation();
+        StoredObject.TYPE getType();
+        int run(StorageConnection db, BlobStore.Release release);
+    }
+
+    public class Transaction {
+        private final List<TransactionStep> steps = new ArrayList<TransactionStep>();
+        private final Set<StoredObject.TYPE> types = new LinkedHashSet<StoredObject.TYPE>();
+
+        private Transaction() {
+        }
+
+        public Transaction save(StoredObject object) {
+            if (object == null) return this;
+            return save(Collections.singletonList(object));
+        }
+
+        public Transaction save(final Collection<? extends StoredObject> objects) {
+            if (objects == null || objects.size() == 0) return this;
+            for (StoredObject object : objects) {
+                types.add(object.getStoredObjectType());
+            }
+            final StoredObject.TYPE type = commonType(objects);
+            steps.add(new TransactionStep() {
+                @Override
+                public DatabaseMetrics.Operation getOperation() {
+                    return DatabaseMetrics.Operation.SAVE;
+                }
+
+                @Override
+                public StoredObject.TYPE getType() {
+                    return type;
+                }
+
+                @Override
+                public int run(StorageConnection db, BlobStore.Release release) {
+                    saveObjectsInTransaction(db, objects, release);
+                    return objects.size();
+                }
+            });
+            return this;
+        }
+
+        public Transaction delete(StoredObject object) {
+            if (object == null) return this;
+            return delete(Collections.singletonList(object));
+        }
+
+        public Transaction delete(Collection<? extends StoredObject> objects) {
+            if (objects == null || objects.size() == 0) return this;
+            StoredObject.TYPE[] types = new StoredObject.TYPE[objects.size()];
+            String[] ids = new String[objects.size()];
+            int i = 0;
+            for (StoredObject object: objects) {
+                types[i] = object.getStoredObjectType();
+                ids[i] = object.getStoredObjectId();
+                i++;
+            }
+            return delete(types, ids);
+        }
+
+        public Transaction delete(StoredObject.TYPE type, String id) {
+            return delete(new StoredObject.TYPE[]{type}, new String[]{id});
+        }
+
+        public Transaction delete(final StoredObject.TYPE[] types, final String[] ids) {
+            if (types == null || ids == null || types.length == 0 || ids.length == 0) return this;
+            Collections.addAll(this.types, types);
+            final StoredObject.TYPE type = commonType(types);
+            steps.add(new TransactionStep() {
+                @Override
+                public DatabaseMetrics.Operation getOperation() {
+                    return DatabaseMetrics.Operation.DELETE;
+                }
+
+                @Override
+                public StoredObject.TYPE getType() {
+                    return type;
+                }
+
+                @Override
+                public int run(StorageConnection db, BlobStore.Release release) {
+                    return deleteObjectsInTransaction(db, types, ids, release);
+                }
+            });
+            return this;
+        }
+
+        public Transaction clear(final StoredObject.TYPE type) {
+            types.add(type);
+            steps.add(new TransactionStep() {
+                @Override
+                public DatabaseMetrics.Operation getOperation() {
+                    return DatabaseMetrics.Operation.CLEAR;
+                }
+
+                @Override
+                public StoredObject.TYPE getType() {
+                    return type;
+                }
+
+                @Override
+                public int run(StorageConnection db, BlobStore.Release release) {
+                    return clearObjectsOfTypeInTransaction(db, type, release);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Runs the steps in the order they were added. Unlike the single operations, a
+         * failure rolls back every step and is reported through onError. All types have to
+         * live in the same shard.
+         */
+        public Observable<Void> execute() {
+            return createDbObservable(new Observable.OnSubscribe<Void>() {
+                @Override
+                public void call(Subscriber<? super Void> subscriber) {
+                    try {
+                        executeSync();
+                    } catch (Exception e) {
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(null);
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        private void executeSync() throws DatabaseException {
+            if (steps.isEmpty()) return;
+            DatabaseAccessManager manager = null;
+            for (StoredObject.TYPE type : types) {
+                DatabaseAccessManager typeManager = managerFor(type);
+                if (manager != null && manager != typeManager) {
+                    throw new UnsupportedOperationException(
+                            "A transaction can't span types in different shards");
+                }
+                manager = typeManager;
             }
-            String selection = StringUtil.concat(ObjectsTableColumn.type, "=?");
-            String[] whereArgs = new String[]{type.getTypeName()};
-            db.delete(DatabaseSchema.OBJECTS_TABLE, selection, whereArgs);
-            db.delete(DatabaseSchema.TAGS_TABLE, selection, whereArgs);
-
-            db.setTransactionSuccessful();
-        } catch (Exception e) {
-            Timber.e("Error when storing object:\n" + e.getMessage());
-            System.out.println(e);
-        } finally {
-            if (db != null) {
-                db.endTransaction();
-                db.close();
+            String[] typeNames = typeNames(types.toArray(new StoredObject.TYPE[types.size()]));
+            StorageConnection db = null;
+            long transactionStart = 0;
+            BlobStore.Release release = null;
+            boolean successful = false;
+            int[] rows = new int[steps.size()];
+            long[] durations = new long[steps.size()];
+            Durability durability = durabilityFor(typeNames, null);
+            manager.lockTypesForWrite(typeNames);
+            try {
+                db = manager.getWritableDatabase();
+                if (db == null) {
+                    throw new DatabaseException("Database can't be opened for writing");
+                }
+                manager.beginTransaction(db, durability);
+                transactionStart = System.nanoTime();
+                release = manager.getBlobStore().beginRelease();
+                for (int i = 0; i < steps.size(); i++) {
+                    long start = System.nanoTime();
+                    rows[i] = steps.get(i).run(db, release);
+                    durations[i] = System.nanoTime() - start;
+                }
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                if (db != null) {
+                    endTransaction(manager, db, transactionStart, durability, successful);
+                    if (successful) {
+                        release.finish();
+                    } else if (release != null) {
+                        release.abort();
+                    }
+                    manager.releaseDb(db);
+                }
+                manager.unlockTypesForWrite(typeNames);
+            }
+            manager.onCommitted(durability);
+            DatabaseMetrics metrics = mMetrics;
+            if (metrics != null) {
+                for (int i = 0; i < steps.size(); i++) {
+                    TransactionStep step = steps.get(i);
+                    metrics.onOperation(step.getOperation(), step.getType(), durations[i], rows[i]);
+                }
             }
-            mDbAccessManager.unlockDbForWrite();
         }
     }
 
     public void setStringContentValue(
-            ContentValues contentValues, Enum column, String value) {
+            ContentValues contentValues, Enum<?> column, String value) {
         if (value != null) {
             contentValues.put(column.name(), value);
         }
@@ -497,11 +2882,15 @@ public class Database {
         return new Request(type);
     }
 
+    /** Loads objects of several types at once, see {@link BatchLoad} **/
+    public BatchLoad loadBatch() {
+        return new BatchLoad();
+    }
+
     public class Request {
         StoredObject.TYPE type;
         List<String> ids;
-        List<String> tagSelects;
-        List<String> tagSelectionArgs;
+        List<TagPredicate> tagPredicates;
         String tagOrderBy;
         String orderByTagName;
         SORT_ORDER tsOrdering;
@@ -564,13 +2953,10 @@ public class Database {
             if (ids != null && ids.size() > 0) {
                 throw new UnsupportedOperationException("Can't have both tags and ids");
             }
-            if (tagSelects == null) {
-                tagSelects = new LinkedList<String>();
-                tagSelectionArgs = new LinkedList<String>();
+            if (tagPredicates == null) {
+                tagPredicates = new LinkedList<TagPredicate>();
             }
-            tagSelects.add(StringUtil.concat(TagsTableColumn.tag, "= '", tag, "' AND ",
-                    "CAST(", TagsTableColumn.value, " AS ", valueType.name(), ") ", op, " ? "));
-            tagSelectionArgs.add(value);
+            tagPredicates.add(new TagPredicate(tag, op, value, valueType));
             return this;
         }
 
@@ -608,51 +2994,359 @@ public class Database {
             return createDbObservable(new Observable.OnSubscribe<List<T>>() {
                 @Override
                 public void call(Subscriber<? super List<T>> subscriber) {
-                    subscriber.onNext((List<T>)Request.this.executeSync());
+                    subscriber.onNext(Request.this.<T>executeSync());
                     subscriber.onCompleted();
                 }
             });
         }
 
         private <T extends StoredObject> List<T> executeSync() {
+            long start = System.nanoTime();
+            // Truncating writes, it always runs on its own
+            final ResultCache results = truncate ? null : mResultCache;
+            InFlightRequests inFlight = truncate ? null : mInFlightRequests;
+            final String key = results != null || inFlight != null ? normalizedKey() : null;
+            List<T> retVal;
+            if (results != null && (retVal = results.get(key)) != null) {
+                recordOperation(DatabaseMetrics.Operation.LOAD, type, start, retVal.size());
+                return retVal;
+            }
+            if (inFlight != null) {
+                retVal = inFlight.execute(type.getTypeName(), key, new Func0<List<T>>() {
+                    @Override
+                    public List<T> call() {
+                        return load(results, key);
+                    }
+                });
+            } else {
+                retVal = load(results, key);
+            }
+            recordOperation(DatabaseMetrics.Operation.LOAD, type, start,
+                    retVal == null ? 0 : retVal.size());
+            if (truncate) {
+                clearObjectsOfTypeSync(type);
+                saveObjectsSync(retVal);
+            }
+            return retVal;
+        }
+
+        /** Loads the objects, putting them in the result cache if it is given **/
+        private <T extends StoredObject> List<T> load(ResultCache results, String key) {
+            long generation = 0;
+            LoadTally tally = null;
+            if (results != null) {
+                generation = results.generation(type.getTypeName());
+                tally = new LoadTally();
+            }
             String order = (tsOrdering == null) ? null :
                     StringUtil.concat(ObjectsTableColumn.ts, " ", tsOrdering);
             List<T> retVal = null;
             if (ids != null && ids.size() > 0) {
-                retVal =  loadObjects(type, ids, order);
-            } else if (tagSelects != null && tagSelects.size() > 0) {
-                Set<String> ids = getIdsFromSelection(type, tagSelects, tagSelectionArgs, limit);
-                retVal = loadObjects(type, ids, order);
+                retVal =  loadObjects(type, ids, tsOrdering, tally);
+            } else if (tagPredicates != null && tagPredicates.size() > 0) {
+                Set<String> ids = getIdsFromSelection(type, tagPredicates, limit);
+                retVal = loadObjects(type, ids, tsOrdering, tally);
             } else {
-                retVal = loadObjects(type, order, limit, before, after);
+                retVal = loadObjects(type, order, limit, before, after, tally);
             }
-            if (truncate) {
-                clearObjectsOfTypeSync(type);
-                saveObjectsSync(retVal);
+            if (results != null && retVal != null && !tally.failed) {
+                results.put(key, type.getTypeName(), retVal, tally.chars, generation);
             }
             return retVal;
         }
 
+        /**
+         * Where clause on the objects table aliased o matching the request's objects: type,
+         * ts bounds, ids and tag conditions. A limit keeps the first objects by timestamp, in
+         * the request's order. Arguments are appended to args.
+         */
+        private String selection(TagIndex index, List<String> args) {
+            return selection(index, ids, limit, args);
+        }
+
+        /** The selection with the ids and limit given instead of the request's **/
+        private String selection(TagIndex index, List<String> ids, int limit, List<String> args) {
+            int firstArg = args.size();
+            List<String> conditions = new ArrayList<String>();
+            conditions.add(StringUtil.concat("o.", ObjectsTableColumn.type, " = ?"));
+            args.add(type.getTypeName());
+            if (before != null) {
+                conditions.add(StringUtil.concat("o.", ObjectsTableColumn.ts, " <= ?"));
+                args.add(before.toString());
+            }
+            if (after != null) {
+                conditions.add(StringUtil.concat("o.", ObjectsTableColumn.ts, " >= ?"));
+                args.add(after.toString());
+            }
+            if (ids != null && ids.size() > 0) {
+                conditions.add(StringUtil.concat("o.", ObjectsTableColumn.id, " IN (",
+                        StringUtil.repeat("?", ", ", ids.size()), ")"));
+                args.addAll(ids);
+            }
+            if (tagPredicates != null) {
+                List<String> hotSelections = new ArrayList<String>();
+                List<String> hotArgs = new ArrayList<String>();
+                for (TagPredicate predicate : tagPredicates) {
+                    if (index != null && index.contains(predicate.tag)) {
+                        hotSelections.add(predicate.columnSelection(index));
+                        hotArgs.add(predicate.value);
+                    } else {
+                        conditions.add(StringUtil.concat("o.", ObjectsTableColumn.id, " IN (SELECT ",
+                                TagsTableColumn.id, " FROM ", DatabaseSchema.TAGS_TABLE, " WHERE ",
+                                TagsTableColumn.type, " = ? AND ", predicate.tagsTableSelection(), ")"));
+                        args.add(type.getTypeName());
+                        args.add(predicate.value);
+                    }
+                }
+                if (!hotSelections.isEmpty()) {
+                    conditions.add(StringUtil.concat("o.", ObjectsTableColumn.id, " IN (SELECT ",
+                            ObjectsTableColumn.id, " FROM ", index.getTable(), " WHERE ",
+                            StringUtil.join(" AND ", hotSelections.toArray()), ")"));
+                    args.addAll(hotArgs);
+                }
+            }
+            String selection = StringUtil.join(" AND ", conditions.toArray());
+            if (limit <= 0) return selection;
+            args.add(firstArg, type.getTypeName());
+            // The first objects by timestamp, in the request's order
+            return StringUtil.concat("o.", ObjectsTableColumn.type, " = ? AND o.", ObjectsTableColumn.id,
+                    " IN (SELECT o.", ObjectsTableColumn.id, " FROM ", DatabaseSchema.OBJECTS_TABLE,
+                    " o WHERE ", selection, " ORDER BY o.", ObjectsTableColumn.ts, " ",
+                    tsOrdering == null ? SORT_ORDER.ASC : tsOrdering,
+                    " LIMIT ", limit, ")");
+        }
+
+        /**
+         * Deletes the objects the request matches, with their tags and payload files, in
+         * one transaction without loading them. A limit deletes the first objects by
+         * timestamp, in the request's order.
+         * @return emits the number of objects deleted
+         */
+        public Observable<Integer> delete() {
+            if (truncate) {
+                throw new UnsupportedOperationException("Can't delete with truncateRest");
+            }
+            return createDbObservable(new Observable.OnSubscribe<Integer>() {
+                @Override
+                public void call(Subscriber<? super Integer> subscriber) {
+                    int deleted;
+                    try {
+                        deleted = deleteSync();
+                    } catch (Exception e) {
+                        Timber.e("Error when deleting objects: " + e.getMessage());
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(deleted);
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        private int deleteSync() throws DatabaseException {
+            DatabaseAccessManager manager = managerFor(type);
+            StorageConnection db = null;
+            long start = System.nanoTime();
+            long transactionStart = 0;
+            BlobStore.Release release = null;
+            boolean successful = false;
+            int deleted = 0;
+            Durability durability = durabilityFor(new String[]{type.getTypeName()}, null);
+            manager.lockTypesForWrite(type.getTypeName());
+            try {
+                db = manager.getWritableDatabase();
+                if (db == null) {
+                    throw new DatabaseException("Database can't be opened for writing");
+                }
+                manager.beginTransaction(db, durability);
+                transactionStart = System.nanoTime();
+                release = manager.getBlobStore().beginRelease();
+                deleted = deleteInTransaction(db, release);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                if (db != null) {
+                    endTransaction(manager, db, transactionStart, durability, successful);
+                    if (successful) {
+                        release.finish();
+                    } else if (release != null) {
+                        release.abort();
+                    }
+                    manager.releaseDb(db);
+                }
+                manager.unlockTypesForWrite(type.getTypeName());
+                recordOperation(DatabaseMetrics.Operation.DELETE, type, start, deleted);
+            }
+            manager.onCommitted(durability);
+            return deleted;
+        }
+
+        /**
+         * Collects the ids of the matching objects in a temporary table, then deletes them
+         * and everything keyed by them, like {@link #deleteObjectsInTransaction} does. The
+         * caller holds the write lock of the type and a transaction on db.
+         */
+        private int deleteInTransaction(StorageConnection db, BlobStore.Release release) {
+            String typeName = type.getTypeName();
+            TagIndex index = mTagIndexes.get(typeName);
+            db.execSQL(DatabaseSchema.CREATE_DELETED_IDS_TABLE);
+            db.execSQL(StringUtil.concat("DELETE FROM ", DatabaseSchema.DELETED_IDS_TABLE));
+            if (ids == null || ids.size() <= MAX_IDS_PER_STATEMENT) {
+                collectDeletedIds(db, index, ids, limit);
+            } else {
+                List<String> idList = new ArrayList<String>(ids);
+                for (int offset = 0; offset < idList.size(); offset += MAX_IDS_PER_STATEMENT) {
+                    collectDeletedIds(db, index, idList.subList(offset,
+                            Math.min(offset + MAX_IDS_PER_STATEMENT, idList.size())), 0);
+                }
+                if (limit > 0) {
+                    keepFirstDeletedIds(db);
+                }
+            }
+            String deletedIds = StringUtil.concat(ObjectsTableColumn.id, " IN (SELECT ",
+                    ObjectsTableColumn.id, " FROM ", DatabaseSchema.DELETED_IDS_TABLE, ")");
+            String byType = StringUtil.concat(ObjectsTableColumn.type, " = ? AND ", deletedIds);
+            String[] typeArgs = new String[]{typeName};
+            if (release.getStore().hasFiles()) {
+                releaseBlobs(db, byType, typeArgs, release);
+                BlobStore.collectUnreferenced(db, release);
+            }
+            int deleted = db.delete(DatabaseSchema.OBJECTS_TABLE, byType, typeArgs);
+            if (deleted > 0) {
+                db.delete(DatabaseSchema.TAGS_TABLE, byType, typeArgs);
+                if (index != null) {
+                    db.delete(index.getTable(), deletedIds, null);
+                }
+                ObjectCache cache = mObjectCache;
+                ChangeLog changeLog = mChangeLog;
+                if (cache != null || changeLog != null) {
+                    forgetDeletedIds(db, cache, changeLog);
+                }
+                invalidateResults(typeName);
+            }
+            db.execSQL(StringUtil.concat("DELETE FROM ", DatabaseSchema.DELETED_IDS_TABLE));
+            return deleted;
+        }
+
+        /** Adds the ids of the objects matching the request, with the ids given, to the table **/
+        private void collectDeletedIds(StorageConnection db, TagIndex index, List<String> ids,
+                                       int limit) {
+            List<String> args = new ArrayList<String>();
+            String selection = selection(index, ids, limit, args);
+            // Ids listed twice by the request may match in two chunks
+            db.execSQL(StringUtil.concat("INSERT OR IGNORE INTO ", DatabaseSchema.DELETED_IDS_TABLE,
+                    " SELECT o.", ObjectsTableColumn.id, " FROM ", DatabaseSchema.OBJECTS_TABLE,
+                    " o WHERE ", selection), args.toArray());
+        }
+
+        /** Applies the limit to ids collected in chunks, like {@link #selection} does **/
+        private void keepFirstDeletedIds(StorageConnection db) {
+            db.execSQL(StringUtil.concat("DELETE FROM ", DatabaseSchema.DELETED_IDS_TABLE, " WHERE ",
+                    ObjectsTableColumn.id, " NOT IN (SELECT o.", ObjectsTableColumn.id, " FROM ",
+                    DatabaseSchema.OBJECTS_TABLE, " o WHERE o.", ObjectsTableColumn.type, " = ? AND o.",
+                    ObjectsTableColumn.id, " IN (SELECT ", ObjectsTableColumn.id, " FROM ",
+                    DatabaseSchema.DELETED_IDS_TABLE, ") ORDER BY o.", ObjectsTableColumn.ts, " ",
+                    tsOrdering == null ? SORT_ORDER.ASC : tsOrdering, " LIMIT ", limit, ")"),
+                    new Object[]{type.getTypeName()});
+        }
+
+        /** Drops the deleted objects from the cache and logs their deletes **/
+        private void forgetDeletedIds(StorageConnection db, ObjectCache cache, ChangeLog changeLog) {
+            String typeName = type.getTypeName();
+            ChangeLog.Writer changes = changeLog != null ? changeLog.begin(db) : null;
+            StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", ObjectsTableColumn.id,
+                    " FROM ", DatabaseSchema.DELETED_IDS_TABLE), null);
+            try {
+                while (cursor.moveToNext()) {
+                    String id = cursor.getString(0);
+                    if (cache != null) {
+                        cache.invalidate(typeName, id);
+                    }
+                    if (changes != null) {
+                        changes.record(typeName, id, Change.Op.DELETE);
+                    }
+                }
+                if (changes != null) {
+                    changes.finish();
+                }
+            } finally {
+                cursor.close();
+                if (changes != null) {
+                    changes.close();
+                }
+            }
+        }
+
+        /** Number of objects the request matches, see {@link Aggregation} **/
+        public Aggregation count() {
+            return new Aggregation(this, AGGREGATE.COUNT, null, null);
+        }
+
+        /**
+         * The function over the values of the tag, cast to valueType, of the objects the
+         * request matches. Objects without the tag are left out.
+         */
+        public Aggregation aggregate(AGGREGATE function, String tag, SqliteType valueType) {
+            return new Aggregation(this, function, tag, valueType);
+        }
+
+        /** The function over the timestamps of the objects the request matches **/
+        public Aggregation aggregateTs(AGGREGATE function) {
+            return new Aggregation(this, function, null, SqliteType.INTEGER);
+        }
+
         public <T extends StoredObject> Observable<T> getFirst() {
-            return execute().map(new Func1<List<? extends StoredObject>, T>() {
+            return this.<T>execute().map(new Func1<List<T>, T>() {
                 @Override
-                public T call(List<? extends StoredObject> list) {
+                public T call(List<T> list) {
                     if (list == null || list.size() == 0) {
                         Timber.d("No object of type: " + type + " found ");
                         return null;
                     } else {
-                        return (T)list.get(0);
+                        return list.get(0);
                     }
                 }
             });
         }
 
+        /**
+         * The fields deciding which objects the request loads, in a canonical form: equal
+         * for requests loading the same objects in the same order. Conditions on tags are
+         * sorted since they are all applied together.
+         */
+        String normalizedKey() {
+            StringBuilder key = new StringBuilder(type.getTypeName());
+            key.append("\u0000ids:");
+            if (ids != null) {
+                for (String id : ids) {
+                    key.append(id).append('\u0000');
+                }
+            }
+            key.append("tags:");
+            if (tagPredicates != null) {
+                List<String> predicates = new ArrayList<String>(tagPredicates.size());
+                for (TagPredicate predicate : tagPredicates) {
+                    predicates.add(predicate.key());
+                }
+                Collections.sort(predicates);
+                for (String predicate : predicates) {
+                    key.append(predicate).append('\u0000');
+                }
+            }
+            return key.append("ts:").append(tsOrdering)
+                    .append(",limit:").append(limit)
+                    .append(",before:").append(before)
+                    .append(",after:").append(after)
+                    .append(",truncate:").append(truncate)
+                    .toString();
+        }
+
         @Override
         public String toString() {
             return getClass().getName() + "{" +
                     "type:" + type +
                     ",ids:" + ids +
-                    ",tagSelects:" + tagSelects +
+                    ",tagPredicates:" + tagPredicates +
                     ",tagOrderBy:" + tagOrderBy +
                     ",orderByTagName:" + orderByTagName +
                     ",tsOrdering:" + tsOrdering +
@@ -662,4 +3356,464 @@ public class Database {
                     ",after:" + after;
         }
      }
+
+    /**
+     * Count, min, max, sum or avg computed by sqlite over the objects a {@link Request}
+     * matches, optionally per value of a tag, without loading any object. Ordering of the
+     * request is ignored, a limit restricts it to the first objects by timestamp. Requests
+     * for more than 400 ids emit an error.
+     */
+    public class Aggregation {
+        private final Request request;
+        private final AGGREGATE function;
+        /** Null for the timestamp or, for counts, the objects themselves **/
+        private final String tag;
+        private final SqliteType valueType;
+        private String groupByTag;
+
+        Aggregation(Request request, AGGREGATE function, String tag, SqliteType valueType) {
+            this.request = request;
+            this.function = function;
+            this.tag = tag;
+            this.valueType = valueType;
+        }
+
+        /** Aggregates separately per value of the tag, objects without it are left out **/
+        public Aggregation groupByTag(String tag) {
+            groupByTag = tag;
+            return this;
+        }
+
+        /**
+         * @return the aggregate, null for min, max and avg if nothing matches
+         */
+        public Observable<Double> execute() {
+            return createDbObservable(new Observable.OnSubscribe<Double>() {
+                @Override
+                public void call(Subscriber<? super Double> subscriber) {
+                    Map<String, Double> result;
+                    try {
+                        result = executeSync(false);
+                    } catch (Exception e) {
+                        subscriber.onError(e);
+                        return;
+                    }
+                    Double value = result.isEmpty() ? null : result.values().iterator().next();
+                    if (value == null && (function == AGGREGATE.COUNT || function == AGGREGATE.SUM)) {
+                        value = 0d;
+                    }
+                    subscriber.onNext(value);
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        /**
+         * @return the aggregate per value of the group by tag, in ascending order of the
+         * values as text. Values nothing matches are absent.
+         */
+        public Observable<Map<String, Double>> executeGrouped() {
+            if (groupByTag == null) {
+                throw new IllegalStateException("executeGrouped needs groupByTag");
+            }
+            return createDbObservable(new Observable.OnSubscribe<Map<String, Double>>() {
+                @Override
+                public void call(Subscriber<? super Map<String, Double>> subscriber) {
+                    Map<String, Double> result;
+                    try {
+                        result = executeSync(true);
+                    } catch (Exception e) {
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(result);
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        private Map<String, Double> executeSync(boolean grouped) throws DatabaseException {
+            // Partial results of avg or of a limit don't combine, the ids must fit in one statement
+            if (request.ids != null && request.ids.size() > MAX_IDS_PER_STATEMENT) {
+                throw new DatabaseException(
+                        "Can't aggregate over more than " + MAX_IDS_PER_STATEMENT + " ids");
+            }
+            long start = System.nanoTime();
+            StoredObject.TYPE type = request.type;
+            DatabaseAccessManager manager = managerFor(type);
+            StorageConnection db = null;
+            StorageCursor cursor = null;
+            Map<String, Double> result = new LinkedHashMap<String, Double>();
+            long lockWait = manager.lockTypesForRead(type.getTypeName());
+            try {
+                db = manager.getReadableDatabase();
+                if (db == null) {
+                    throw new DatabaseException("Database can't be opened for reading");
+                }
+                List<String> args = new ArrayList<String>();
+                String sql = buildSql(grouped, args);
+                String[] sqlArgs = args.toArray(new String[args.size()]);
+                long queryStart = System.nanoTime();
+                cursor = db.rawQuery(sql, sqlArgs);
+                int valueIndex = grouped ? 1 : 0;
+                while (cursor.moveToNext()) {
+                    result.put(grouped ? cursor.getString(0) : null,
+                            cursor.isNull(valueIndex) ? null : cursor.getDouble(valueIndex));
+                }
+                recordIfSlow(db, sql, sqlArgs, result.size(), lockWait,
+                        System.nanoTime() - queryStart, 0);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                manager.releaseDb(db);
+                manager.unlockTypesForRead(type.getTypeName());
+            }
+            recordOperation(DatabaseMetrics.Operation.AGGREGATE, type, start, result.size());
+            return result;
+        }
+
+        /**
+         * SELECT [group,] FUNCTION(value) FROM objects joined with the tags or hot tag
+         * columns holding the value and the group, WHERE the object matches the request.
+         */
+        private String buildSql(boolean grouped, List<String> args) {
+            StoredObject.TYPE type = request.type;
+            TagIndex index = mTagIndexes.get(type.getTypeName());
+            StringBuilder joins = new StringBuilder();
+            boolean joinHot = false;
+            String value;
+            if (tag == null) {
+                value = function == AGGREGATE.COUNT ? "*" : StringUtil.concat("o.", ObjectsTableColumn.ts);
+            } else if (index != null && index.contains(tag)) {
+                joinHot = true;
+                value = StringUtil.concat("CAST(h.", index.column(tag), " AS ", valueType.name(), ")");
+            } else {
+                joins.append(tagJoin("v", args, tag));
+                value = StringUtil.concat("CAST(v.", TagsTableColumn.value, " AS ", valueType.name(), ")");
+            }
+            String group = null;
+            if (grouped) {
+                if (index != null && index.contains(groupByTag)) {
+                    joinHot = true;
+                    group = StringUtil.concat("h.", index.column(groupByTag));
+                } else {
+                    joins.append(tagJoin("g", args, groupByTag));
+                    group = StringUtil.concat("g.", TagsTableColumn.value);
+                }
+            }
+            if (joinHot) {
+                joins.append(StringUtil.concat(" JOIN ", index.getTable(), " h ON h.",
+                        ObjectsTableColumn.id, " = o.", ObjectsTableColumn.id));
+            }
+            StringBuilder sql = new StringBuilder("SELECT ");
+            if (grouped) {
+                sql.append(group).append(", ");
+            }
+            sql.append(function.name()).append('(').append(value).append(") FROM ")
+                    .append(DatabaseSchema.OBJECTS_TABLE).append(" o").append(joins)
+                    .append(" WHERE ").append(request.selection(index, args));
+            if (grouped && joinHot && group.startsWith("h.")) {
+                // Unlike the tags table, the hot column is there for objects without the tag
+                sql.append(" AND ").append(group).append(" IS NOT NULL");
+            }
+            if (grouped) {
+                sql.append(" GROUP BY ").append(group).append(" ORDER BY ").append(group);
+            }
+            return sql.toString();
+        }
+
+        private String tagJoin(String alias, List<String> args, String tag) {
+            args.add(tag);
+            return StringUtil.concat(" JOIN ", DatabaseSchema.TAGS_TABLE, " ", alias, " ON ",
+                    alias, ".", TagsTableColumn.type, " = o.", ObjectsTableColumn.type, " AND ",
+                    alias, ".", TagsTableColumn.id, " = o.", ObjectsTableColumn.id, " AND ",
+                    alias, ".", TagsTableColumn.tag, " = ?");
+        }
+    }
+
+    /**
+     * Objects of several types, by id or through {@link Request}s, loaded under one read
+     * lock per database file by as few statements as sqlite's limits allow: one select per
+     * request and per type of ids, joined by UNION ALL. Every row is decoded with its own
+     * type's class. Unlike {@link Request#execute()} the result cache isn't used, objects
+     * loaded by id go through the object cache.
+     */
+    public class BatchLoad {
+        private final Map<StoredObject.TYPE, Set<String>> keys =
+                new LinkedHashMap<StoredObject.TYPE, Set<String>>();
+        private final List<Request> requests = new ArrayList<Request>();
+
+        BatchLoad() {
+        }
+
+        public BatchLoad add(StoredObject.TYPE type, String... ids) {
+            return add(type, Arrays.asList(ids));
+        }
+
+        public BatchLoad add(StoredObject.TYPE type, Collection<String> ids) {
+            Set<String> typeIds = keys.get(type);
+            if (typeIds == null) {
+                typeIds = new LinkedHashSet<String>();
+                keys.put(type, typeIds);
+            }
+            typeIds.addAll(ids);
+            return this;
+        }
+
+        /**
+         * Adds the objects the request matches. A limit keeps the first objects by timestamp
+         * in the request's order.
+         */
+        public BatchLoad add(Request request) {
+            if (request.truncate) {
+                throw new UnsupportedOperationException("Can't batch a truncating request");
+            }
+            if (request.ids != null && request.ids.size() > MAX_IDS_PER_STATEMENT) {
+                throw new UnsupportedOperationException(
+                        "Can't batch a request for more than " + MAX_IDS_PER_STATEMENT + " ids");
+            }
+            requests.add(request);
+            return this;
+        }
+
+        public Observable<Result> execute() {
+            return createDbObservable(new Observable.OnSubscribe<Result>() {
+                @Override
+                public void call(Subscriber<? super Result> subscriber) {
+                    Result result;
+                    try {
+                        result = executeSync();
+                    } catch (Exception e) {
+                        Timber.e("Error when loading a batch: " + e.getMessage());
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(result);
+                    subscriber.onCompleted();
+                }
+            });
+        }
+
+        /** One select of the batch, the index of its part is its first column **/
+        private class Part {
+            final StoredObject.TYPE type;
+            final Request request;
+            final List<String> ids;
+            final List<String> loadedIds = new ArrayList<String>();
+            final List<StoredObject> objects = new ArrayList<StoredObject>();
+            final List<Long> timestamps = new ArrayList<Long>();
+
+            Part(StoredObject.TYPE type, Request request, List<String> ids) {
+                this.type = type;
+                this.request = request;
+                this.ids = ids;
+            }
+
+            String selection(List<String> args) {
+                if (request != null) {
+                    return request.selection(mTagIndexes.get(type.getTypeName()), args);
+                }
+                args.add(type.getTypeName());
+                args.addAll(ids);
+                return StringUtil.concat("o.", ObjectsTableColumn.type, " = ? AND o.",
+                        ObjectsTableColumn.id, " IN (", StringUtil.repeat("?", ", ", ids.size()), ")");
+            }
+        }
+
+        private Result executeSync() throws DatabaseException {
+            long start = System.nanoTime();
+            Result result = new Result();
+            ObjectCache cache = mObjectCache;
+            Map<DatabaseAccessManager, List<Part>> partsByManager =
+                    new LinkedHashMap<DatabaseAccessManager, List<Part>>();
+            for (Map.Entry<StoredObject.TYPE, Set<String>> entry : keys.entrySet()) {
+                StoredObject.TYPE type = entry.getKey();
+                List<String> missing = new ArrayList<String>();
+                for (String id : entry.getValue()) {
+                    ObjectCache.Entry cached = cache == null ? null : cache.get(type.getTypeName(), id);
+                    if (cached == null) {
+                        missing.add(id);
+                    } else {
+                        result.put(type, id, cached.object);
+                    }
+                }
+                for (int offset = 0; offset < missing.size(); offset += MAX_IDS_PER_STATEMENT) {
+                    addPart(partsByManager, new Part(type, null, missing.subList(offset,
+                            Math.min(missing.size(), offset + MAX_IDS_PER_STATEMENT))));
+                }
+            }
+            for (Request request : requests) {
+                addPart(partsByManager, new Part(request.type, request, null));
+            }
+            int rows = 0;
+            for (Map.Entry<DatabaseAccessManager, List<Part>> entry : partsByManager.entrySet()) {
+                rows += load(entry.getKey(), entry.getValue(), cache);
+            }
+            for (List<Part> parts : partsByManager.values()) {
+                for (Part part : parts) {
+                    if (part.request == null) {
+                        for (int i = 0; i < part.objects.size(); i++) {
+                            result.put(part.type, part.loadedIds.get(i), part.objects.get(i));
+                        }
+                    } else {
+                        result.requests.put(part.request, ordered(part));
+                    }
+                }
+            }
+            recordOperation(DatabaseMetrics.Operation.LOAD, commonType(), start, rows);
+            return result;
+        }
+
+        private void addPart(Map<DatabaseAccessManager, List<Part>> partsByManager, Part part) {
+            DatabaseAccessManager manager = managerFor(part.type);
+            List<Part> parts = partsByManager.get(manager);
+            if (parts == null) {
+                parts = new ArrayList<Part>();
+                partsByManager.put(manager, parts);
+            }
+            parts.add(part);
+        }
+
+        /**
+         * Runs the parts of one database file under one read lock of all their types
+         * @return number of rows loaded
+         */
+        private int load(DatabaseAccessManager manager, List<Part> parts, ObjectCache cache)
+                throws DatabaseException {
+            Set<String> typeNameSet = new HashSet<String>();
+            for (Part part : parts) {
+                typeNameSet.add(part.type.getTypeName());
+            }
+            String[] typeNames = typeNameSet.toArray(new String[typeNameSet.size()]);
+            StorageConnection db = null;
+            int rows = 0;
+            long lockWait = manager.lockTypesForRead(typeNames);
+            try {
+                db = manager.getReadableDatabase();
+                if (db == null) {
+                    throw new DatabaseException("Database can't be opened for reading");
+                }
+                StringBuilder sql = new StringBuilder();
+                List<String> args = new ArrayList<String>();
+                int selects = 0;
+                for (int p = 0; p < parts.size(); p++) {
+                    List<String> partArgs = new ArrayList<String>();
+                    String selection = parts.get(p).selection(partArgs);
+                    if (selects > 0 && (selects == MAX_SELECTS_PER_STATEMENT
+                            || args.size() + partArgs.size() > MAX_ARGS_PER_STATEMENT)) {
+                        rows += query(db, sql.toString(), args, parts, cache, lockWait);
+                        sql.setLength(0);
+                        args.clear();
+                        selects = 0;
+                    }
+                    if (selects > 0) {
+                        sql.append(" UNION ALL ");
+                    }
+                    sql.append(StringUtil.concat("SELECT ", p, ", o.", ObjectsTableColumn.id,
+                            ", o.", ObjectsTableColumn.json, ", o.", ObjectsTableColumn.ts, " FROM ",
+                            DatabaseSchema.OBJECTS_TABLE, " o WHERE ", selection));
+                    args.addAll(partArgs);
+                    selects++;
+                }
+                if (selects > 0) {
+                    rows += query(db, sql.toString(), args, parts, cache, lockWait);
+                }
+            } finally {
+                manager.releaseDb(db);
+                manager.unlockTypesForRead(typeNames);
+            }
+            return rows;
+        }
+
+        /** Decodes each row into its part, under the read lock **/
+        private int query(StorageConnection db, String sql, List<String> args, List<Part> parts,
+                          ObjectCache cache, long lockWait) {
+            String[] sqlArgs = args.toArray(new String[args.size()]);
+            long queryStart = System.nanoTime();
+            long decodeNanos = 0;
+            int rows = 0;
+            StorageCursor cursor = db.rawQuery(sql, sqlArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    Part part = parts.get((int) cursor.getLong(0));
+                    String id = cursor.getString(1);
+                    String json = cursor.getString(2);
+                    long ts = cursor.getLong(3);
+                    long decodeStart = System.nanoTime();
+                    StoredObject object = decodeObject(part.type, json);
+                    decodeNanos += System.nanoTime() - decodeStart;
+                    part.loadedIds.add(id);
+                    part.objects.add(object);
+                    part.timestamps.add(ts);
+                    if (cache != null && part.request == null) {
+                        cache.put(part.type.getTypeName(), id,
+                                new ObjectCache.Entry(object, ts, charsOf(part.type, json)));
+                    }
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+            recordIfSlow(db, sql, sqlArgs, rows, lockWait,
+                    System.nanoTime() - queryStart - decodeNanos, decodeNanos);
+            return rows;
+        }
+
+        /** The part's objects in its request's order by timestamp, if it has one **/
+        private List<StoredObject> ordered(Part part) {
+            final SORT_ORDER tsOrdering = part.request.tsOrdering;
+            if (tsOrdering == null) return part.objects;
+            List<ObjectCache.Entry> entries = new ArrayList<ObjectCache.Entry>(part.objects.size());
+            for (int i = 0; i < part.objects.size(); i++) {
+                entries.add(new ObjectCache.Entry(part.objects.get(i), part.timestamps.get(i), 0));
+            }
+            return fromCacheEntries(entries, tsOrdering);
+        }
+
+        /** The type of every object of the batch, null if there are several **/
+        private StoredObject.TYPE commonType() {
+            Set<StoredObject.TYPE> types = new HashSet<StoredObject.TYPE>(keys.keySet());
+            for (Request request : requests) {
+                types.add(request.type);
+            }
+            return types.size() == 1 ? types.iterator().next() : null;
+        }
+
+        /**
+         * The objects of a {@link BatchLoad}
+         */
+        public class Result {
+            private final Map<String, Map<String, StoredObject>> byId =
+                    new HashMap<String, Map<String, StoredObject>>();
+            private final Map<Request, List<StoredObject>> requests =
+                    new IdentityHashMap<Request, List<StoredObject>>();
+
+            Result() {
+            }
+
+            private void put(StoredObject.TYPE type, String id, StoredObject object) {
+                Map<String, StoredObject> objects = byId.get(type.getTypeName());
+                if (objects == null) {
+                    objects = new HashMap<String, StoredObject>();
+                    byId.put(type.getTypeName(), objects);
+                }
+                objects.put(id, object);
+            }
+
+            /** The object added by id, null if it isn't stored **/
+            @SuppressWarnings("unchecked")
+            public <T extends StoredObject> T get(StoredObject.TYPE type, String id) {
+                Map<String, StoredObject> objects = byId.get(type.getTypeName());
+                return objects == null ? null : (T) objects.get(id);
+            }
+
+            /** The objects the request added to the batch matched **/
+            @SuppressWarnings("unchecked")
+            public <T extends StoredObject> List<T> get(Request request) {
+                List<StoredObject> objects = requests.get(request);
+                return objects == null ? null : (List<T>) (List<?>) objects;
+            }
+        }
+    }
 }
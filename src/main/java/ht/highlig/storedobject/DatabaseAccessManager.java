@@ -1,94 +1,367 @@
 package ht.highlig.storedobject;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 
-import java.util.Properties;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by revant on 1/30/14.
+ *
+ * Rows are guarded by one lock stripe per type. Operations on several types take their
+ * stripes in type name order so they can't deadlock with each other. Every typed
+ * operation also holds the global lock for read, operations on the whole database
+ * (recreating tables) take it for write which excludes everything else.
+ *
+ * Write transactions can ask for a {@link Durability}, set on the connection before the
+ * transaction begins. Once one did, every write transaction sets its own, sqlite's
+ * settings when it asks for none, and holds the durability lock until its commit so a
+ * writer sharing the connection can't change them in between.
  */
-class DatabaseAccessManager extends SQLiteOpenHelper {
+class DatabaseAccessManager {
+  /** How often the wal is checkpointed while only relaxed commits write to it **/
+  static final long RELAXED_CHECKPOINT_INTERVAL_MS = 1000;
+  /** Past this relaxed commits wait for the checkpoint instead of skipping it when busy **/
+  private static final long MAX_CHECKPOINT_DELAY_MS = 10 * RELAXED_CHECKPOINT_INTERVAL_MS;
+
   private static DatabaseAccessManager mInstance = null;
+  private final StorageBackend backend;
   private final ReentrantReadWriteLock dbLock;
-  private static final int DB_VERSION = 1;
+  private final ConcurrentHashMap<String, LockStripe> stripes =
+      new ConcurrentHashMap<String, LockStripe>();
 
-  private AtomicInteger readers = new AtomicInteger(0);
+  /** Number of operations using the connection, it is closed when the last one is done **/
+  private int users = 0;
+  private StorageConnection pinnedDb;
+  private BlobStore blobStore;
+  private volatile DatabaseMetrics metrics;
+  private final ReentrantLock durabilityLock = new ReentrantLock();
+  /** PRAGMA synchronous and wal_autocheckpoint of the connection before any durability was set **/
+  private volatile long[] defaultSyncSettings;
+  private boolean walMode;
+  private boolean relaxedSinceCheckpoint;
+  private long lastCheckpointNanos = System.nanoTime();
 
   public static DatabaseAccessManager getInstance(Context context) {
     if (mInstance == null) {
-      mInstance = new DatabaseAccessManager(context, DB_VERSION);
+      mInstance = new DatabaseAccessManager(new AndroidStorageBackend(context));
     }
     return mInstance;
   }
 
-  private DatabaseAccessManager(Context context, int version) {
-    super(context, DatabaseSchema.DB_NAME, null, version);
+  DatabaseAccessManager(StorageBackend backend) {
+    this.backend = backend;
     this.dbLock = new ReentrantReadWriteLock();
   }
 
-  @Override
-  public void onCreate(SQLiteDatabase db) {
-    DatabaseSchema.recreateDb(db);
+  public StorageBackend getBackend() {
+    return backend;
+  }
+
+  /** Files of the oversized payloads stored in this database **/
+  public synchronized BlobStore getBlobStore() {
+    if (blobStore == null) {
+      blobStore = new BlobStore(backend.getDatabaseFile());
+    }
+    return blobStore;
+  }
+
+  public void setMetrics(DatabaseMetrics metrics) {
+    this.metrics = metrics;
   }
 
-  @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+  public void recreateDb(StorageConnection db) {
     DatabaseSchema.recreateDb(db);
   }
 
-  @Override
-  public SQLiteDatabase getWritableDatabase() {
-    SQLiteDatabase db = super.getWritableDatabase();
-    if (db != null && !db.isOpen()) {
-      // Sometimes for some reason the db returned could actually be
-      // closed. For now, naively recall super#getWritableDatabase
-      // to create or open the db in write mode.
-      db = super.getWritableDatabase();
+  private synchronized StorageConnection open(boolean writable) {
+    boolean wasOpen = backend.isOpen();
+    StorageConnection db = backend.open(writable);
+    if (db == null) return null;
+    users++;
+    DatabaseMetrics metrics = this.metrics;
+    if (!wasOpen && metrics != null) {
+      metrics.onConnectionOpened();
     }
-
     return db;
   }
 
-  @Override
-  public SQLiteDatabase getReadableDatabase() {
-    readers.incrementAndGet();
-    SQLiteDatabase db = super.getReadableDatabase();
-    if (db != null && !db.isOpen()) {
-      // Sometimes for some reason the db returned could actually be
-      // closed. For now, naively recall super#getReadableDatabase
-      // to create or open the db in read mode.
-      db = super.getReadableDatabase();
+  public StorageConnection getWritableDatabase() {
+    return open(true);
+  }
+
+  public StorageConnection getReadableDatabase() {
+    return open(false);
+  }
+
+  /**
+   * Hands back a connection obtained from get*Database, closing it if nobody else is
+   * using it. Null is ignored.
+   */
+  public synchronized void releaseDb(StorageConnection db) {
+    if (db == null) return;
+    if (--users == 0) {
+      backend.close();
+      DatabaseMetrics metrics = this.metrics;
+      if (metrics != null) {
+        metrics.onConnectionClosed();
+      }
     }
+  }
 
-    return db;
+  /**
+   * Opens the connection and keeps it open between operations until {@link #unpin()}.
+   * @return false if the database can't be opened
+   */
+  public synchronized boolean pin() {
+    if (pinnedDb == null) {
+      pinnedDb = getWritableDatabase();
+    }
+    return pinnedDb != null;
+  }
+
+  public synchronized void unpin() {
+    StorageConnection db = pinnedDb;
+    pinnedDb = null;
+    releaseDb(db);
+  }
+
+  /**
+   * Begins a write transaction with the durability, null keeps sqlite's settings. Every
+   * write transaction begins here and ends with {@link #endTransaction}.
+   */
+  public void beginTransaction(StorageConnection db, Durability durability) {
+    if (durability == null && defaultSyncSettings == null) {
+      db.beginTransaction();
+      return;
+    }
+    durabilityLock.lock();
+    try {
+      long[] defaults = defaultSyncSettings(db);
+      long synchronous = defaults[0];
+      long autoCheckpoint = defaults[1];
+      if (durability == Durability.RELAXED && walMode) {
+        synchronous = durability.synchronous;
+        autoCheckpoint = 0;
+      } else if (durability != null) {
+        synchronous = Math.max(durability.synchronous, Durability.NORMAL.synchronous);
+      }
+      // Can't be changed once the transaction began
+      db.execSQL(StringUtil.concat("PRAGMA synchronous = ", synchronous));
+      drain(db, StringUtil.concat("PRAGMA wal_autocheckpoint = ", autoCheckpoint));
+      db.beginTransaction();
+    } catch (RuntimeException e) {
+      durabilityLock.unlock();
+      throw e;
+    }
+  }
+
+  /** Restores sqlite's settings a transaction with a durability may have left on db **/
+  public void restoreSyncSettings(StorageConnection db) {
+    long[] defaults = defaultSyncSettings;
+    if (defaults == null) return;
+    db.execSQL(StringUtil.concat("PRAGMA synchronous = ", defaults[0]));
+    drain(db, StringUtil.concat("PRAGMA wal_autocheckpoint = ", defaults[1]));
+  }
+
+  private synchronized long[] defaultSyncSettings(StorageConnection db) {
+    if (defaultSyncSettings == null) {
+      walMode = "wal".equalsIgnoreCase(stringPragma(db, "journal_mode"));
+      defaultSyncSettings = new long[]{
+          Long.parseLong(stringPragma(db, "synchronous")),
+          Long.parseLong(stringPragma(db, "wal_autocheckpoint"))};
+    }
+    return defaultSyncSettings;
+  }
+
+  /**
+   * Commits or rolls back a transaction begun by {@link #beginTransaction}. Call
+   * {@link #onCommitted} once the locks of the write are released.
+   */
+  public void endTransaction(StorageConnection db) {
+    try {
+      db.endTransaction();
+    } finally {
+      if (durabilityLock.isHeldByCurrentThread()) {
+        durabilityLock.unlock();
+      }
+    }
   }
 
-  public void lockDbForRead() {
+  /**
+   * Checkpoints the wal if relaxed commits left it unsynced for long enough. Doesn't wait
+   * for the database to become idle unless that has been going on for too long, the
+   * caller holds no lock of this manager.
+   */
+  public void onCommitted(Durability durability) {
+    long sinceCheckpointMs;
+    synchronized (this) {
+      if (durability == Durability.RELAXED) {
+        relaxedSinceCheckpoint = true;
+      }
+      if (!relaxedSinceCheckpoint) return;
+      sinceCheckpointMs = (System.nanoTime() - lastCheckpointNanos) / 1000000L;
+      if (sinceCheckpointMs < RELAXED_CHECKPOINT_INTERVAL_MS) return;
+    }
+    if (sinceCheckpointMs < MAX_CHECKPOINT_DELAY_MS) {
+      if (!tryLockDbForWrite()) return;
+    } else {
+      lockDbForWrite();
+    }
+    StorageConnection db = null;
+    try {
+      db = getWritableDatabase();
+      if (db == null) return;
+      synchronized (this) {
+        // Another commit may have checkpointed while this one waited
+        if (!relaxedSinceCheckpoint) return;
+        relaxedSinceCheckpoint = false;
+        lastCheckpointNanos = System.nanoTime();
+      }
+      syncCheckpoint(db);
+    } finally {
+      releaseDb(db);
+      unlockDbForWrite();
+    }
+  }
+
+  /** Checkpoints with syncing, relaxed commits may have left synchronous off **/
+  private void syncCheckpoint(StorageConnection db) {
+    long synchronous = Math.max(defaultSyncSettings(db)[0], Durability.NORMAL.synchronous);
+    db.execSQL(StringUtil.concat("PRAGMA synchronous = ", synchronous));
+    drain(db, "PRAGMA wal_checkpoint(PASSIVE)");
+  }
+
+  private static String stringPragma(StorageConnection db, String pragma) {
+    StorageCursor cursor = db.rawQuery(StringUtil.concat("PRAGMA ", pragma), null);
+    try {
+      return cursor.moveToNext() ? cursor.getString(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static void drain(StorageConnection db, String sql) {
+    StorageCursor cursor = db.rawQuery(sql, null);
+    try {
+      while (cursor.moveToNext()) {
+        // run the statement to completion
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private LockStripe stripe(String typeName) {
+    LockStripe stripe = stripes.get(typeName);
+    if (stripe == null) {
+      stripe = new LockStripe(typeName);
+      LockStripe existing = stripes.putIfAbsent(typeName, stripe);
+      if (existing != null) {
+        stripe = existing;
+      }
+    }
+    return stripe;
+  }
+
+  /** Sorted and without duplicates, the order stripes are always acquired in **/
+  private static String[] lockOrder(String[] typeNames) {
+    if (typeNames.length < 2) return typeNames;
+    String[] sorted = typeNames.clone();
+    Arrays.sort(sorted);
+    int unique = 1;
+    for (int i = 1; i < sorted.length; i++) {
+      if (!sorted[i].equals(sorted[unique - 1])) {
+        sorted[unique++] = sorted[i];
+      }
+    }
+    return unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+  }
+
+  /**
+   * @return nanoseconds spent waiting for the locks
+   */
+  public long lockTypesForRead(String... typeNames) {
+    long start = System.nanoTime();
     dbLock.readLock().lock();
+    long wait = System.nanoTime() - start;
+    for (String typeName : lockOrder(typeNames)) {
+      wait += stripe(typeName).lockForRead();
+    }
+    return recordLockWait(false, wait);
   }
 
-  private void unlockDbForRead() {
+  public void unlockTypesForRead(String... typeNames) {
+    for (String typeName : lockOrder(typeNames)) {
+      stripe(typeName).unlockForRead();
+    }
     dbLock.readLock().unlock();
   }
 
-  public void lockDbForWrite() {
+  /**
+   * @return nanoseconds spent waiting for the locks
+   */
+  public long lockTypesForWrite(String... typeNames) {
+    long start = System.nanoTime();
+    dbLock.readLock().lock();
+    long wait = System.nanoTime() - start;
+    for (String typeName : lockOrder(typeNames)) {
+      wait += stripe(typeName).lockForWrite();
+    }
+    return recordLockWait(true, wait);
+  }
+
+  public void unlockTypesForWrite(String... typeNames) {
+    for (String typeName : lockOrder(typeNames)) {
+      stripe(typeName).unlockForWrite();
+    }
+    dbLock.readLock().unlock();
+  }
+
+  /**
+   * Locks the whole database, waiting for every typed operation to finish.
+   * @return nanoseconds spent waiting for the lock
+   */
+  public long lockDbForWrite() {
+    long start = System.nanoTime();
     dbLock.writeLock().lock();
+    return recordLockWait(true, System.nanoTime() - start);
+  }
+
+  /**
+   * Locks the whole database only if no operation is using it or waiting for it.
+   * @return whether the lock was taken
+   */
+  public boolean tryLockDbForWrite() {
+    if (dbLock.hasQueuedThreads()) return false;
+    return dbLock.writeLock().tryLock();
   }
 
   public void unlockDbForWrite() {
     dbLock.writeLock().unlock();
   }
 
-  public void unlockAndCloseDbAfterRead(SQLiteDatabase db) {
-    if (readers.decrementAndGet() == 0 && db != null) {
-      db.close();
+  private long recordLockWait(boolean write, long waitNanos) {
+    DatabaseMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.onLockWait(write, waitNanos);
     }
+    return waitNanos;
+  }
 
-    unlockDbForRead();
+  public List<LockStats> getLockStats() {
+    List<LockStats> stats = new ArrayList<LockStats>(stripes.size());
+    for (LockStripe stripe : stripes.values()) {
+      stats.add(stripe.getStats());
+    }
+    return stats;
   }
 
+  public LockStats getLockStats(String typeName) {
+    return stripe(typeName).getStats();
+  }
 }
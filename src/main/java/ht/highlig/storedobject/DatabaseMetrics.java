@@ -0,0 +1,47 @@
+package ht.highlig.storedobject;
+
+/**
+ * Listener for instrumentation events emitted by {@link Database}. Callbacks are invoked
+ * synchronously on the thread doing the work, often while a db lock is held, so
+ * implementations must be cheap and must not call back into the database.
+ *
+ * See {@link HistogramDatabaseMetrics} for an implementation that keeps snapshot-able
+ * histograms.
+ */
+public interface DatabaseMetrics {
+    public enum Operation {
+        SAVE,
+        LOAD,
+        DELETE,
+        CLEAR,
+        UPDATE,
+        AGGREGATE
+    }
+
+    /**
+     * @param type type the operation ran on or null if it touched multiple types
+     * @param rows number of rows written for writes, rows returned for loads
+     */
+    public void onOperation(Operation operation, Database.StoredObject.TYPE type,
+                            long durationNanos, int rows);
+
+    public void onLockWait(boolean write, long waitNanos);
+
+    public void onTransaction(long durationNanos);
+
+    /**
+     * Time the commit of a write transaction took
+     * @param durability the transaction's, null if it kept sqlite's settings
+     */
+    public void onCommit(Durability durability, long durationNanos);
+
+    /** Length of the json written to the objects table **/
+    public void onBytesSerialized(long bytes);
+
+    /** Length of the json read from the objects table **/
+    public void onBytesDeserialized(long bytes);
+
+    public void onConnectionOpened();
+
+    public void onConnectionClosed();
+}
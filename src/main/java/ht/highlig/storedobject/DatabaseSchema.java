@@ -1,5 +1,4 @@
 package ht.highlig.storedobject;
-import android.database.sqlite.SQLiteDatabase;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -8,10 +7,54 @@ import java.util.List;
  */
   class DatabaseSchema {
     public static final String DB_NAME = "stored.objects.db";
+    public static final int DB_VERSION = 1;
     public static final String OBJECTS_TABLE = "objects";
     public static final String TAGS_TABLE = "tags";
+    public static final String BLOBS_TABLE = "blobs";
+
+    /** Also run on databases created before the table existed, when a payload goes to a file **/
+    public static final String CREATE_BLOBS_TABLE = StringUtil.concat(
+            "CREATE TABLE IF NOT EXISTS ", BLOBS_TABLE, " (",
+            BlobsTableColumn.hash.getNameAndType(), ",",
+            BlobsTableColumn.refs.getNameAndType(), ",",
+            "PRIMARY KEY(", BlobsTableColumn.hash.name(), ")",
+            ");");
+
+    public static final String CHANGES_TABLE = "changes";
+
+    /** See {@link ChangeLog}, also run on open by {@link #addMissingTables} **/
+    public static final String CREATE_CHANGES_TABLE = StringUtil.concat(
+            "CREATE TABLE IF NOT EXISTS ", CHANGES_TABLE, " (",
+            ChangesTableColumn.seq.getNameAndType(), " PRIMARY KEY AUTOINCREMENT,",
+            ChangesTableColumn.type.getNameAndType(), ",",
+            ChangesTableColumn.id.getNameAndType(), ",",
+            ChangesTableColumn.op.getNameAndType(),
+            ");");
+
+    public static final String CREATE_CHANGES_INDEX = StringUtil.concat(
+            "CREATE INDEX IF NOT EXISTS ",
+            CHANGES_TABLE, "_", ChangesTableColumn.type.name(), "_index",
+            " ON ", CHANGES_TABLE, " (", ChangesTableColumn.type.name(), ", ",
+            ChangesTableColumn.id.name(), ");");
+
+    /** Ids matched by a delete by query, each connection has its own **/
+    public static final String DELETED_IDS_TABLE = "temp.deleted_ids";
+
+    public static final String CREATE_DELETED_IDS_TABLE = StringUtil.concat(
+            "CREATE TEMP TABLE IF NOT EXISTS deleted_ids (",
+            ObjectsTableColumn.id.getNameAndType(), " PRIMARY KEY);");
+
+    /**
+     * Lets {@link Maintenance} hand freed pages back to the file system. Only takes effect
+     * on a file without tables yet, or with a VACUUM after it: the Android backend runs one
+     * on new files, older files are converted once by maintenance.
+     */
+    public static final String AUTO_VACUUM = "PRAGMA auto_vacuum = INCREMENTAL";
+    /** Value of PRAGMA auto_vacuum for {@link #AUTO_VACUUM} **/
+    public static final int AUTO_VACUUM_INCREMENTAL = 2;
 
     public static final List<String> COMMANDS = new LinkedList<String>() {{
+        add(AUTO_VACUUM);
         add(StringUtil.concat(
                 "DROP TABLE IF EXISTS ", OBJECTS_TABLE, ";"));
         add(StringUtil.concat(
@@ -47,9 +90,80 @@ import java.util.List;
                 " ON ", TAGS_TABLE, " (", TagsTableColumn.type.name(),", ",
                 TagsTableColumn.id.name(),");"));
 
+        //Blobs table
+        add(StringUtil.concat("DROP TABLE IF EXISTS ", BLOBS_TABLE, ";"));
+        add(CREATE_BLOBS_TABLE);
+
+        //Changes table, kept by a recreate so seqs keep increasing
+        add(CREATE_CHANGES_TABLE);
+        add(CREATE_CHANGES_INDEX);
     }};
 
-    public static void recreateDb(SQLiteDatabase db) {
+    /**
+     * Tables added to the schema after files at {@link #DB_VERSION} were created, which a
+     * recreate would wipe. Backends run them whenever they open a writable connection.
+     */
+    public static void addMissingTables(StorageConnection db) {
+        db.execSQL(CREATE_CHANGES_TABLE);
+        db.execSQL(CREATE_CHANGES_INDEX);
+    }
+
+    /**
+     * stored.objects.db -> stored.objects.shard.db
+     */
+    public static String shardDbName(String dbName, String shardName) {
+        String extension = ".db";
+        String base = dbName.endsWith(extension)
+                ? dbName.substring(0, dbName.length() - extension.length()) : dbName;
+        return StringUtil.concat(base, ".", shardName, extension);
+    }
+
+    public static final String INSERT_OBJECT = StringUtil.concat(
+            "INSERT OR REPLACE INTO ", OBJECTS_TABLE, " (",
+            ObjectsTableColumn.id, ", ", ObjectsTableColumn.type, ", ",
+            ObjectsTableColumn.json, ", ", ObjectsTableColumn.ts, ") VALUES (?, ?, ?, ?)");
+
+    public static final String INSERT_TAG = StringUtil.concat(
+            "INSERT OR REPLACE INTO ", TAGS_TABLE, " (",
+            TagsTableColumn.id, ", ", TagsTableColumn.type, ", ",
+            TagsTableColumn.tag, ", ", TagsTableColumn.value, ") VALUES (?, ?, ?, ?)");
+
+    public static final String DELETE_TAGS = StringUtil.concat(
+            "DELETE FROM ", TAGS_TABLE, " WHERE ",
+            TagsTableColumn.type, " = ? AND ", TagsTableColumn.id, " = ?");
+
+    /**
+     * Builds a SELECT statement, the equivalent of SQLiteQueryBuilder#buildQueryString
+     * without the android dependency.
+     */
+    public static String buildQuery(boolean distinct, String table, String[] columns,
+                                    String where, String groupBy, String having,
+                                    String orderBy, String limit) {
+        StringBuilder query = new StringBuilder("SELECT ");
+        if (distinct) {
+            query.append("DISTINCT ");
+        }
+        if (columns == null || columns.length == 0) {
+            query.append("* ");
+        } else {
+            query.append(StringUtil.join(", ", (Object[]) columns)).append(' ');
+        }
+        query.append("FROM ").append(table);
+        appendClause(query, " WHERE ", where);
+        appendClause(query, " GROUP BY ", groupBy);
+        appendClause(query, " HAVING ", having);
+        appendClause(query, " ORDER BY ", orderBy);
+        appendClause(query, " LIMIT ", limit);
+        return query.toString();
+    }
+
+    private static void appendClause(StringBuilder query, String name, String clause) {
+        if (clause != null && clause.length() > 0) {
+            query.append(name).append(clause);
+        }
+    }
+
+    public static void recreateDb(StorageConnection db) {
         for (String command : COMMANDS) {
             db.execSQL(command);
         }
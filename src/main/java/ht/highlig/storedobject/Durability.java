@@ -0,0 +1,33 @@
+package ht.highlig.storedobject;
+
+/**
+ * How hard a write transaction makes sure its commit survives a crash of the OS or a
+ * power loss, cheaper modes commit faster. None of them risks corrupting the file and
+ * every mode survives the app itself crashing.
+ */
+public enum Durability {
+    /** The wal is synced on every commit **/
+    FULL(2),
+    /** Commits are synced by the next checkpoint, a power loss may roll back the latest ones **/
+    NORMAL(1),
+    /**
+     * Commits aren't synced and don't checkpoint, instead the wal is checkpointed and synced
+     * about once a second, a power loss may roll back the commits since. Meant for data that
+     * can be fetched again. Same as NORMAL if the file isn't in wal mode.
+     */
+    RELAXED(0);
+
+    /** Value of PRAGMA synchronous **/
+    final int synchronous;
+
+    Durability(int synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    /** The mode keeping the stronger promise, null only if both are null **/
+    static Durability strongest(Durability a, Durability b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.ordinal() <= b.ordinal() ? a : b;
+    }
+}
@@ -0,0 +1,111 @@
+package ht.highlig.storedobject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * File helpers for snapshots, restores and payload files.
+ */
+class FileUtil {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] SQLITE_SIDE_FILES = {"-journal", "-wal", "-shm"};
+
+    public static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    public static void copy(Reader in, Writer out) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE / 2];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Copies the files of source that destination doesn't have yet. Nothing happens if
+     * source doesn't exist.
+     */
+    public static void copyMissingFiles(File source, File destination) throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            File target = new File(destination, file.getName());
+            if (file.isFile() && !target.exists()) {
+                copyAtomically(file, target);
+            }
+        }
+    }
+
+    /**
+     * Copies to a temporary file next to the destination, fsyncs it and renames it over the
+     * destination so readers never see a partial copy.
+     */
+    public static void copyAtomically(File source, File destination) throws IOException {
+        File parent = destination.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(destination.getPath() + ".tmp");
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                copy(in, out);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temp.renameTo(destination)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + destination);
+        }
+    }
+
+    /** Writes data to a temporary file, fsyncs it and renames it to destination **/
+    public static void writeAtomically(byte[] data, File destination) throws IOException {
+        File temp = new File(destination.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(destination)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + destination);
+        }
+    }
+
+    /** Deletes the journal, wal and shm files sqlite keeps next to a database **/
+    public static void deleteSqliteSideFiles(File databaseFile) {
+        for (String suffix : SQLITE_SIDE_FILES) {
+            new File(databaseFile.getPath() + suffix).delete();
+        }
+    }
+
+    public static boolean isSqliteFile(File file) throws IOException {
+        byte[] header = new byte[16];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (in.read(header) != header.length) return false;
+        } finally {
+            in.close();
+        }
+        return new String(header, "US-ASCII").equals("SQLite format 3\u0000");
+    }
+}
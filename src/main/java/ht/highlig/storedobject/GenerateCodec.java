@@ -0,0 +1,18 @@
+package ht.highlig.storedobject;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a {@link StoredObjectCodec} named &lt;Class&gt;_StoredObjectCodec next to the
+ * annotated {@link Database.StoredObject}, when the processor in processor/ is on the
+ * annotation processor path. Serialized fields can't be private. The class needs either a
+ * constructor taking every serialized field, matched by name, or a no-arg constructor and
+ * non-final fields.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateCodec {
+}
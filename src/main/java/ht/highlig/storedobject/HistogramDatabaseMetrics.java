@@ -0,0 +1,166 @@
+package ht.highlig.storedobject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DatabaseMetrics} implementation keeping per operation and per type latency
+ * histograms plus running counters. Histograms are created once per type, after that
+ * recording does not allocate.
+ */
+public class HistogramDatabaseMetrics implements DatabaseMetrics {
+    /** Key used for operations spanning multiple types **/
+    public static final String MIXED_TYPES = "*";
+
+    private final ConcurrentHashMap<String, LatencyHistogram[]> operations =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
+    private final LatencyHistogram readLockWaits = new LatencyHistogram();
+    private final LatencyHistogram writeLockWaits = new LatencyHistogram();
+    private final LatencyHistogram transactions = new LatencyHistogram();
+    /** One per durability, the last one for commits that kept sqlite's settings **/
+    private final LatencyHistogram[] commits = new LatencyHistogram[Durability.values().length + 1];
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicLong bytesSerialized = new AtomicLong();
+    private final AtomicLong bytesDeserialized = new AtomicLong();
+    private final AtomicLong connectionOpens = new AtomicLong();
+    private final AtomicLong connectionCloses = new AtomicLong();
+
+    public HistogramDatabaseMetrics() {
+        for (int i = 0; i < commits.length; i++) {
+            commits[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void onOperation(Operation operation, Database.StoredObject.TYPE type,
+                            long durationNanos, int rows) {
+        histogramsFor(type == null ? MIXED_TYPES : type.getTypeName())[operation.ordinal()]
+                .record(durationNanos);
+        if (operation == Operation.LOAD || operation == Operation.AGGREGATE) {
+            rowsRead.addAndGet(rows);
+        } else {
+            rowsWritten.addAndGet(rows);
+        }
+    }
+
+    @Override
+    public void onLockWait(boolean write, long waitNanos) {
+        (write ? writeLockWaits : readLockWaits).record(waitNanos);
+    }
+
+    @Override
+    public void onTransaction(long durationNanos) {
+        transactions.record(durationNanos);
+    }
+
+    @Override
+    public void onCommit(Durability durability, long durationNanos) {
+        commitsOf(durability).record(durationNanos);
+    }
+
+    private LatencyHistogram commitsOf(Durability durability) {
+        return commits[durability == null ? commits.length - 1 : durability.ordinal()];
+    }
+
+    @Override
+    public void onBytesSerialized(long bytes) {
+        bytesSerialized.addAndGet(bytes);
+    }
+
+    @Override
+    public void onBytesDeserialized(long bytes) {
+        bytesDeserialized.addAndGet(bytes);
+    }
+
+    @Override
+    public void onConnectionOpened() {
+        connectionOpens.incrementAndGet();
+    }
+
+    @Override
+    public void onConnectionClosed() {
+        connectionCloses.incrementAndGet();
+    }
+
+    private LatencyHistogram[] histogramsFor(String typeName) {
+        LatencyHistogram[] histograms = operations.get(typeName);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[Operation.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] existing = operations.putIfAbsent(typeName, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * @param typeName type name or {@link #MIXED_TYPES}
+     */
+    public LatencyHistogram.Snapshot getOperationLatency(Operation operation, String typeName) {
+        return histogramsFor(typeName)[operation.ordinal()].snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getLockWait(boolean write) {
+        return (write ? writeLockWaits : readLockWaits).snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getTransactionDuration() {
+        return transactions.snapshot();
+    }
+
+    /**
+     * @param durability null for commits that kept sqlite's settings
+     */
+    public LatencyHistogram.Snapshot getCommitLatency(Durability durability) {
+        return commitsOf(durability).snapshot();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    public long getBytesSerialized() {
+        return bytesSerialized.get();
+    }
+
+    public long getBytesDeserialized() {
+        return bytesDeserialized.get();
+    }
+
+    public long getConnectionOpens() {
+        return connectionOpens.get();
+    }
+
+    public long getConnectionCloses() {
+        return connectionCloses.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram[] histograms : operations.values()) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+        readLockWaits.reset();
+        writeLockWaits.reset();
+        transactions.reset();
+        for (LatencyHistogram histogram : commits) {
+            histogram.reset();
+        }
+        rowsWritten.set(0);
+        rowsRead.set(0);
+        bytesSerialized.set(0);
+        bytesDeserialized.set(0);
+        connectionOpens.set(0);
+        connectionCloses.set(0);
+    }
+}
@@ -0,0 +1,97 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import rx.functions.Func0;
+
+/**
+ * Lets identical requests running at the same time share one execution: the first one
+ * loads, the others wait for its result and get a copy of the list holding the same
+ * objects. A request never joins a load that started before a write to its type, so it
+ * always sees the writes that completed before it.
+ */
+class InFlightRequests {
+    private static class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        List<?> result;
+        RuntimeException error;
+    }
+
+    private final Map<String, Call> calls = new HashMap<String, Call>();
+    /** Writes per type, part of the key of a load **/
+    private final Map<String, Long> writes = new HashMap<String, Long>();
+    private long resets;
+    private long saved;
+
+    private synchronized String flightKey(String typeName, String requestKey) {
+        Long count = writes.get(typeName);
+        return StringUtil.concat(requestKey, "\u0000", (count == null ? 0 : count) + resets);
+    }
+
+    /**
+     * Runs the load unless an identical one is running, in which case its result is
+     * returned (or its exception rethrown) once it is done.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> execute(String typeName, String requestKey, Func0<List<T>> load) {
+        String key = flightKey(typeName, requestKey);
+        Call call;
+        boolean leader = false;
+        synchronized (this) {
+            call = calls.get(key);
+            if (call == null) {
+                call = new Call();
+                calls.put(key, call);
+                leader = true;
+            } else {
+                saved++;
+            }
+        }
+        if (leader) {
+            try {
+                List<T> result = load.call();
+                call.result = result;
+                return result;
+            } catch (RuntimeException e) {
+                call.error = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    calls.remove(key);
+                }
+                call.done.countDown();
+            }
+        }
+        try {
+            call.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                saved--;
+            }
+            return load.call();
+        }
+        if (call.error != null) throw call.error;
+        return call.result == null ? null : new ArrayList<T>((List<T>) call.result);
+    }
+
+    /** Called by every write to the type, before it commits **/
+    public synchronized void onWrite(String typeName) {
+        Long count = writes.get(typeName);
+        writes.put(typeName, count == null ? 1 : count + 1);
+    }
+
+    /** Called when every type changes, e.g. on restore **/
+    public synchronized void onReset() {
+        resets++;
+    }
+
+    /** Executions saved by sharing a running one **/
+    public synchronized long getSavedExecutions() {
+        return saved;
+    }
+}
@@ -0,0 +1,430 @@
+package ht.highlig.storedobject;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backend for a plain JVM, talking to a sqlite file through a JDBC driver such as
+ * org.xerial:sqlite-jdbc which has to be on the classpath. The schema is versioned with
+ * PRAGMA user_version, the same way SQLiteOpenHelper does it.
+ *
+ * JDBC connections carry their transaction state, so each thread gets its own connection
+ * to the file, in WAL mode, the way android's connection pool hands out one per thread.
+ */
+public class JdbcStorageBackend implements StorageBackend {
+    public static final String URL_PREFIX = "jdbc:sqlite:";
+    private static final int BUSY_TIMEOUT_MS = 30000;
+
+    private final File mFile;
+    private final ThreadLocal<Connection> mConnection = new ThreadLocal<Connection>();
+    private final List<Connection> mOpenConnections = new ArrayList<Connection>();
+    private boolean mSchemaChecked = false;
+
+    public JdbcStorageBackend(File databaseFile) {
+        mFile = databaseFile;
+    }
+
+    @Override
+    public StorageConnection open(boolean writable) {
+        Connection connection = mConnection.get();
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        synchronized (this) {
+            boolean newFile = mFile.length() == 0;
+            try {
+                File parent = mFile.getAbsoluteFile().getParentFile();
+                if (parent != null && !parent.exists()) {
+                    parent.mkdirs();
+                }
+                connection = new Connection(DriverManager.getConnection(URL_PREFIX + mFile.getPath()));
+            } catch (SQLException e) {
+                throw new StorageException("Unable to open " + mFile, e);
+            }
+            connection.execSQL("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+            if (newFile) {
+                // Before the wal header is written, which makes the file non empty
+                connection.execSQL(DatabaseSchema.AUTO_VACUUM);
+            }
+            connection.execSQL("PRAGMA journal_mode = WAL");
+            if (!mSchemaChecked) {
+                ensureSchema(connection);
+                mSchemaChecked = true;
+            }
+            DatabaseSchema.addMissingTables(connection);
+            mOpenConnections.add(connection);
+        }
+        mConnection.set(connection);
+        return connection;
+    }
+
+    private static void ensureSchema(Connection connection) {
+        StorageCursor cursor = connection.rawQuery("PRAGMA user_version", null);
+        int version = 0;
+        try {
+            if (cursor.moveToNext()) {
+                version = (int) cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (version == DatabaseSchema.DB_VERSION) return;
+        connection.beginTransaction();
+        try {
+            DatabaseSchema.recreateDb(connection);
+            connection.execSQL("PRAGMA user_version = " + DatabaseSchema.DB_VERSION);
+            connection.setTransactionSuccessful();
+        } finally {
+            connection.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        for (Connection connection : mOpenConnections) {
+            if (connection.isOpen()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public File getDatabaseFile() {
+        return mFile;
+    }
+
+    @Override
+    public StorageBackend forShard(String shardName) {
+        return new JdbcStorageBackend(new File(mFile.getAbsoluteFile().getParentFile(),
+                DatabaseSchema.shardDbName(mFile.getName(), shardName)));
+    }
+
+    /** Closes the connections of all threads **/
+    @Override
+    public synchronized void close() {
+        for (Connection connection : mOpenConnections) {
+            if (connection.isOpen()) {
+                connection.close();
+            }
+        }
+        mOpenConnections.clear();
+        // The file may be swapped while closed, e.g. by a restore
+        mSchemaChecked = false;
+    }
+
+    static class Connection implements StorageConnection {
+        private final java.sql.Connection connection;
+        private int transactionDepth = 0;
+        private boolean levelSuccessful = false;
+        private boolean allSuccessful = true;
+
+        Connection(java.sql.Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void execSQL(String sql) {
+            Statement statement = null;
+            try {
+                statement = connection.createStatement();
+                statement.execute(sql);
+            } catch (SQLException e) {
+                throw new StorageException(sql, e);
+            } finally {
+                closeQuietly(statement);
+            }
+        }
+
+        @Override
+        public void execSQL(String sql, Object[] bindArgs) {
+            PreparedStatement statement = null;
+            try {
+                statement = connection.prepareStatement(sql);
+                if (bindArgs != null) {
+                    for (int i = 0; i < bindArgs.length; i++) {
+                        statement.setObject(i + 1, bindArgs[i]);
+                    }
+                }
+                statement.execute();
+            } catch (SQLException e) {
+                throw new StorageException(sql, e);
+            } finally {
+                closeQuietly(statement);
+            }
+        }
+
+        @Override
+        public StorageCursor rawQuery(String sql, String[] selectionArgs) {
+            PreparedStatement statement = null;
+            try {
+                statement = connection.prepareStatement(sql);
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                return new Cursor(statement, statement.executeQuery());
+            } catch (SQLException e) {
+                closeQuietly(statement);
+                throw new StorageException(sql, e);
+            }
+        }
+
+        @Override
+        public StorageStatement compileStatement(String sql) {
+            try {
+                return new CompiledStatement(connection.prepareStatement(sql));
+            } catch (SQLException e) {
+                throw new StorageException(sql, e);
+            }
+        }
+
+        @Override
+        public void incrementalVacuum(int pages) {
+            // The driver steps a statement once whatever it returns, freeing a single page
+            for (int i = 0; i < pages; i++) {
+                execSQL("PRAGMA incremental_vacuum(1)");
+            }
+        }
+
+        @Override
+        public int delete(String table, String whereClause, String[] whereArgs) {
+            String sql = StringUtil.concat("DELETE FROM ", table,
+                    whereClause == null ? "" : " WHERE " + whereClause);
+            PreparedStatement statement = null;
+            try {
+                statement = connection.prepareStatement(sql);
+                if (whereArgs != null) {
+                    for (int i = 0; i < whereArgs.length; i++) {
+                        statement.setString(i + 1, whereArgs[i]);
+                    }
+                }
+                return statement.executeUpdate();
+            } catch (SQLException e) {
+                throw new StorageException(sql, e);
+            } finally {
+                closeQuietly(statement);
+            }
+        }
+
+        @Override
+        public void beginTransaction() {
+            if (transactionDepth == 0) {
+                execSQL("BEGIN IMMEDIATE");
+                allSuccessful = true;
+            }
+            transactionDepth++;
+            levelSuccessful = false;
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            levelSuccessful = true;
+        }
+
+        @Override
+        public void endTransaction() {
+            if (transactionDepth == 0) {
+                throw new IllegalStateException("No transaction in progress");
+            }
+            allSuccessful &= levelSuccessful;
+            levelSuccessful = false;
+            transactionDepth--;
+            if (transactionDepth == 0) {
+                execSQL(allSuccessful ? "COMMIT" : "ROLLBACK");
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            try {
+                return !connection.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new StorageException("Unable to close connection", e);
+            }
+        }
+    }
+
+    private static class CompiledStatement implements StorageStatement {
+        private final PreparedStatement statement;
+
+        CompiledStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            try {
+                statement.setString(index, value);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to bind " + index, e);
+            }
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            try {
+                statement.setLong(index, value);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to bind " + index, e);
+            }
+        }
+
+        @Override
+        public void bindNull(int index) {
+            try {
+                statement.setNull(index, java.sql.Types.NULL);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to bind " + index, e);
+            }
+        }
+
+        @Override
+        public void clearBindings() {
+            try {
+                statement.clearParameters();
+            } catch (SQLException e) {
+                throw new StorageException("Unable to clear bindings", e);
+            }
+        }
+
+        @Override
+        public void execute() {
+            try {
+                statement.execute();
+            } catch (SQLException e) {
+                throw new StorageException("Unable to execute statement", e);
+            }
+        }
+
+        @Override
+        public long simpleQueryForLong() {
+            ResultSet resultSet = null;
+            try {
+                resultSet = statement.executeQuery();
+                if (!resultSet.next()) {
+                    throw new StorageException("Query returned no rows", null);
+                }
+                return resultSet.getLong(1);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to execute query", e);
+            } finally {
+                if (resultSet != null) {
+                    try {
+                        resultSet.close();
+                    } catch (SQLException ignored) {
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(statement);
+        }
+    }
+
+    private static class Cursor implements StorageCursor {
+        private final Statement statement;
+        private final ResultSet resultSet;
+
+        Cursor(Statement statement, ResultSet resultSet) {
+            this.statement = statement;
+            this.resultSet = resultSet;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            try {
+                return resultSet.next();
+            } catch (SQLException e) {
+                throw new StorageException("Unable to move cursor", e);
+            }
+        }
+
+        @Override
+        public int getColumnCount() {
+            try {
+                return resultSet.getMetaData().getColumnCount();
+            } catch (SQLException e) {
+                throw new StorageException("Unable to read metadata", e);
+            }
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            try {
+                return resultSet.findColumn(columnName) - 1;
+            } catch (SQLException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            try {
+                return resultSet.getString(columnIndex + 1);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to read column " + columnIndex, e);
+            }
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            try {
+                return resultSet.getLong(columnIndex + 1);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to read column " + columnIndex, e);
+            }
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            try {
+                return resultSet.getDouble(columnIndex + 1);
+            } catch (SQLException e) {
+                throw new StorageException("Unable to read column " + columnIndex, e);
+            }
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            try {
+                return resultSet.getObject(columnIndex + 1) == null;
+            } catch (SQLException e) {
+                throw new StorageException("Unable to read column " + columnIndex, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                resultSet.close();
+            } catch (SQLException ignored) {
+            }
+            closeQuietly(statement);
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement == null) return;
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
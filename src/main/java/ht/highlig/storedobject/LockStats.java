@@ -0,0 +1,35 @@
+package ht.highlig.storedobject;
+
+/**
+ * Contention statistics of one lock stripe, see {@link Database#getLockStats}.
+ */
+public class LockStats {
+    public final String typeName;
+    public final long readAcquisitions;
+    public final long writeAcquisitions;
+    /** Acquisitions that could not get the lock right away **/
+    public final long contendedAcquisitions;
+    public final long totalWaitNanos;
+    public final long maxWaitNanos;
+
+    LockStats(String typeName, long readAcquisitions, long writeAcquisitions,
+              long contendedAcquisitions, long totalWaitNanos, long maxWaitNanos) {
+        this.typeName = typeName;
+        this.readAcquisitions = readAcquisitions;
+        this.writeAcquisitions = writeAcquisitions;
+        this.contendedAcquisitions = contendedAcquisitions;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "{" +
+                "typeName:" + typeName +
+                ",readAcquisitions:" + readAcquisitions +
+                ",writeAcquisitions:" + writeAcquisitions +
+                ",contendedAcquisitions:" + contendedAcquisitions +
+                ",totalWaitNanos:" + totalWaitNanos +
+                ",maxWaitNanos:" + maxWaitNanos + "}";
+    }
+}
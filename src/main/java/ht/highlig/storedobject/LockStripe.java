@@ -0,0 +1,65 @@
+package ht.highlig.storedobject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write lock guarding the rows of one type, counting how often it was contended.
+ */
+class LockStripe {
+  private final String typeName;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong readAcquisitions = new AtomicLong();
+  private final AtomicLong writeAcquisitions = new AtomicLong();
+  private final AtomicLong contended = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  LockStripe(String typeName) {
+    this.typeName = typeName;
+  }
+
+  /**
+   * @return nanoseconds spent waiting for the lock
+   */
+  public long lockForRead() {
+    readAcquisitions.incrementAndGet();
+    return acquire(lock.readLock());
+  }
+
+  public void unlockForRead() {
+    lock.readLock().unlock();
+  }
+
+  /**
+   * @return nanoseconds spent waiting for the lock
+   */
+  public long lockForWrite() {
+    writeAcquisitions.incrementAndGet();
+    return acquire(lock.writeLock());
+  }
+
+  public void unlockForWrite() {
+    lock.writeLock().unlock();
+  }
+
+  private long acquire(Lock l) {
+    if (l.tryLock()) return 0;
+    long start = System.nanoTime();
+    l.lock();
+    long wait = System.nanoTime() - start;
+    contended.incrementAndGet();
+    totalWaitNanos.addAndGet(wait);
+    long max;
+    do {
+      max = maxWaitNanos.get();
+    } while (wait > max && !maxWaitNanos.compareAndSet(max, wait));
+    return wait;
+  }
+
+  public LockStats getStats() {
+    return new LockStats(typeName, readAcquisitions.get(), writeAcquisitions.get(),
+        contended.get(), totalWaitNanos.get(), maxWaitNanos.get());
+  }
+}
@@ -0,0 +1,240 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Reclaims the space deletes leave behind and refreshes the planner's statistics, in
+ * steps short enough to run between operations. A step only starts while nothing else
+ * uses the database file and holds it alone until done:
+ * <ol>
+ *     <li>a file created before auto vacuum was enabled is converted by one VACUUM, only if
+ *     the file is idle right away since the VACUUM can't be cut short</li>
+ *     <li>free pages are handed back to the file system a few at a time</li>
+ *     <li>the objects, tags and hot tag tables are analyzed, one per step and from a bounded
+ *     sample of rows, only the stale ones where PRAGMA optimize can tell</li>
+ *     <li>the wal is checkpointed and truncated, which shrinks the file</li>
+ * </ol>
+ */
+class Maintenance {
+    /** How long to wait before looking again whether the database is idle **/
+    private static final long IDLE_POLL_MS = 20;
+    /** Rows ANALYZE samples per index **/
+    private static final int ANALYSIS_LIMIT = 1000;
+    /** Older sqlite doesn't know PRAGMA analysis_limit and analyzes every row **/
+    private static final int[] ANALYSIS_LIMIT_VERSION = {3, 32};
+    /**
+     * PRAGMA optimize mask: list the ANALYZE statements instead of running them (1), for
+     * tables whose statistics are missing or stale (2), among all tables, not only the ones
+     * this connection queried (0x10000)
+     */
+    private static final int OPTIMIZE_LIST_ANALYZE = 0x10003;
+    /** Older sqlite lists nothing for that mask, or doesn't know the pragma at all **/
+    private static final int[] OPTIMIZE_LIST_VERSION = {3, 46};
+
+    private final int pagesPerStep;
+    private final long deadlineNanos;
+    private long freedPages;
+    private long freedBytes;
+    private int convertedFiles;
+    private int analyzedTables;
+    private int steps;
+    private boolean completed = true;
+
+    Maintenance(int pagesPerStep, long maxDurationMillis) {
+        this.pagesPerStep = Math.max(1, pagesPerStep);
+        this.deadlineNanos = System.nanoTime() + maxDurationMillis * 1000000L;
+    }
+
+    /**
+     * Runs every step on the manager's file.
+     * @return false if time ran out first
+     */
+    public boolean run(DatabaseAccessManager manager) throws InterruptedException {
+        if (!convertToIncremental(manager)) return stop();
+        while (true) {
+            StorageConnection db = awaitIdle(manager);
+            if (db == null) return stop();
+            try {
+                long free = longPragma(db, "freelist_count");
+                if (free == 0) break;
+                db.incrementalVacuum(pagesPerStep);
+                long freed = free - longPragma(db, "freelist_count");
+                freedPages += freed;
+                freedBytes += freed * longPragma(db, "page_size");
+                // Nothing freed means the file can't vacuum incrementally
+                if (freed == 0) break;
+            } finally {
+                endStep(manager, db);
+            }
+        }
+        List<String> analyzes;
+        boolean limitsAnalysis;
+        StorageConnection db = awaitIdle(manager);
+        if (db == null) return stop();
+        try {
+            String version = strings(db, "SELECT sqlite_version()").get(0);
+            analyzes = analyzes(db, version);
+            limitsAnalysis = isAtLeast(version, ANALYSIS_LIMIT_VERSION);
+        } finally {
+            endStep(manager, db);
+        }
+        for (String analyze : analyzes) {
+            db = awaitIdle(manager);
+            if (db == null) return stop();
+            try {
+                if (limitsAnalysis) {
+                    drain(db, StringUtil.concat("PRAGMA analysis_limit = ", ANALYSIS_LIMIT));
+                }
+                db.execSQL(analyze);
+                analyzedTables++;
+            } finally {
+                endStep(manager, db);
+            }
+        }
+        db = awaitIdle(manager);
+        if (db == null) return stop();
+        try {
+            drain(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+        } finally {
+            endStep(manager, db);
+        }
+        return true;
+    }
+
+    public MaintenanceReport getReport() {
+        return new MaintenanceReport(freedPages, freedBytes, convertedFiles, analyzedTables,
+                steps, completed);
+    }
+
+    private boolean stop() {
+        completed = false;
+        return false;
+    }
+
+    /**
+     * Auto vacuum can only be enabled on an empty file, or by rebuilding it. The rebuild
+     * reclaims every free page at once, so it is only done when there are some. A busy
+     * file is left for a later run, the other steps still run.
+     * @return false if time ran out first
+     */
+    private boolean convertToIncremental(DatabaseAccessManager manager) {
+        if (System.nanoTime() > deadlineNanos) return false;
+        StorageConnection db = lockIfIdle(manager);
+        if (db == null) {
+            completed = false;
+            return true;
+        }
+        try {
+            if (longPragma(db, "auto_vacuum") == DatabaseSchema.AUTO_VACUUM_INCREMENTAL) return true;
+            long free = longPragma(db, "freelist_count");
+            if (free == 0) return true;
+            long pageSize = longPragma(db, "page_size");
+            db.execSQL(DatabaseSchema.AUTO_VACUUM);
+            db.execSQL("VACUUM");
+            long freed = free - longPragma(db, "freelist_count");
+            freedPages += freed;
+            freedBytes += freed * pageSize;
+            convertedFiles++;
+            Timber.d("Converted " + manager.getBackend().getDatabaseFile() + " to incremental vacuum");
+            return true;
+        } finally {
+            endStep(manager, db);
+        }
+    }
+
+    /**
+     * Waits until nothing uses the database and locks it for one step.
+     * @return the connection to run the step on, null if time ran out
+     */
+    private StorageConnection awaitIdle(DatabaseAccessManager manager) throws InterruptedException {
+        while (System.nanoTime() <= deadlineNanos) {
+            StorageConnection db = lockIfIdle(manager);
+            if (db != null) return db;
+            Thread.sleep(IDLE_POLL_MS);
+        }
+        return null;
+    }
+
+    /**
+     * Locks the database for one step if nothing uses it.
+     * @return the connection to run the step on, null if the database is in use
+     */
+    private StorageConnection lockIfIdle(DatabaseAccessManager manager) {
+        if (!manager.tryLockDbForWrite()) return null;
+        StorageConnection db = manager.getWritableDatabase();
+        if (db == null) {
+            manager.unlockDbForWrite();
+            throw new StorageException("Database can't be opened for writing", null);
+        }
+        // The steps sync like the writes that kept sqlite's settings
+        manager.restoreSyncSettings(db);
+        steps++;
+        return db;
+    }
+
+    private static void endStep(DatabaseAccessManager manager, StorageConnection db) {
+        manager.releaseDb(db);
+        manager.unlockDbForWrite();
+    }
+
+    /** The ANALYZE statements to run, one per table **/
+    private static List<String> analyzes(StorageConnection db, String version) {
+        if (isAtLeast(version, OPTIMIZE_LIST_VERSION)) {
+            return strings(db, StringUtil.concat("PRAGMA optimize(", OPTIMIZE_LIST_ANALYZE, ")"));
+        }
+        List<String> analyzes = new ArrayList<String>();
+        for (String table : strings(db, StringUtil.concat("SELECT name FROM sqlite_master",
+                " WHERE type = 'table' AND (name IN ('", DatabaseSchema.OBJECTS_TABLE, "', '",
+                DatabaseSchema.TAGS_TABLE, "') OR name GLOB '", TagIndex.TABLE_PREFIX, "*')"))) {
+            analyzes.add(StringUtil.concat("ANALYZE \"", table, "\""));
+        }
+        return analyzes;
+    }
+
+    /** Whether a dotted version like 3.8.7 is at least the one given **/
+    private static boolean isAtLeast(String version, int[] minimum) {
+        String[] parts = version.split("\\.");
+        for (int i = 0; i < minimum.length; i++) {
+            int part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+            if (part != minimum[i]) return part > minimum[i];
+        }
+        return true;
+    }
+
+    /** First column of every row the statement returns **/
+    private static List<String> strings(StorageConnection db, String sql) {
+        List<String> strings = new ArrayList<String>();
+        StorageCursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                strings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return strings;
+    }
+
+    private static long longPragma(StorageConnection db, String pragma) {
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("PRAGMA ", pragma), null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void drain(StorageConnection db, String sql) {
+        StorageCursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                // run the statement to completion
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ht.highlig.storedobject;
+
+/**
+ * What a {@link Database#runMaintenance} pass did, summed over the database files.
+ */
+public class MaintenanceReport {
+    /** Pages handed back to the file system by incremental vacuum **/
+    public final long freedPages;
+    public final long freedBytes;
+    /** Files converted to incremental auto vacuum by a full VACUUM **/
+    public final int convertedFiles;
+    /** Tables whose planner statistics ANALYZE refreshed **/
+    public final int analyzedTables;
+    /** Steps run, each holding the database alone for a short time **/
+    public final int steps;
+    /** False if the time ran out before every step could run, or a file to convert was busy **/
+    public final boolean completed;
+
+    MaintenanceReport(long freedPages, long freedBytes, int convertedFiles, int analyzedTables,
+                      int steps, boolean completed) {
+        this.freedPages = freedPages;
+        this.freedBytes = freedBytes;
+        this.convertedFiles = convertedFiles;
+        this.analyzedTables = analyzedTables;
+        this.steps = steps;
+        this.completed = completed;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "{" +
+                "freedPages:" + freedPages +
+                ",freedBytes:" + freedBytes +
+                ",convertedFiles:" + convertedFiles +
+                ",analyzedTables:" + analyzedTables +
+                ",steps:" + steps +
+                ",completed:" + completed + "}";
+    }
+}
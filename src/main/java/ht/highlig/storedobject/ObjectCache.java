@@ -0,0 +1,124 @@
+package ht.highlig.storedobject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decoded objects keyed by type and id, consulted by loads by id.
+ * Entries are dropped while the type's write lock is held so a load can never put back
+ * an object that a concurrent write has replaced. Cached instances are shared between
+ * loads and must not be modified.
+ */
+public class ObjectCache {
+    static class Entry {
+        final Database.StoredObject object;
+        final long ts;
+        /** Json characters the object was decoded from **/
+        final long chars;
+
+        Entry(Database.StoredObject object, long ts, long chars) {
+            this.object = object;
+            this.ts = ts;
+            this.chars = chars;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    /** Invalidations per type, see {@link #putIfCurrent} **/
+    private final Map<String, Long> invalidations = new HashMap<String, Long>();
+    private long clears;
+    private long hits;
+    private long misses;
+
+    ObjectCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ObjectCache.Entry> eldest) {
+                return size() > ObjectCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static String key(String typeName, String id) {
+        return typeName + '\u0000' + id;
+    }
+
+    synchronized Entry get(String typeName, String id) {
+        Entry entry = entries.get(key(typeName, id));
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    synchronized void put(String typeName, String id, Entry entry) {
+        entries.put(key(typeName, id), entry);
+    }
+
+    /**
+     * Changes whenever entries of the type are dropped. Take it under the type's read lock
+     * to put objects decoded after the lock was released with {@link #putIfCurrent}.
+     */
+    synchronized long generation(String typeName) {
+        Long count = invalidations.get(typeName);
+        return (count == null ? 0 : count) + clears;
+    }
+
+    /**
+     * Puts the entry unless entries of its type were dropped since generation was taken,
+     * in which case the object may be stale.
+     */
+    synchronized boolean putIfCurrent(String typeName, String id, Entry entry, long generation) {
+        if (generation(typeName) != generation) return false;
+        entries.put(key(typeName, id), entry);
+        return true;
+    }
+
+    private void countInvalidation(String typeName) {
+        Long count = invalidations.get(typeName);
+        invalidations.put(typeName, count == null ? 1 : count + 1);
+    }
+
+    synchronized void invalidate(String typeName, String id) {
+        entries.remove(key(typeName, id));
+        countInvalidation(typeName);
+    }
+
+    synchronized void invalidateType(String typeName) {
+        countInvalidation(typeName);
+        String prefix = typeName + '\u0000';
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        clears++;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
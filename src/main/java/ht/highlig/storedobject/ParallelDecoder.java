@@ -0,0 +1,135 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.functions.Func1;
+
+/**
+ * Decodes large result sets on a bounded pool once their rows have been read and the read
+ * lock released, keeping the rows' order. Below both thresholds decoding stays on the
+ * loading thread, handing a few rows to other threads costs more than it saves.
+ */
+class ParallelDecoder {
+    /** Fewer rows than this per task isn't worth the hand off **/
+    private static final int MIN_ROWS_PER_TASK = 32;
+
+    /**
+     * Rows read under the lock and left to decode, with where they go in the result
+     */
+    static class Batch {
+        final List<Integer> positions = new ArrayList<Integer>();
+        final List<String> ids = new ArrayList<String>();
+        final List<String> jsons = new ArrayList<String>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        long chars;
+
+        void add(int position, String id, String json, long ts) {
+            positions.add(position);
+            ids.add(id);
+            jsons.add(json);
+            timestamps.add(ts);
+            chars += json.length();
+        }
+
+        int size() {
+            return jsons.size();
+        }
+    }
+
+    private final int minRows;
+    private final long minChars;
+    private final int threads;
+    private final ExecutorService executor;
+
+    ParallelDecoder(int minRows, long minChars, int threads) {
+        this.minRows = minRows;
+        this.minChars = minChars;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StoredObject-decode-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getMinRows() {
+        return minRows;
+    }
+
+    public long getMinChars() {
+        return minChars;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Whether the batch is large enough to decode in parallel **/
+    public boolean isWorthIt(Batch batch) {
+        if (threads < 2) return false;
+        return (minRows > 0 && batch.size() >= minRows) || (minChars > 0 && batch.chars >= minChars);
+    }
+
+    /**
+     * Decodes the jsons in chunks, one task per chunk, and returns the objects in the same
+     * order. A failure to decode any row is rethrown.
+     */
+    public <T> List<T> decode(final List<String> jsons, final Func1<String, T> decoder) {
+        // Two tasks per thread evens out chunks of uneven row sizes
+        int tasksWanted = threads * 2;
+        int chunkSize = Math.max(MIN_ROWS_PER_TASK, (jsons.size() + tasksWanted - 1) / tasksWanted);
+        List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
+        for (int start = 0; start < jsons.size(); start += chunkSize) {
+            final List<String> chunk = jsons.subList(start, Math.min(jsons.size(), start + chunkSize));
+            tasks.add(new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    List<T> objects = new ArrayList<T>(chunk.size());
+                    for (String json : chunk) {
+                        objects.add(decoder.call(json));
+                    }
+                    return objects;
+                }
+            });
+        }
+        List<T> objects = new ArrayList<T>(jsons.size());
+        try {
+            for (Future<List<T>> future : executor.invokeAll(tasks)) {
+                objects.addAll(future.get());
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down by a settings change while in use
+            objects.clear();
+            for (String json : jsons) {
+                objects.add(decoder.call(json));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while decoding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new StorageException("Unable to decode objects", e.getCause());
+        }
+        return objects;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
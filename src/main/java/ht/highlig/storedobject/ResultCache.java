@@ -0,0 +1,129 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of whole {@link Database.Request} results, keyed by the request's
+ * normalized fields. Bounded both by entries and by the json characters the results were
+ * decoded from. A write to a type drops every result of that type. Cached objects are
+ * shared between requests and must not be modified, the lists returned are copies.
+ */
+public class ResultCache {
+    private static class Entry {
+        final String typeName;
+        final List<Database.StoredObject> objects;
+        final long chars;
+
+        Entry(String typeName, List<Database.StoredObject> objects, long chars) {
+            this.typeName = typeName;
+            this.objects = objects;
+            this.chars = chars;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxChars;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /** Invalidations per type, see {@link #put} **/
+    private final Map<String, Long> invalidations = new HashMap<String, Long>();
+    private long clears;
+    private long chars;
+    private long hits;
+    private long misses;
+
+    ResultCache(int maxEntries, long maxChars) {
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Changes whenever results of the type are dropped. Take it before loading a result to
+     * {@link #put} it afterwards.
+     */
+    synchronized long generation(String typeName) {
+        Long count = invalidations.get(typeName);
+        return (count == null ? 0 : count) + clears;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized <T extends Database.StoredObject> List<T> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<T>((List<T>) (List<?>) entry.objects);
+    }
+
+    /**
+     * Caches the result unless results of its type were dropped since generation was
+     * taken, in which case it may be stale, or it is larger than the whole cache.
+     */
+    synchronized boolean put(String key, String typeName, List<? extends Database.StoredObject> objects,
+                             long resultChars, long generation) {
+        if (generation(typeName) != generation || resultChars > maxChars) return false;
+        Entry previous = entries.put(key, new Entry(typeName,
+                new ArrayList<Database.StoredObject>(objects), resultChars));
+        if (previous != null) {
+            chars -= previous.chars;
+        }
+        chars += resultChars;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || chars > maxChars) {
+            chars -= eldest.next().chars;
+            eldest.remove();
+        }
+        return true;
+    }
+
+    synchronized void invalidateType(String typeName) {
+        Long count = invalidations.get(typeName);
+        invalidations.put(typeName, count == null ? 1 : count + 1);
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.typeName.equals(typeName)) {
+                chars -= entry.chars;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        chars = 0;
+        clears++;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxChars() {
+        return maxChars;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Json characters of the cached results **/
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
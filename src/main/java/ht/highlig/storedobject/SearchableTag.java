@@ -0,0 +1,17 @@
+package ht.highlig.storedobject;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link GenerateCodec} class as a searchable tag, named after the field
+ * unless a name is given. If a class marks any field, its generated codec emits these tags
+ * instead of calling getStoredObjectSearchableTags().
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface SearchableTag {
+    String value() default "";
+}
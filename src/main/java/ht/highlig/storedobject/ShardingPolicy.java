@@ -0,0 +1,15 @@
+package ht.highlig.storedobject;
+
+/**
+ * Decides which database file objects of a type live in. Each shard gets its own file,
+ * connection and lock, so writes to one shard never block reads of another.
+ *
+ * @see TypeShardingPolicy
+ */
+public interface ShardingPolicy {
+    /**
+     * @return name of the shard for the type, or null to keep it in the main database.
+     * Must always return the same value for a given type.
+     */
+    public String getShard(Database.StoredObject.TYPE type);
+}
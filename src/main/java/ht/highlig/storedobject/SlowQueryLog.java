@@ -0,0 +1,100 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory log of queries that took longer than a configurable threshold.
+ * Each entry keeps the SQL, timings and the EXPLAIN QUERY PLAN output so that
+ * full scans and missing indexes can be tracked down after the fact.
+ */
+public class SlowQueryLog {
+    public static final int DEFAULT_CAPACITY = 50;
+
+    public static class Entry {
+        public final long timestampMillis;
+        public final String sql;
+        public final int argCount;
+        public final int rowCount;
+        public final long totalMillis;
+        public final long lockWaitMillis;
+        public final long queryMillis;
+        public final long decodeMillis;
+        public final String queryPlan;
+
+        Entry(String sql, int argCount, int rowCount, long lockWaitNanos, long queryNanos,
+              long decodeNanos, String queryPlan) {
+            this.timestampMillis = System.currentTimeMillis();
+            this.sql = sql;
+            this.argCount = argCount;
+            this.rowCount = rowCount;
+            this.lockWaitMillis = TimeUnit.NANOSECONDS.toMillis(lockWaitNanos);
+            this.queryMillis = TimeUnit.NANOSECONDS.toMillis(queryNanos);
+            this.decodeMillis = TimeUnit.NANOSECONDS.toMillis(decodeNanos);
+            this.totalMillis = TimeUnit.NANOSECONDS.toMillis(lockWaitNanos + queryNanos + decodeNanos);
+            this.queryPlan = queryPlan;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getName() + "{" +
+                    "timestampMillis:" + timestampMillis +
+                    ",sql:" + sql +
+                    ",argCount:" + argCount +
+                    ",rowCount:" + rowCount +
+                    ",totalMillis:" + totalMillis +
+                    ",lockWaitMillis:" + lockWaitMillis +
+                    ",queryMillis:" + queryMillis +
+                    ",decodeMillis:" + decodeMillis +
+                    ",queryPlan:" + queryPlan + "}";
+        }
+    }
+
+    private final ArrayDeque<Entry> entries;
+    private final int capacity;
+    private volatile long thresholdNanos = -1;
+
+    SlowQueryLog(int capacity) {
+        this.capacity = capacity;
+        this.entries = new ArrayDeque<Entry>(capacity);
+    }
+
+    /**
+     * Queries slower than this are recorded. A negative value disables the log.
+     */
+    public void setThresholdMillis(long thresholdMillis) {
+        thresholdNanos = thresholdMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    public boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    boolean isSlow(long totalNanos) {
+        long threshold = thresholdNanos;
+        return threshold >= 0 && totalNanos >= threshold;
+    }
+
+    synchronized void record(Entry entry) {
+        if (entries.size() == capacity) {
+            entries.removeFirst();
+        }
+        entries.addLast(entry);
+    }
+
+    /** Oldest entry first **/
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** Exports the current entries as a json array **/
+    public String export() {
+        return Database.GSON.toJson(getEntries());
+    }
+}
@@ -0,0 +1,36 @@
+package ht.highlig.storedobject;
+
+import java.io.File;
+
+/**
+ * A place objects can be stored in. The backend owns the connections to its file, which it
+ * opens on demand, creating the schema the first time, and closes all at once when asked
+ * to. Each thread uses its own connection or, on android, one shared database whose pool
+ * gives each thread its own.
+ *
+ * {@link AndroidStorageBackend} is used by default, {@link JdbcStorageBackend} runs the
+ * same store on a plain JVM.
+ */
+public interface StorageBackend {
+    /**
+     * Returns the calling thread's connection, opening it first if needed. It must only be
+     * used on that thread.
+     * @param writable whether the connection will be written to
+     */
+    public StorageConnection open(boolean writable);
+
+    /** Whether any thread's connection is open **/
+    public boolean isOpen();
+
+    /** The sqlite file, which may not exist yet **/
+    public File getDatabaseFile();
+
+    /**
+     * Returns a backend of the same kind for a separate database file, named after the
+     * shard and stored next to this backend's file.
+     */
+    public StorageBackend forShard(String shardName);
+
+    /** Closes the connections of all threads **/
+    public void close();
+}
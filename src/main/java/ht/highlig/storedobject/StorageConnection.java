@@ -0,0 +1,37 @@
+package ht.highlig.storedobject;
+
+/**
+ * The subset of sqlite operations used by {@link Database}. Mirrors the semantics of
+ * android.database.sqlite.SQLiteDatabase, including nested transactions which only
+ * commit when every level was marked successful.
+ */
+public interface StorageConnection {
+    public void execSQL(String sql);
+
+    public void execSQL(String sql, Object[] bindArgs);
+
+    public StorageCursor rawQuery(String sql, String[] selectionArgs);
+
+    public StorageStatement compileStatement(String sql);
+
+    /**
+     * Runs PRAGMA incremental_vacuum, which returns a row per page it frees, until up to
+     * pages pages are freed.
+     */
+    public void incrementalVacuum(int pages);
+
+    /**
+     * @return number of rows deleted
+     */
+    public int delete(String table, String whereClause, String[] whereArgs);
+
+    public void beginTransaction();
+
+    public void setTransactionSuccessful();
+
+    public void endTransaction();
+
+    public boolean isOpen();
+
+    public void close();
+}
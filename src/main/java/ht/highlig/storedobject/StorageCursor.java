@@ -0,0 +1,25 @@
+package ht.highlig.storedobject;
+
+/**
+ * Forward only cursor over a query result. Column indexes start at 0.
+ */
+public interface StorageCursor {
+    public boolean moveToNext();
+
+    public int getColumnCount();
+
+    /**
+     * @return index of the column or -1 if there is no such column
+     */
+    public int getColumnIndex(String columnName);
+
+    public String getString(int columnIndex);
+
+    public long getLong(int columnIndex);
+
+    public double getDouble(int columnIndex);
+
+    public boolean isNull(int columnIndex);
+
+    public void close();
+}
@@ -0,0 +1,11 @@
+package ht.highlig.storedobject;
+
+/**
+ * Unchecked failure raised by a {@link StorageBackend}, the counterpart of
+ * android.database.SQLException for backends that report checked exceptions.
+ */
+public class StorageException extends RuntimeException {
+    public StorageException(String reason, Throwable cause) {
+        super(reason, cause);
+    }
+}
@@ -0,0 +1,21 @@
+package ht.highlig.storedobject;
+
+/**
+ * A pre-compiled statement that can be re-bound and executed many times. Bind indexes
+ * start at 1.
+ */
+public interface StorageStatement {
+    public void bindString(int index, String value);
+
+    public void bindLong(int index, long value);
+
+    public void bindNull(int index);
+
+    public void clearBindings();
+
+    public void execute();
+
+    public long simpleQueryForLong();
+
+    public void close();
+}
@@ -0,0 +1,21 @@
+package ht.highlig.storedobject;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reflection free json encoding and tag extraction for one stored class, generated by the
+ * processor in processor/ for classes annotated with {@link GenerateCodec}. Used instead of
+ * Gson for types implementing {@link Database.StoredObject.CodecType}. The json written is
+ * the same Gson would write, so objects stored before and after adopting a codec mix.
+ */
+public interface StoredObjectCodec<T extends Database.StoredObject> {
+    public void write(JsonWriter out, T object) throws IOException;
+
+    public T read(JsonReader in) throws IOException;
+
+    /** Emits the searchable tags of the object, in place of getStoredObjectSearchableTags() **/
+    public void emitTags(T object, TagSink sink);
+}
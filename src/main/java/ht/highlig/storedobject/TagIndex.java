@@ -0,0 +1,207 @@
+package ht.highlig.storedobject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hot tags of one type, promoted from the tags table to typed columns of the type's own
+ * table (idx_&lt;type&gt;), one row per object and one index per column. Hot tags are only
+ * stored there. Instances are immutable, adding a tag makes a new one.
+ */
+class TagIndex {
+    static final String TABLE_PREFIX = "idx_";
+    private static final String COLUMN_PREFIX = "t_";
+
+    private final Database.StoredObject.TYPE type;
+    private final String typeName;
+    private final String table;
+    private final Map<String, SqliteType> tags;
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    private final String upsert;
+
+    TagIndex(Database.StoredObject.TYPE type) {
+        this(type, Collections.<String, SqliteType>emptyMap());
+    }
+
+    /** @param tags hot tags in column order, e.g. as {@link #readAll} found them **/
+    TagIndex(Database.StoredObject.TYPE type, Map<String, SqliteType> tags) {
+        this.type = type;
+        this.typeName = type.getTypeName();
+        this.table = quote(TABLE_PREFIX + typeName);
+        this.tags = Collections.unmodifiableMap(tags);
+        List<String> columns = new ArrayList<String>(tags.size() + 1);
+        columns.add(ObjectsTableColumn.id.name());
+        for (String tag : tags.keySet()) {
+            positions.put(tag, positions.size());
+            columns.add(column(tag));
+        }
+        this.upsert = StringUtil.concat("INSERT OR REPLACE INTO ", table, " (",
+                StringUtil.join(", ", columns.toArray()), ") VALUES (",
+                StringUtil.repeat("?", ", ", columns.size()), ")");
+    }
+
+    TagIndex with(String tag, SqliteType valueType) {
+        Map<String, SqliteType> tags = new LinkedHashMap<String, SqliteType>(this.tags);
+        tags.put(tag, valueType);
+        return new TagIndex(type, tags);
+    }
+
+    public Database.StoredObject.TYPE getStoredObjectType() {
+        return type;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public boolean contains(String tag) {
+        return tags.containsKey(tag);
+    }
+
+    /** Position of the tag in {@link #getTags()}, -1 if it isn't hot **/
+    public int indexOf(String tag) {
+        Integer position = positions.get(tag);
+        return position == null ? -1 : position;
+    }
+
+    public SqliteType getType(String tag) {
+        return tags.get(tag);
+    }
+
+    /** Hot tags in column order **/
+    public Set<String> getTags() {
+        return tags.keySet();
+    }
+
+    public String column(String tag) {
+        return quote(COLUMN_PREFIX + tag);
+    }
+
+    /** Binds the id then one value per hot tag, in {@link #getTags()} order **/
+    public String getUpsertSql() {
+        return upsert;
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Creates the table, its missing columns and their indexes, and moves values of the
+     * hot tags still in the tags table into the columns. Safe to run on every start.
+     */
+    public void create(StorageConnection db) {
+        db.execSQL(StringUtil.concat("CREATE TABLE IF NOT EXISTS ", table, " (",
+                ObjectsTableColumn.id.getNameAndType(), ", PRIMARY KEY(", ObjectsTableColumn.id, "))"));
+        Set<String> existing = new HashSet<String>();
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("PRAGMA table_info(", table, ")"), null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Map.Entry<String, SqliteType> entry : tags.entrySet()) {
+            String tag = entry.getKey();
+            String column = column(tag);
+            if (!existing.contains(COLUMN_PREFIX + tag)) {
+                db.execSQL(StringUtil.concat("ALTER TABLE ", table, " ADD COLUMN ", column, " ",
+                        entry.getValue()));
+            }
+            db.execSQL(StringUtil.concat("CREATE INDEX IF NOT EXISTS ",
+                    quote(TABLE_PREFIX + typeName + "_" + COLUMN_PREFIX + tag + "_index"),
+                    " ON ", table, " (", column, ")"));
+            moveFromTagsTable(db, tag, column);
+        }
+    }
+
+    /**
+     * An object of the type holding more than one value for the tag in the tags table, which
+     * a column can't keep.
+     * @return its id, null if every object has at most one value
+     */
+    public String findMultiValued(StorageConnection db, String tag) {
+        StorageCursor cursor = db.rawQuery(StringUtil.concat("SELECT ", TagsTableColumn.id,
+                " FROM ", DatabaseSchema.TAGS_TABLE, " WHERE ", TagsTableColumn.type, " = ? AND ",
+                TagsTableColumn.tag, " = ? GROUP BY ", TagsTableColumn.id, " HAVING COUNT(*) > 1",
+                " LIMIT 1"), new String[]{typeName, tag});
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void moveFromTagsTable(StorageConnection db, String tag, String column) {
+        String tagSelection = StringUtil.concat(TagsTableColumn.type, " = ? AND ",
+                TagsTableColumn.tag, " = ?");
+        Object[] args = new Object[]{typeName, tag};
+        db.execSQL(StringUtil.concat("INSERT OR IGNORE INTO ", table, " (", ObjectsTableColumn.id,
+                ") SELECT ", TagsTableColumn.id, " FROM ", DatabaseSchema.TAGS_TABLE,
+                " WHERE ", tagSelection), args);
+        db.execSQL(StringUtil.concat("UPDATE ", table, " SET ", column, " = (SELECT ",
+                TagsTableColumn.value, " FROM ", DatabaseSchema.TAGS_TABLE, " WHERE ", tagSelection,
+                " AND ", DatabaseSchema.TAGS_TABLE, ".", TagsTableColumn.id, " = ", table, ".",
+                ObjectsTableColumn.id, ") WHERE ", ObjectsTableColumn.id, " IN (SELECT ",
+                TagsTableColumn.id, " FROM ", DatabaseSchema.TAGS_TABLE, " WHERE ", tagSelection, ")"),
+                new Object[]{typeName, tag, typeName, tag});
+        db.delete(DatabaseSchema.TAGS_TABLE, tagSelection, new String[]{typeName, tag});
+    }
+
+    /**
+     * Hot tags of every idx_ table in the database, by type name, for the indexes declared
+     * before the database was last opened.
+     */
+    public static Map<String, Map<String, SqliteType>> readAll(StorageConnection db) {
+        Map<String, Map<String, SqliteType>> indexes = new HashMap<String, Map<String, SqliteType>>();
+        for (String name : tableNames(db)) {
+            Map<String, SqliteType> tags = new LinkedHashMap<String, SqliteType>();
+            StorageCursor cursor = db.rawQuery(StringUtil.concat("PRAGMA table_info(", quote(name), ")"), null);
+            try {
+                int nameIndex = cursor.getColumnIndex("name");
+                int typeIndex = cursor.getColumnIndex("type");
+                while (cursor.moveToNext()) {
+                    String column = cursor.getString(nameIndex);
+                    if (column.startsWith(COLUMN_PREFIX)) {
+                        tags.put(column.substring(COLUMN_PREFIX.length()),
+                                SqliteType.valueOf(cursor.getString(typeIndex).toUpperCase()));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            indexes.put(name.substring(TABLE_PREFIX.length()), tags);
+        }
+        return indexes;
+    }
+
+    /** Drops every idx_ table, for when the other tables are recreated **/
+    public static void dropAll(StorageConnection db) {
+        for (String name : tableNames(db)) {
+            db.execSQL(StringUtil.concat("DROP TABLE IF EXISTS ", quote(name)));
+        }
+    }
+
+    private static List<String> tableNames(StorageConnection db) {
+        List<String> tables = new ArrayList<String>();
+        StorageCursor cursor = db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND substr(name, 1, ?) = ?",
+                new String[]{String.valueOf(TABLE_PREFIX.length()), TABLE_PREFIX});
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+}
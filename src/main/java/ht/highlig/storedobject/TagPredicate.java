@@ -0,0 +1,44 @@
+package ht.highlig.storedobject;
+
+/**
+ * A condition on a tag of a {@link Database.Request}, compiled against the tags table or,
+ * for hot tags, against the type's {@link TagIndex} column.
+ */
+class TagPredicate {
+    final String tag;
+    final String op;
+    final String value;
+    final SqliteType valueType;
+
+    TagPredicate(String tag, String op, String value, SqliteType valueType) {
+        this.tag = tag;
+        this.op = op;
+        this.value = value;
+        this.valueType = valueType;
+    }
+
+    /** Selection on the tags table, the value is bound as the only argument **/
+    String tagsTableSelection() {
+        return StringUtil.concat(TagsTableColumn.tag, "= '", tag, "' AND ",
+                "CAST(", TagsTableColumn.value, " AS ", valueType.name(), ") ", op, " ? ");
+    }
+
+    /** Selection on the hot tag column, cast only if the column holds another type **/
+    String columnSelection(TagIndex index) {
+        String column = index.column(tag);
+        if (index.getType(tag) != valueType) {
+            column = StringUtil.concat("CAST(", column, " AS ", valueType.name(), ")");
+        }
+        return StringUtil.concat(column, " ", op, " ? ");
+    }
+
+    /** The predicate's fields, unambiguously separated, for request keys **/
+    String key() {
+        return StringUtil.concat(tag, "\u0001", op, "\u0001", value, "\u0001", valueType);
+    }
+
+    @Override
+    public String toString() {
+        return StringUtil.concat(tag, " ", op, " ", value, " (", valueType, ")");
+    }
+}
@@ -0,0 +1,11 @@
+package ht.highlig.storedobject;
+
+/**
+ * Receives the searchable tags of an object as it is saved, without building a list of
+ * {@link SearchableTagValuePair}s. Values are stored as text either way.
+ */
+public interface TagSink {
+    public void tag(String key, String value);
+
+    public void tag(String key, long value);
+}
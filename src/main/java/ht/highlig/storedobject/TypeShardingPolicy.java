@@ -0,0 +1,26 @@
+package ht.highlig.storedobject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives every type its own shard, named after the type, unless the type was put in a
+ * declared group with {@link #group(String, Database.StoredObject.TYPE...)}.
+ */
+public class TypeShardingPolicy implements ShardingPolicy {
+    private final Map<String, String> mGroups = new HashMap<String, String>();
+
+    /** Store all the given types together in the named shard **/
+    public TypeShardingPolicy group(String shardName, Database.StoredObject.TYPE... types) {
+        for (Database.StoredObject.TYPE type : types) {
+            mGroups.put(type.getTypeName(), shardName);
+        }
+        return this;
+    }
+
+    @Override
+    public String getShard(Database.StoredObject.TYPE type) {
+        String group = mGroups.get(type.getTypeName());
+        return group != null ? group : type.getTypeName();
+    }
+}
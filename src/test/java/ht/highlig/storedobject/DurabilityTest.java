@@ -0,0 +1,173 @@
+package ht.highlig.storedobject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import ht.highlig.storedobject.test.Person;
+import ht.highlig.storedobject.test.TYPE;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * The sqlite settings each {@link Durability} commits with, and which transactions count
+ * as commits.
+ */
+public class DurabilityTest {
+    private File file;
+    private JdbcStorageBackend backend;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("durability", ".db");
+        file.delete();
+        backend = new JdbcStorageBackend(file);
+    }
+
+    @After
+    public void tearDown() {
+        backend.close();
+        FileUtil.deleteSqliteSideFiles(file);
+        file.delete();
+    }
+
+    /** Tells how many commits it was told about, and fails the next write when asked to **/
+    private static class CountingManager extends DatabaseAccessManager {
+        int committed;
+        boolean failNextWrite;
+
+        CountingManager(StorageBackend backend) {
+            super(backend);
+        }
+
+        /** Every write asks for it once its transaction began **/
+        @Override
+        public synchronized BlobStore getBlobStore() {
+            if (failNextWrite) {
+                failNextWrite = false;
+                throw new StorageException("Failing the write", null);
+            }
+            return super.getBlobStore();
+        }
+
+        @Override
+        public void onCommitted(Durability durability) {
+            committed++;
+            super.onCommitted(durability);
+        }
+    }
+
+    private static class CountingMetrics extends HistogramDatabaseMetrics {
+        int commits;
+
+        @Override
+        public void onCommit(Durability durability, long durationNanos) {
+            commits++;
+            super.onCommit(durability, durationNanos);
+        }
+    }
+
+    private static String pragma(StorageConnection db, String pragma) {
+        StorageCursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testEachModeSetsSynchronousInWal() {
+        DatabaseAccessManager manager = new DatabaseAccessManager(backend);
+        StorageConnection db = manager.getWritableDatabase();
+        try {
+            String synchronous = pragma(db, "synchronous");
+            String autoCheckpoint = pragma(db, "wal_autocheckpoint");
+            assertEquals("wal", pragma(db, "journal_mode"));
+
+            for (Durability durability : Durability.values()) {
+                manager.beginTransaction(db, durability);
+                try {
+                    assertEquals(String.valueOf(durability.synchronous), pragma(db, "synchronous"));
+                    assertEquals(durability == Durability.RELAXED ? "0" : autoCheckpoint,
+                            pragma(db, "wal_autocheckpoint"));
+                    assertEquals("wal", pragma(db, "journal_mode"));
+                } finally {
+                    manager.endTransaction(db);
+                }
+            }
+            manager.beginTransaction(db, null);
+            try {
+                assertEquals(synchronous, pragma(db, "synchronous"));
+                assertEquals(autoCheckpoint, pragma(db, "wal_autocheckpoint"));
+            } finally {
+                manager.endTransaction(db);
+            }
+
+            manager.beginTransaction(db, Durability.RELAXED);
+            manager.endTransaction(db);
+            manager.restoreSyncSettings(db);
+            assertEquals(synchronous, pragma(db, "synchronous"));
+            assertEquals(autoCheckpoint, pragma(db, "wal_autocheckpoint"));
+        } finally {
+            manager.releaseDb(db);
+        }
+    }
+
+    @Test
+    public void testRelaxedIsNormalWithoutWal() {
+        DatabaseAccessManager manager = new DatabaseAccessManager(backend);
+        StorageConnection db = manager.getWritableDatabase();
+        try {
+            assertEquals("delete", pragma(db, "journal_mode = DELETE"));
+            String autoCheckpoint = pragma(db, "wal_autocheckpoint");
+
+            manager.beginTransaction(db, Durability.RELAXED);
+            try {
+                assertEquals(String.valueOf(Durability.NORMAL.synchronous), pragma(db, "synchronous"));
+                assertEquals(autoCheckpoint, pragma(db, "wal_autocheckpoint"));
+                assertEquals("delete", pragma(db, "journal_mode"));
+            } finally {
+                manager.endTransaction(db);
+            }
+        } finally {
+            manager.releaseDb(db);
+        }
+    }
+
+    @Test
+    public void testOnlyCommitsAreReported() {
+        List<Person> people = Arrays.asList(
+                new Person("frank", "an id", "http://aurl", 5, true),
+                new Person("james", "some id", "http://someurl", 7, true));
+        CountingManager manager = new CountingManager(backend);
+        CountingMetrics metrics = new CountingMetrics();
+        Database db = new Database(manager);
+        db.setMetrics(metrics);
+
+        db.saveObjects(people, Durability.RELAXED).toBlocking().single();
+        assertEquals(1, manager.committed);
+        assertEquals(1, metrics.commits);
+
+        // Writes log their failures instead of emitting them
+        manager.failNextWrite = true;
+        db.saveObjects(people, Durability.RELAXED).toBlocking().single();
+        manager.failNextWrite = true;
+        db.deleteObject(people.get(0)).toBlocking().single();
+        manager.failNextWrite = true;
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        assertEquals(1, manager.committed);
+        assertEquals(1, metrics.commits);
+
+        db.deleteObject(people.get(0)).toBlocking().single();
+        assertEquals(2, manager.committed);
+        assertEquals(2, metrics.commits);
+        assertEquals(Arrays.asList(people.get(1)),
+                db.load(TYPE.person).<Person>execute().toBlocking().single());
+    }
+}
@@ -5,22 +5,63 @@ package ht.highlig.storedobject.test;
 import android.app.Activity;
 import android.content.Context;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
 
+import ht.highlig.storedobject.AndroidStorageBackend;
+import ht.highlig.storedobject.Change;
 import ht.highlig.storedobject.Database;
+import ht.highlig.storedobject.DatabaseException;
+import ht.highlig.storedobject.HistogramDatabaseMetrics;
+import ht.highlig.storedobject.LockStats;
+import ht.highlig.storedobject.MaintenanceReport;
+import ht.highlig.storedobject.SearchableTagValuePair;
+import ht.highlig.storedobject.SlowQueryLog;
+import ht.highlig.storedobject.SqliteType;
+import ht.highlig.storedobject.StorageBackend;
+import ht.highlig.storedobject.StorageCursor;
+import ht.highlig.storedobject.TypeShardingPolicy;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Created by revant on 6/24/14.
@@ -206,4 +247,1271 @@ public class DatabaseTest {
                         permutation3.equals(results)
         );
     }
+
+    /** Saved with a fixed timestamp, so the cap keeps a known set **/
+    private static class DatedPerson extends Person {
+        private final long ts;
+
+        DatedPerson(int index, long ts) {
+            this(index, "name " + index, ts);
+        }
+
+        DatedPerson(int index, String name, long ts) {
+            super(name, "id " + index, "http://url" + index, index, false);
+            this.ts = ts;
+        }
+
+        @Override
+        public Long getStoredObjectTimestampMillis() {
+            return ts;
+        }
+    }
+
+    /** Ids of the objects of the type having rows in the tags table **/
+    private Set<String> taggedIds(StorageBackend backend, TYPE type) {
+        Set<String> ids = new HashSet<String>();
+        StorageCursor cursor = backend.open(false).rawQuery(
+                "SELECT DISTINCT id FROM tags WHERE type = ?", new String[]{type.getTypeName()});
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPrewarmCachesNewestAndKeepsDatabaseOpen() {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 20; i++) {
+            people.add(new DatedPerson(i, i + 1));
+        }
+        Database.create(new AndroidStorageBackend(context, "prewarm.db")).saveObjects(people)
+                .toBlocking().single();
+        HistogramDatabaseMetrics metrics = new HistogramDatabaseMetrics();
+        Database db = Database.create(new AndroidStorageBackend(context, "prewarm.db"));
+        db.setMetrics(metrics);
+        db.setObjectCacheSize(100);
+
+        db.prewarm(5, TYPE.person).toBlocking().single();
+        assertEquals(5, db.getObjectCache().size());
+        long hits = db.getObjectCache().getHitCount();
+        long misses = db.getObjectCache().getMissCount();
+        db.load(TYPE.person).addIds(idsOf(people.subList(15, 20))).<Person>execute()
+                .toBlocking().single();
+        assertEquals(hits + 5, db.getObjectCache().getHitCount());
+        assertEquals(misses, db.getObjectCache().getMissCount());
+
+        // Operations after the prewarm share the connection it left open
+        long opens = metrics.getConnectionOpens();
+        long closes = metrics.getConnectionCloses();
+        assertEquals(opens - 1, closes);
+        db.load(TYPE.person).<Person>execute().toBlocking().single();
+        db.saveObject(makePeople().get(0)).toBlocking().single();
+        db.deleteObject(makePeople().get(0)).toBlocking().single();
+        assertEquals(opens, metrics.getConnectionOpens());
+        assertEquals(closes, metrics.getConnectionCloses());
+
+        HistogramDatabaseMetrics unpinnedMetrics = new HistogramDatabaseMetrics();
+        Database unpinned = Database.create(new AndroidStorageBackend(context, "prewarm.db"));
+        unpinned.setMetrics(unpinnedMetrics);
+        unpinned.load(TYPE.person).<Person>execute().toBlocking().single();
+        opens = unpinnedMetrics.getConnectionOpens();
+        unpinned.load(TYPE.person).<Person>execute().toBlocking().single();
+        unpinned.saveObject(makePeople().get(0)).toBlocking().single();
+        assertEquals(opens + 2, unpinnedMetrics.getConnectionOpens());
+        assertEquals(unpinnedMetrics.getConnectionOpens(), unpinnedMetrics.getConnectionCloses());
+    }
+
+    @Test
+    public void testMaxObjectsKeepsNewest() {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 6; i++) {
+            people.add(new DatedPerson(i, 1000 + i));
+        }
+        StorageBackend backend = new AndroidStorageBackend(context, "max_objects.db");
+        Database db = Database.create(backend);
+        db.setObjectCacheSize(100);
+        db.saveObjects(people.subList(0, 5)).toBlocking().single();
+        db.load(TYPE.person).addIds(idsOf(people.subList(0, 5))).<Person>execute()
+                .toBlocking().single();
+        assertEquals(5, db.getObjectCache().size());
+
+        db.setMaxObjects(TYPE.person, 3);
+        db.saveObject(people.get(5)).toBlocking().single();
+
+        List<Person> newest = people.subList(3, 6);
+        assertEquals(toSet(newest), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+        assertEquals(toSet(idsOf(newest)), taggedIds(backend, TYPE.person));
+        // Only the kept objects loaded before the save are still cached
+        assertEquals(2, db.getObjectCache().size());
+        assertEquals(toSet(newest), toSet(db.load(TYPE.person).addIds(idsOf(people))
+                .<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testBatchLoadSplitsStatementsAndKeepsOrder() {
+        int groups = 120;
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 1200; i++) {
+            // Timestamps out of id order, so each group's order comes from sorting
+            people.add(new DatedPerson(i, "group " + (i % groups), 1000 + (i * 7919) % 1200));
+        }
+        List<Dog> dogs = new ArrayList<Dog>();
+        List<String> dogIds = new ArrayList<String>();
+        for (int i = 0; i < 900; i++) {
+            dogs.add(new Dog("dog " + i, "dog id " + i, i % 15, i % 2 == 0));
+            dogIds.add("dog id " + i);
+        }
+        dogIds.add("no such dog");
+        Database db = Database.create(new AndroidStorageBackend(context, "batch_load.db"));
+        db.saveObjects(people).toBlocking().single();
+        db.saveObjects(dogs).toBlocking().single();
+
+        Database.BatchLoad batch = db.loadBatch().add(TYPE.person, idsOf(people)).add(TYPE.dog, dogIds);
+        List<Database.Request> requests = new ArrayList<Database.Request>();
+        for (int g = 0; g < groups; g++) {
+            Database.Request request = db.load(TYPE.person).tagEquals("name", "group " + g)
+                    .orderByTs(g % 2 == 0 ? Database.SORT_ORDER.DESC : Database.SORT_ORDER.ASC);
+            requests.add(request);
+            batch.add(request);
+        }
+        db.setSlowQueryThresholdMillis(0);
+        db.getSlowQueryLog().clear();
+        Database.BatchLoad.Result result;
+        try {
+            result = batch.execute().toBlocking().single();
+        } finally {
+            db.setSlowQueryThresholdMillis(-1);
+        }
+
+        List<SlowQueryLog.Entry> statements = db.getSlowQueryLog().getEntries();
+        assertTrue(statements.size() > 2);
+        for (SlowQueryLog.Entry statement : statements) {
+            assertTrue(statement.argCount <= 800);
+            assertTrue(statement.sql.split(" UNION ALL ").length <= 100);
+        }
+        for (Person person : people) {
+            assertEquals(person, result.<Person>get(TYPE.person, person.id));
+        }
+        for (Dog dog : dogs) {
+            assertEquals(dog, result.<Dog>get(TYPE.dog, dog.id));
+        }
+        assertEquals(null, result.<Dog>get(TYPE.dog, "no such dog"));
+        for (int g = 0; g < groups; g++) {
+            final boolean descending = g % 2 == 0;
+            List<Person> expected = new ArrayList<Person>();
+            for (int i = g; i < people.size(); i += groups) {
+                expected.add(people.get(i));
+            }
+            Collections.sort(expected, new Comparator<Person>() {
+                @Override
+                public int compare(Person lhs, Person rhs) {
+                    int byTs = lhs.getStoredObjectTimestampMillis()
+                            .compareTo(rhs.getStoredObjectTimestampMillis());
+                    return descending ? -byTs : byTs;
+                }
+            });
+            assertEquals(expected, result.<Person>get(requests.get(g)));
+        }
+    }
+
+    @Test
+    public void testSlowQueryLogKeepsPlansOfQueriesOverThreshold() {
+        Database db = Database.create(new AndroidStorageBackend(context, "slow_queries.db"));
+        db.saveObjects(makeManyPeople(100)).toBlocking().single();
+        SlowQueryLog log = db.getSlowQueryLog();
+
+        assertFalse(log.isEnabled());
+        loadOlderThan(db, 50);
+        db.setSlowQueryThresholdMillis(60000);
+        assertTrue(log.isEnabled());
+        loadOlderThan(db, 50);
+        assertEquals(0, log.getEntries().size());
+
+        List<Person> older;
+        db.setSlowQueryThresholdMillis(0);
+        try {
+            older = loadOlderThan(db, 50);
+            List<SlowQueryLog.Entry> entries = log.getEntries();
+            assertEquals(2, entries.size());
+            SlowQueryLog.Entry tagQuery = entries.get(0);
+            assertTrue(tagQuery.sql.contains("CAST(value AS INTEGER) > ?"));
+            assertEquals(1, tagQuery.argCount);
+            assertEquals(older.size(), tagQuery.rowCount);
+            // The cast values aren't searched through an index, every age tag is read
+            assertTrue(tagQuery.queryPlan.contains("tags"));
+            assertFalse(tagQuery.queryPlan.contains("value"));
+            assertEquals(older.size(), entries.get(1).rowCount);
+
+            for (int limit = 1; limit <= 60; limit++) {
+                db.load(TYPE.person).limit(limit).<Person>execute().toBlocking().single();
+            }
+        } finally {
+            db.setSlowQueryThresholdMillis(-1);
+        }
+        List<SlowQueryLog.Entry> entries = log.getEntries();
+        assertEquals(SlowQueryLog.DEFAULT_CAPACITY, entries.size());
+        assertTrue(entries.get(0).sql.endsWith("LIMIT 11"));
+        assertTrue(entries.get(49).sql.endsWith("LIMIT 60"));
+        assertEquals(39, older.size());
+
+        JsonArray exported = new JsonParser().parse(log.export()).getAsJsonArray();
+        assertEquals(entries.size(), exported.size());
+        JsonObject first = exported.get(0).getAsJsonObject();
+        assertEquals(entries.get(0).sql, first.get("sql").getAsString());
+        assertEquals(entries.get(0).queryPlan, first.get("queryPlan").getAsString());
+        assertEquals(11, first.get("rowCount").getAsInt());
+        log.clear();
+        assertEquals(0, log.getEntries().size());
+    }
+
+    /** Makes the first decode take a while, so it shows in the slow query log **/
+    private static class SlowFirstDecode extends HistogramDatabaseMetrics {
+        private final AtomicBoolean armed = new AtomicBoolean(true);
+
+        @Override
+        public void onBytesDeserialized(long bytes) {
+            super.onBytesDeserialized(bytes);
+            if (!armed.compareAndSet(true, false)) return;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testLoadByManyIdsKeepsOrderAndTimesDecode() {
+        List<Person> people = new ArrayList<Person>();
+        List<String> byTs = new ArrayList<String>(Collections.<String>nCopies(1000, null));
+        for (int i = 0; i < 1000; i++) {
+            // Timestamps in a different order than the ids
+            int ts = (i * 7919) % 1000;
+            people.add(new DatedPerson(i, ts + 1));
+            byTs.set(999 - ts, "id " + i);
+        }
+        byTs.removeAll(idsOf(people.subList(0, 100)));
+        List<String> ids = idsOf(people.subList(100, 1000));
+        ids.add("missing id");
+        ids.add("id 500");
+        Database db = Database.create(new AndroidStorageBackend(context, "load_many_ids.db"));
+        db.saveObjects(people).toBlocking().single();
+
+        List<Person> newest = db.load(TYPE.person).addIds(ids).orderByTs(Database.SORT_ORDER.DESC)
+                .<Person>execute().toBlocking().single();
+        List<Person> unordered = db.load(TYPE.person).addIds(ids).<Person>execute().toBlocking().single();
+        assertEquals(byTs, idsOf(newest));
+        assertEquals(toSet(byTs), toSet(idsOf(unordered)));
+        assertEquals(900, unordered.size());
+        assertEquals(Collections.<Person>emptyList(), db.load(TYPE.person).tagEquals("name", "nobody")
+                .<Person>execute().toBlocking().single());
+
+        // Rows of every statement are decoded together after the last one, inline
+        db.setParallelDecoding(Integer.MAX_VALUE, 0);
+        db.setMetrics(new SlowFirstDecode());
+        db.setSlowQueryThresholdMillis(0);
+        db.getSlowQueryLog().clear();
+        try {
+            db.load(TYPE.person).addIds(ids).<Person>execute().toBlocking().single();
+        } finally {
+            db.setSlowQueryThresholdMillis(-1);
+            db.setMetrics(null);
+            db.setParallelDecoding(0, 0);
+        }
+        List<SlowQueryLog.Entry> statements = db.getSlowQueryLog().getEntries();
+        assertEquals(3, statements.size());
+        assertTrue(statements.get(2).decodeMillis >= 50);
+    }
+
+    @Test
+    public void testDeleteMetricCountsDeletedRows() {
+        List<Person> people = makePeople();
+        HistogramDatabaseMetrics metrics = new HistogramDatabaseMetrics();
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObject(people.get(0)).toBlocking().single();
+        db.setMetrics(metrics);
+        try {
+            db.deleteObjects(people.subList(0, 2)).toBlocking().single();
+
+            assertEquals(1, metrics.getRowsWritten());
+        } finally {
+            db.setMetrics(null);
+        }
+    }
+
+    @Test
+    public void testShardedTypesLoadIndependently() {
+        List<Person> people = makePeople();
+        List<Dog> dogs = makeDogs();
+
+        Database db = Database.with(context);
+        db.setShardingPolicy(new TypeShardingPolicy());
+        try {
+            db.saveObjects(people).toBlocking().single();
+            db.saveObjects(dogs).toBlocking().single();
+            db.clearObjectsOfType(TYPE.person).toBlocking().single();
+
+            List<Dog> dogResults = db.load(TYPE.dog).<Dog>execute().toBlocking().single();
+            List<Person> peopleResults = db.load(TYPE.person).<Person>execute().toBlocking().single();
+
+            assertEquals(toSet(dogs), toSet(dogResults));
+            assertEquals(Collections.<Person>emptyList(), peopleResults);
+        } finally {
+            db.setShardingPolicy(null);
+        }
+    }
+
+    @Test
+    public void testImportObjectsInChunks() throws Exception {
+        List<Person> people = makePeople();
+        String json = Database.GSON.toJson(people);
+
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        List<Integer> progress = db.importObjects(
+                new ByteArrayInputStream(json.getBytes("UTF-8")), TYPE.person, 4)
+                .toList().toBlocking().single();
+        List<Person> results = db.load(TYPE.person).<Person>execute().toBlocking().single();
+
+        assertEquals(Arrays.asList(4, 6), progress);
+        assertEquals(toSet(people), toSet(results));
+    }
+
+    @Test
+    public void testTransactionAppliesAllSteps() {
+        List<Person> people = makePeople();
+        List<Dog> dogs = makeDogs();
+
+        Database db = Database.with(context);
+        db.saveObjects(dogs).toBlocking().single();
+        db.transaction()
+                .clear(TYPE.person)
+                .save(people)
+                .delete(people.get(0))
+                .delete(TYPE.dog, dogs.get(0).getStoredObjectId())
+                .execute().toBlocking().single();
+
+        List<Person> peopleResults = db.load(TYPE.person).<Person>execute().toBlocking().single();
+        List<Dog> dogResults = db.load(TYPE.dog).<Dog>execute().toBlocking().single();
+
+        assertEquals(toSet(people.subList(1, people.size())), toSet(peopleResults));
+        assertEquals(toSet(dogs.subList(1, dogs.size())), toSet(dogResults));
+    }
+
+    @Test
+    public void testUpdateRewritesObjectAndTags() {
+        Person p = makePeople().get(3);
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObject(p).toBlocking().single();
+
+        Person updated = db.update(TYPE.person, p.getStoredObjectId(), new Func1<Person, Person>() {
+            @Override
+            public Person call(Person person) {
+                return new Person("henry", person.id, person.image_url, person.age, person.is_real);
+            }
+        }).toBlocking().single();
+        List<Person> results = db.load(TYPE.person).tagEquals("name", "henry")
+                .<Person>execute().toBlocking().single();
+
+        assertEquals(Collections.singletonList(updated), results);
+        assertEquals(Collections.<Person>emptyList(), db.load(TYPE.person).tagEquals("name", "harold")
+                .<Person>execute().toBlocking().single());
+    }
+
+    @Test
+    public void testResultCacheDropsResultsOnWrite() {
+        List<Person> people = makePeople();
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObjects(people.subList(0, 2)).toBlocking().single();
+        db.setResultCacheSize(10, 1024 * 1024);
+        try {
+            List<Person> first = db.load(TYPE.person).tagEquals("name", "frank")
+                    .<Person>execute().toBlocking().single();
+            List<Person> cached = db.load(TYPE.person).tagEquals("name", "frank")
+                    .<Person>execute().toBlocking().single();
+            db.saveObject(people.get(2)).toBlocking().single();
+            List<Person> afterWrite = db.load(TYPE.person).tagEquals("name", "frank")
+                    .<Person>execute().toBlocking().single();
+
+            assertEquals(toSet(first), toSet(cached));
+            assertEquals(toSet(people.subList(0, 3)), toSet(afterWrite));
+        } finally {
+            db.setResultCacheSize(0, 0);
+        }
+    }
+
+    @Test
+    public void testAggregatesMatchingObjects() {
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObjects(makePeople()).toBlocking().single();
+
+        Double franks = db.load(TYPE.person).tagEquals("name", "frank").count().execute()
+                .toBlocking().single();
+        Double maxAge = db.load(TYPE.person).aggregate(Database.AGGREGATE.MAX, "age", SqliteType.INTEGER)
+                .execute().toBlocking().single();
+        Map<String, Double> sumByName = db.load(TYPE.person)
+                .aggregate(Database.AGGREGATE.SUM, "age", SqliteType.INTEGER)
+                .groupByTag("name").executeGrouped().toBlocking().single();
+
+        assertEquals(3d, franks, 0);
+        assertEquals(19d, maxAge, 0);
+        assertEquals(13d, sumByName.get("frank"), 0);
+        assertEquals(4, sumByName.size());
+    }
+
+    @Test
+    public void testAggregateOverTooManyIdsEmitsError() {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 401; i++) {
+            ids.add("id " + i);
+        }
+        Database db = Database.with(context);
+        try {
+            db.load(TYPE.person).addIds(ids).count().execute().toBlocking().single();
+            fail("Aggregated over more ids than fit in a statement");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof DatabaseException);
+        }
+    }
+
+    @Test
+    public void testDeleteRemovesMatchingObjects() {
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObjects(makePeople()).toBlocking().single();
+
+        int deleted = db.load(TYPE.person).tagEquals("name", "frank").delete().toBlocking().single();
+        List<Person> left = db.load(TYPE.person).<Person>execute().toBlocking().single();
+        Double franks = db.load(TYPE.person).tagEquals("name", "frank").count().execute()
+                .toBlocking().single();
+
+        assertEquals(3, deleted);
+        assertEquals(3, left.size());
+        assertEquals(0d, franks, 0);
+    }
+
+    @Test
+    public void testDeleteByManyIds() {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 1000; i++) {
+            people.add(new DatedPerson(i, i + 1));
+        }
+        List<String> ids = idsOf(people.subList(0, 900));
+        ids.addAll(idsOf(people.subList(0, 10)));
+        ids.add("missing id");
+        Database db = Database.with(context);
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObjects(people).toBlocking().single();
+
+        int newest = db.load(TYPE.person).addIds(ids).orderByTs(Database.SORT_ORDER.DESC).limit(10)
+                .delete().toBlocking().single();
+        assertEquals(10, newest);
+        assertEquals(toSet(idsOf(people.subList(0, 890))), toSet(idsOf(db.load(TYPE.person)
+                .addIds(ids).<Person>execute().toBlocking().single())));
+
+        int rest = db.load(TYPE.person).addIds(ids).delete().toBlocking().single();
+        assertEquals(890, rest);
+        assertEquals(toSet(idsOf(people.subList(900, 1000))), toSet(idsOf(db.load(TYPE.person)
+                .<Person>execute().toBlocking().single())));
+    }
+
+    @Test
+    public void testChangeLogRecordsWritesInOrder() {
+        List<Person> people = makePeople();
+        Database db = Database.with(context);
+        db.setChangeLogSize(1000);
+        try {
+            db.clearObjectsOfType(TYPE.person).toBlocking().single();
+            List<Change> cleared = db.changesSince(0, 0).toBlocking().single();
+            long seq = cleared.get(cleared.size() - 1).seq;
+
+            db.saveObject(people.get(0)).toBlocking().single();
+            db.deleteObject(people.get(0)).toBlocking().single();
+            List<Change> changes = db.changesSince(seq, 0).toBlocking().single();
+
+            assertEquals(2, changes.size());
+            assertEquals(Change.Op.SAVE, changes.get(0).op);
+            assertEquals(Change.Op.DELETE, changes.get(1).op);
+            assertEquals(people.get(0).getStoredObjectId(), changes.get(1).id);
+            assertTrue(changes.get(0).seq < changes.get(1).seq);
+        } finally {
+            db.setChangeLogSize(-1);
+        }
+    }
+
+    /** Person json under the dog type, so both rows reference the same payload file **/
+    private static class PersonStoredAsDog extends Person {
+        PersonStoredAsDog(Person person) {
+            super(person.name, person.id, person.image_url, person.age, person.is_real);
+        }
+
+        @Override
+        public TYPE getStoredObjectType() {
+            return ht.highlig.storedobject.test.TYPE.dog;
+        }
+    }
+
+    /** Fails its transaction while its tags are written, after its json was stored **/
+    private static class UnsavablePerson extends Person {
+        UnsavablePerson(String id) {
+            super("nobody", id, "http://nourl", 1, false);
+        }
+
+        @Override
+        public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
+            throw new IllegalStateException("no tags");
+        }
+    }
+
+    private int blobFileCount(StorageBackend backend) {
+        String[] files = new File(backend.getDatabaseFile().getPath() + ".blobs").list();
+        return files == null ? 0 : files.length;
+    }
+
+    /** Reference count of every payload file, by the file's hash **/
+    private Map<String, Long> blobRefs(StorageBackend backend) {
+        Map<String, Long> refs = new HashMap<String, Long>();
+        StorageCursor cursor = backend.open(false).rawQuery("SELECT hash, refs FROM blobs", null);
+        try {
+            while (cursor.moveToNext()) {
+                refs.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return refs;
+    }
+
+    @Test
+    public void testLargeObjectsLoadFromFiles() {
+        List<Person> people = makePeople();
+        StorageBackend backend = new AndroidStorageBackend(context, "blobs_load.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObjects(people).toBlocking().single();
+
+        List<Person> results = db.load(TYPE.person).<Person>execute().toBlocking().single();
+
+        assertEquals(toSet(people), toSet(results));
+        assertEquals(people.size(), blobFileCount(backend));
+        assertEquals(people.size(), blobRefs(backend).size());
+    }
+
+    @Test
+    public void testReplacingObjectReleasesItsFile() {
+        Person person = makePeople().get(0);
+        Person renamed = new Person("francis", person.id, person.image_url, person.age, person.is_real);
+        StorageBackend backend = new AndroidStorageBackend(context, "blobs_replace.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObject(person).toBlocking().single();
+        db.saveObject(renamed).toBlocking().single();
+
+        List<Person> results = db.load(TYPE.person).<Person>execute().toBlocking().single();
+
+        assertEquals(Collections.singletonList(renamed), results);
+        assertEquals(1, blobFileCount(backend));
+        assertEquals(Collections.singletonList(1L), new ArrayList<Long>(blobRefs(backend).values()));
+    }
+
+    @Test
+    public void testSharedFileOutlivesOneDelete() {
+        Person person = makePeople().get(0);
+        StorageBackend backend = new AndroidStorageBackend(context, "blobs_shared.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObjects(Arrays.asList(person, new PersonStoredAsDog(person))).toBlocking().single();
+        assertEquals(1, blobFileCount(backend));
+        assertEquals(Collections.singletonList(2L), new ArrayList<Long>(blobRefs(backend).values()));
+
+        db.deleteObject(person).toBlocking().single();
+
+        assertEquals(1, blobFileCount(backend));
+        assertEquals(Collections.singletonList(1L), new ArrayList<Long>(blobRefs(backend).values()));
+        assertEquals(1, db.load(TYPE.dog).execute().toBlocking().single().size());
+    }
+
+    @Test
+    public void testClearDeletesFiles() {
+        StorageBackend backend = new AndroidStorageBackend(context, "blobs_clear.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObjects(makePeople()).toBlocking().single();
+
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+
+        assertEquals(0, blobFileCount(backend));
+        assertEquals(0, blobRefs(backend).size());
+    }
+
+    @Test
+    public void testRolledBackTransactionKeepsFiles() {
+        List<Person> people = makePeople();
+        StorageBackend backend = new AndroidStorageBackend(context, "blobs_rollback.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObjects(people.subList(0, 2)).toBlocking().single();
+        Map<String, Long> refs = blobRefs(backend);
+
+        try {
+            db.transaction()
+                    .delete(people.get(0))
+                    .save(people.get(2))
+                    .save(new UnsavablePerson("unsavable"))
+                    .execute().toBlocking().single();
+            fail("The transaction should have failed");
+        } catch (RuntimeException e) {
+            // Expected, the transaction rolled back
+        }
+
+        List<Person> results = db.load(TYPE.person).<Person>execute().toBlocking().single();
+        assertEquals(toSet(people.subList(0, 2)), toSet(results));
+        assertEquals(refs, blobRefs(backend));
+        assertEquals(2, blobFileCount(backend));
+    }
+
+    private long pragma(StorageBackend backend, String pragma) {
+        StorageCursor cursor = backend.open(false).rawQuery("PRAGMA " + pragma, null);
+        try {
+            assertTrue(cursor.moveToNext());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testMaintenanceGivesDeletedSpaceBack() {
+        StorageBackend backend = new AndroidStorageBackend(context, "maintenance.db");
+        Database db = Database.create(backend);
+        db.saveObjects(makeManyPeople(2000)).toBlocking().single();
+        // Sqlite doesn't analyze empty tables
+        db.saveObjects(makeDogs()).toBlocking().single();
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        long pages = pragma(backend, "page_count");
+
+        assertEquals(2, pragma(backend, "auto_vacuum"));
+        assertTrue(pragma(backend, "freelist_count") > 0);
+
+        MaintenanceReport report = db.runMaintenance(64, 10000).toBlocking().single();
+
+        assertTrue(report.completed);
+        assertEquals(0, report.convertedFiles);
+        assertTrue(report.freedPages > 0);
+        assertTrue(report.analyzedTables > 0);
+        assertEquals(0, pragma(backend, "freelist_count"));
+        // Plus the pages ANALYZE took for its statistics
+        assertTrue(pragma(backend, "page_count") <= pages - report.freedPages + 2);
+    }
+
+    private List<Person> loadByName(Database db, String name) {
+        return db.load(TYPE.person).tagEquals("name", name).<Person>execute().toBlocking().single();
+    }
+
+    @Test
+    public void testHotTagAnswersQueriesAndWrites() {
+        List<Person> people = makePeople();
+        Person newFrank = new Person("frank", "new id", "http://newurl", 30, true);
+        Person renamed = new Person("henry", people.get(0).id, people.get(0).image_url, 4, false);
+        Database db = Database.create(new AndroidStorageBackend(context, "hot_tags.db"));
+        db.saveObjects(people).toBlocking().single();
+        db.indexTag(TYPE.person, "name", SqliteType.TEXT).toBlocking().single();
+
+        assertEquals(toSet(people.subList(0, 3)), toSet(loadByName(db, "frank")));
+
+        db.saveObjects(Arrays.asList(newFrank, renamed)).toBlocking().single();
+        assertEquals(toSet(Arrays.asList(people.get(1), people.get(2), newFrank)),
+                toSet(loadByName(db, "frank")));
+        assertEquals(Collections.singletonList(renamed), loadByName(db, "henry"));
+
+        db.deleteObject(newFrank).toBlocking().single();
+        assertEquals(toSet(people.subList(1, 3)), toSet(loadByName(db, "frank")));
+
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        assertEquals(Collections.<Person>emptyList(), loadByName(db, "frank"));
+        db.saveObjects(people).toBlocking().single();
+        assertEquals(toSet(people.subList(0, 3)), toSet(loadByName(db, "frank")));
+    }
+
+    @Test
+    public void testHotTagsSurviveReopen() {
+        List<Person> people = makePeople();
+        Person newFrank = new Person("frank", "new id", "http://newurl", 30, true);
+        Database db = Database.create(new AndroidStorageBackend(context, "hot_tags_reopen.db"));
+        db.saveObjects(people).toBlocking().single();
+        db.indexTag(TYPE.person, "name", SqliteType.TEXT).toBlocking().single();
+
+        Database reopened = Database.create(new AndroidStorageBackend(context, "hot_tags_reopen.db"));
+
+        assertEquals(toSet(people.subList(0, 3)), toSet(loadByName(reopened, "frank")));
+        reopened.saveObject(newFrank).toBlocking().single();
+        reopened.deleteObject(people.get(0)).toBlocking().single();
+        assertEquals(toSet(Arrays.asList(people.get(1), people.get(2), newFrank)),
+                toSet(loadByName(reopened, "frank")));
+        assertEquals(3d, reopened.load(TYPE.person).tagEquals("name", "frank").count().execute()
+                .toBlocking().single(), 0);
+    }
+
+    private File snapshotFile(StorageBackend backend) {
+        return new File(backend.getDatabaseFile().getPath() + ".snapshot");
+    }
+
+    @Test
+    public void testRestoreGoesBackToSnapshot() {
+        List<Person> people = makePeople();
+        Person renamed = new Person("henry", people.get(1).id, people.get(1).image_url, 5, true);
+        StorageBackend backend = new AndroidStorageBackend(context, "snapshot.db");
+        Database db = Database.create(backend);
+        db.setObjectCacheSize(100);
+        db.setResultCacheSize(10, 1024 * 1024);
+        db.saveObjects(people).toBlocking().single();
+        File snapshot = db.snapshot(snapshotFile(backend)).toBlocking().single();
+
+        db.deleteObject(people.get(0)).toBlocking().single();
+        db.saveObject(renamed).toBlocking().single();
+        db.saveObjects(makeDogs()).toBlocking().single();
+        db.load(TYPE.person).<Person>execute().toBlocking().single();
+        db.load(TYPE.dog).<Dog>execute().toBlocking().single();
+        db.restore(snapshot).toBlocking().single();
+
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+        assertEquals(Collections.<Dog>emptyList(), db.load(TYPE.dog).<Dog>execute().toBlocking().single());
+        assertEquals(toSet(people.subList(0, 3)), toSet(loadByName(db, "frank")));
+        assertEquals(toSet(people), toSet(Database.create(backend).load(TYPE.person).<Person>execute()
+                .toBlocking().single()));
+    }
+
+    @Test
+    public void testRestoreAddsSnapshotPayloadFiles() {
+        List<Person> people = makePeople();
+        StorageBackend sourceBackend = new AndroidStorageBackend(context, "snapshot_blobs_source.db");
+        Database source = Database.create(sourceBackend);
+        source.setExternalStorageThreshold(10);
+        source.saveObjects(people).toBlocking().single();
+        File snapshot = source.snapshot(snapshotFile(sourceBackend)).toBlocking().single();
+        assertEquals(blobFileCount(sourceBackend),
+                new File(snapshot.getPath() + ".blobs").list().length);
+
+        StorageBackend backend = new AndroidStorageBackend(context, "snapshot_blobs.db");
+        Database db = Database.create(backend);
+        db.setExternalStorageThreshold(10);
+        db.saveObjects(makeDogs()).toBlocking().single();
+        int dogFiles = blobFileCount(backend);
+        assertTrue(dogFiles > 0);
+        db.restore(snapshot).toBlocking().single();
+
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+        assertEquals(blobFileCount(sourceBackend) + dogFiles, blobFileCount(backend));
+        assertEquals(dogFiles, (int) db.sweepExternalFiles().toBlocking().single());
+        assertEquals(blobRefs(sourceBackend), blobRefs(backend));
+    }
+
+    @Test
+    public void testRestoreRejectsFileThatIsNotSqlite() throws Exception {
+        List<Person> people = makePeople();
+        StorageBackend backend = new AndroidStorageBackend(context, "snapshot_invalid.db");
+        Database db = Database.create(backend);
+        db.saveObjects(people).toBlocking().single();
+        File notSqlite = snapshotFile(backend);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(notSqlite), "UTF-8");
+        try {
+            writer.write("not a database, just some text that is long enough to have a header");
+        } finally {
+            writer.close();
+        }
+
+        try {
+            db.restore(notSqlite).toBlocking().single();
+            fail("Restored a file that isn't a database");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testExportedObjectsImportBack() throws Exception {
+        List<Person> people = makePeople();
+        StorageBackend backend = new AndroidStorageBackend(context, "export.db");
+        Database db = Database.create(backend);
+        // People are stored in payload files, dogs inline
+        db.setExternalStorageThreshold(70);
+        db.saveObjects(people).toBlocking().single();
+        db.saveObjects(makeDogs()).toBlocking().single();
+        assertEquals(people.size(), blobFileCount(backend));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int exported = db.exportObjects(TYPE.person, out).toBlocking().single();
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        List<Integer> imported = db.importObjects(new ByteArrayInputStream(out.toByteArray()),
+                TYPE.person).toList().toBlocking().single();
+
+        assertEquals(people.size(), exported);
+        assertEquals(Collections.singletonList(people.size()), imported);
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+        assertEquals(makeDogs(), db.load(TYPE.dog).<Dog>execute().toBlocking().single());
+    }
+
+    private List<Person> loadOlderThan(Database db, int age) {
+        return db.load(TYPE.person).tagGt("age", String.valueOf(age), SqliteType.INTEGER)
+                .<Person>execute().toBlocking().single();
+    }
+
+    @Test
+    public void testRestoreRegistersSnapshotHotTags() {
+        List<Person> people = makeManyPeople(20);
+        Person older = new Person("name 1", "new id", "http://newurl", 30, true);
+        StorageBackend sourceBackend = new AndroidStorageBackend(context, "hot_tags_source.db");
+        Database source = Database.create(sourceBackend);
+        source.clearObjectsOfType(TYPE.person).toBlocking().single();
+        source.saveObjects(people).toBlocking().single();
+        source.indexTag(TYPE.person, "name", SqliteType.TEXT).toBlocking().single();
+        source.indexTag(TYPE.person, "age", SqliteType.INTEGER).toBlocking().single();
+        File snapshot = source.snapshot(snapshotFile(sourceBackend)).toBlocking().single();
+
+        StorageBackend backend = new AndroidStorageBackend(context, "hot_tags_restored.db");
+        Database db = Database.create(backend);
+        db.indexTag(TYPE.person, "name", SqliteType.TEXT).toBlocking().single();
+        db.restore(snapshot).toBlocking().single();
+
+        assertEquals(toSet(people.subList(11, 20)), toSet(loadOlderThan(db, 10)));
+        db.saveObject(older).toBlocking().single();
+        List<Person> expected = new ArrayList<Person>(people.subList(11, 20));
+        expected.add(older);
+        assertEquals(toSet(expected), toSet(loadOlderThan(db, 10)));
+        assertEquals(toSet(expected), toSet(loadOlderThan(Database.create(backend), 10)));
+    }
+
+    /** Tagged with every nickname given **/
+    private static class NicknamedPerson extends Person {
+        private final List<String> nicknames;
+
+        NicknamedPerson(int index, String... nicknames) {
+            super("name " + index, "id " + index, "http://url" + index, index, false);
+            this.nicknames = Arrays.asList(nicknames);
+        }
+
+        @Override
+        public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
+            List<SearchableTagValuePair> tags = super.getStoredObjectSearchableTags();
+            for (String nickname : nicknames) {
+                tags.add(new SearchableTagValuePair("nickname", nickname));
+            }
+            return tags;
+        }
+    }
+
+    private List<Person> loadByNickname(Database db, String nickname) {
+        return db.load(TYPE.person).tagEquals("nickname", nickname).<Person>execute()
+                .toBlocking().single();
+    }
+
+    @Test
+    public void testTagWithSeveralValuesCantBeHot() {
+        Person frank = new NicknamedPerson(1, "frankie", "el franco");
+        Database db = Database.create(new AndroidStorageBackend(context, "multi_valued.db"));
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        db.saveObject(frank).toBlocking().single();
+
+        try {
+            db.indexTag(TYPE.person, "nickname", SqliteType.TEXT).toBlocking().single();
+            fail("Promoted a tag with several values");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof DatabaseException);
+        }
+        assertEquals(Collections.singletonList(frank), loadByNickname(db, "frankie"));
+        assertEquals(Collections.singletonList(frank), loadByNickname(db, "el franco"));
+
+        Person james = new NicknamedPerson(2, "jim");
+        db.saveObject(james).toBlocking().single();
+        db.deleteObject(frank).toBlocking().single();
+        db.indexTag(TYPE.person, "nickname", SqliteType.TEXT).toBlocking().single();
+        // A save emitting a hot tag twice fails and keeps what was stored
+        db.saveObject(new NicknamedPerson(2, "jimmy", "jimbo")).toBlocking().single();
+        assertEquals(Collections.singletonList(james), loadByNickname(db, "jim"));
+        assertEquals(Collections.<Person>emptyList(), loadByNickname(db, "jimbo"));
+    }
+
+    private List<Person> makeManyPeople(int count) {
+        List<Person> people = new ArrayList<Person>(count);
+        for (int i = 0; i < count; i++) {
+            people.add(new Person("name " + (i % 5), "id " + i, "http://url" + i, i % 90, i % 2 == 0));
+        }
+        return people;
+    }
+
+    private List<String> idsOf(List<Person> people) {
+        List<String> ids = new ArrayList<String>(people.size());
+        for (Person person : people) {
+            ids.add(person.id);
+        }
+        return ids;
+    }
+
+    /** A database of its own decoding every load on the decode pool, skipped on one core **/
+    private Database parallelDecodingDb(String name) {
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        Database db = Database.create(new AndroidStorageBackend(context, name));
+        db.setParallelDecoding(1, 0);
+        return db;
+    }
+
+    /**
+     * Holds the first object decoded after it's set as the metrics until released. Pool
+     * decoding runs after the load released its read lock, so writes can go ahead meanwhile.
+     */
+    private static class DecodeGate extends HistogramDatabaseMetrics {
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicBoolean armed = new AtomicBoolean(true);
+
+        @Override
+        public void onBytesDeserialized(long bytes) {
+            super.onBytesDeserialized(bytes);
+            if (!armed.compareAndSet(true, false)) return;
+            held.countDown();
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelDecodingKeepsOrder() {
+        List<Person> people = makeManyPeople(300);
+        Database db = parallelDecodingDb("decode_order.db");
+        try {
+            db.saveObjects(people).toBlocking().single();
+            List<String> ids = idsOf(people);
+            Collections.reverse(ids);
+
+            List<Person> all = db.load(TYPE.person).<Person>execute().toBlocking().single();
+            List<Person> byId = db.load(TYPE.person).addIds(ids).<Person>execute().toBlocking().single();
+            db.setParallelDecoding(0, 0);
+            List<Person> allInline = db.load(TYPE.person).<Person>execute().toBlocking().single();
+            List<Person> byIdInline = db.load(TYPE.person).addIds(ids).<Person>execute()
+                    .toBlocking().single();
+
+            assertEquals(toSet(people), toSet(all));
+            assertEquals(allInline, all);
+            assertEquals(byIdInline, byId);
+        } finally {
+            db.setParallelDecoding(0, 0);
+        }
+    }
+
+    @Test
+    public void testWriteDuringDecodeKeepsStaleObjectsOutOfCache() throws Exception {
+        List<Person> people = makeManyPeople(40);
+        Person first = people.get(0);
+        Person renamed = new Person("renamed", first.id, first.image_url, first.age, first.is_real);
+        Database db = parallelDecodingDb("decode_cache.db");
+        db.setObjectCacheSize(100);
+        db.saveObjects(people).toBlocking().single();
+        DecodeGate gate = new DecodeGate();
+        db.setMetrics(gate);
+        try {
+            Future<List<Person>> load = db.load(TYPE.person).addIds(idsOf(people)).<Person>execute()
+                    .toBlocking().toFuture();
+            assertTrue(gate.held.await(10, TimeUnit.SECONDS));
+            db.saveObject(renamed).toBlocking().single();
+            gate.released.countDown();
+            assertEquals(toSet(people), toSet(load.get(10, TimeUnit.SECONDS)));
+
+            assertEquals(Collections.singletonList(renamed), db.load(TYPE.person).addId(first.id)
+                    .<Person>execute().toBlocking().single());
+        } finally {
+            gate.released.countDown();
+            db.setParallelDecoding(0, 0);
+        }
+    }
+
+    @Test
+    public void testIdenticalConcurrentRequestsShareOneLoad() throws Exception {
+        List<Person> people = makeManyPeople(40);
+        Database db = parallelDecodingDb("dedupe_shared.db");
+        db.setRequestDeduplication(true);
+        db.saveObjects(people).toBlocking().single();
+        DecodeGate gate = new DecodeGate();
+        db.setMetrics(gate);
+        try {
+            Future<List<Person>> leader = db.load(TYPE.person).<Person>execute().toBlocking().toFuture();
+            assertTrue(gate.held.await(10, TimeUnit.SECONDS));
+            Future<List<Person>> follower = db.load(TYPE.person).<Person>execute().toBlocking().toFuture();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (db.getDeduplicatedRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            gate.released.countDown();
+
+            assertEquals(1, db.getDeduplicatedRequestCount());
+            assertEquals(toSet(people), toSet(leader.get(10, TimeUnit.SECONDS)));
+            assertEquals(leader.get(), follower.get(10, TimeUnit.SECONDS));
+        } finally {
+            gate.released.countDown();
+            db.setParallelDecoding(0, 0);
+        }
+    }
+
+    @Test
+    public void testWriteBetweenIdenticalRequestsStartsNewLoad() throws Exception {
+        List<Person> people = makeManyPeople(40);
+        Person added = new Person("added", "added id", "http://addedurl", 1, true);
+        Database db = parallelDecodingDb("dedupe_write.db");
+        db.setRequestDeduplication(true);
+        db.saveObjects(people).toBlocking().single();
+        DecodeGate gate = new DecodeGate();
+        db.setMetrics(gate);
+        try {
+            Future<List<Person>> before = db.load(TYPE.person).<Person>execute().toBlocking().toFuture();
+            assertTrue(gate.held.await(10, TimeUnit.SECONDS));
+            db.saveObject(added).toBlocking().single();
+            // Would wait for the held load if it joined it
+            Future<List<Person>> after = db.load(TYPE.person).<Person>execute().toBlocking().toFuture();
+            List<Person> afterResult = after.get(10, TimeUnit.SECONDS);
+            gate.released.countDown();
+
+            List<Person> withAdded = new ArrayList<Person>(people);
+            withAdded.add(added);
+            assertEquals(0, db.getDeduplicatedRequestCount());
+            assertEquals(toSet(withAdded), toSet(afterResult));
+            assertEquals(toSet(people), toSet(before.get(10, TimeUnit.SECONDS)));
+        } finally {
+            gate.released.countDown();
+            db.setParallelDecoding(0, 0);
+        }
+    }
+
+    /** Holds its save, and with it the write lock of its type, until released **/
+    private static class HeldPerson extends Person {
+        final transient CountDownLatch held = new CountDownLatch(1);
+        final transient CountDownLatch released = new CountDownLatch(1);
+
+        HeldPerson(String id) {
+            super("held", id, "http://heldurl", 1, false);
+        }
+
+        @Override
+        public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
+            held.countDown();
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getStoredObjectSearchableTags();
+        }
+    }
+
+    @Test
+    public void testWriteToOneTypeDoesntBlockReadsOfAnother() throws Exception {
+        List<Person> people = makePeople();
+        HeldPerson held = new HeldPerson("held id");
+        Database db = Database.create(new AndroidStorageBackend(context, "lock_stripes.db"));
+        db.saveObjects(makeDogs()).toBlocking().single();
+        db.saveObjects(people).toBlocking().single();
+        LockStats before = db.getLockStats(TYPE.person);
+        LockStats dogsBefore = db.getLockStats(TYPE.dog);
+
+        TestSubscriber<Database.StoredObject> save = new TestSubscriber<Database.StoredObject>();
+        TestSubscriber<List<Person>> personRead = new TestSubscriber<List<Person>>();
+        db.saveObject(held).subscribe(save);
+        try {
+            assertTrue(held.held.await(10, TimeUnit.SECONDS));
+            assertEquals(makeDogs(), db.load(TYPE.dog).<Dog>execute().toBlocking().single());
+            db.load(TYPE.person).<Person>execute().subscribe(personRead);
+            Thread.sleep(200);
+            assertTrue(personRead.getOnNextEvents().isEmpty());
+        } finally {
+            held.released.countDown();
+        }
+        save.awaitTerminalEvent();
+        personRead.awaitTerminalEvent();
+
+        personRead.assertNoErrors();
+        assertEquals(people.size() + 1, personRead.getOnNextEvents().get(0).size());
+        LockStats after = db.getLockStats(TYPE.person);
+        assertEquals(TYPE.person.getTypeName(), after.typeName);
+        assertEquals(before.writeAcquisitions + 1, after.writeAcquisitions);
+        assertEquals(before.readAcquisitions + 1, after.readAcquisitions);
+        assertEquals(before.contendedAcquisitions + 1, after.contendedAcquisitions);
+        assertTrue(after.totalWaitNanos - before.totalWaitNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(after.maxWaitNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+        LockStats dogsAfter = db.getLockStats(TYPE.dog);
+        assertEquals(dogsBefore.readAcquisitions + 1, dogsAfter.readAcquisitions);
+        assertEquals(dogsBefore.contendedAcquisitions, dogsAfter.contendedAcquisitions);
+    }
+
+    /** Polls until the condition holds, failing after 10s **/
+    private void await(Func0<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private <T> Func0<Boolean> hasEvents(final TestSubscriber<T> subscriber, final int count) {
+        return new Func0<Boolean>() {
+            @Override
+            public Boolean call() {
+                return subscriber.getOnNextEvents().size() >= count;
+            }
+        };
+    }
+
+    private Func0<Boolean> hasObservers(final PublishSubject<?> subject) {
+        return new Func0<Boolean>() {
+            @Override
+            public Boolean call() {
+                return subject.hasObservers();
+            }
+        };
+    }
+
+    @Test
+    public void testSaveAllFlushesOnCountAndBytes() {
+        List<Person> people = makeManyPeople(10);
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_limits.db"));
+
+        List<Integer> byCount = db.saveAll(Observable.from(people), 4, Long.MAX_VALUE, 60000)
+                .toList().toBlocking().single();
+        db.clearObjectsOfType(TYPE.person).toBlocking().single();
+        List<Integer> byBytes = db.saveAll(Observable.from(people), 100, 1, 60000)
+                .toList().toBlocking().single();
+
+        assertEquals(Arrays.asList(4, 4, 2), byCount);
+        assertEquals(Collections.nCopies(10, 1), byBytes);
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testSaveAllFlushesAfterDelay() throws Exception {
+        List<Person> people = makeManyPeople(3);
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_delay.db"));
+        PublishSubject<Person> source = PublishSubject.create();
+        TestSubscriber<Integer> acks = new TestSubscriber<Integer>();
+        db.saveAll(source, 100, Long.MAX_VALUE, 50).subscribe(acks);
+        await(hasObservers(source));
+
+        source.onNext(people.get(0));
+        source.onNext(people.get(1));
+        await(hasEvents(acks, 1));
+        assertEquals(toSet(people.subList(0, 2)),
+                toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+        source.onNext(people.get(2));
+        source.onCompleted();
+        acks.awaitTerminalEvent(10, TimeUnit.SECONDS);
+
+        acks.assertNoErrors();
+        assertEquals(Arrays.asList(2, 1), acks.getOnNextEvents());
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testSaveAllKeepsOrder() {
+        List<Person> people = makeManyPeople(6);
+        Person first = people.get(0);
+        Person renamed = new Person("renamed", first.id, first.image_url, first.age, first.is_real);
+        List<Person> stream = new ArrayList<Person>(people);
+        stream.add(renamed);
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_order.db"));
+
+        List<Integer> acks = db.saveAll(Observable.from(stream), 3, Long.MAX_VALUE, 60000)
+                .toList().toBlocking().single();
+
+        List<Person> expected = new ArrayList<Person>(people.subList(1, 6));
+        expected.add(renamed);
+        assertEquals(Arrays.asList(3, 3, 1), acks);
+        assertEquals(toSet(expected), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testSaveAllStopsAtFailedBatch() {
+        List<Person> people = new ArrayList<Person>(makeManyPeople(8));
+        people.set(4, new UnsavablePerson("unsavable"));
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_error.db"));
+        TestSubscriber<Integer> acks = new TestSubscriber<Integer>();
+
+        db.saveAll(Observable.from(people), 2, Long.MAX_VALUE, 60000).subscribe(acks);
+        acks.awaitTerminalEvent(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList(2, 2), acks.getOnNextEvents());
+        assertEquals(1, acks.getOnErrorEvents().size());
+        assertEquals(toSet(people.subList(0, 4)),
+                toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testSaveAllSavesPendingObjectsOnSourceError() {
+        List<Person> people = makeManyPeople(3);
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_source_error.db"));
+        TestSubscriber<Integer> acks = new TestSubscriber<Integer>();
+
+        db.saveAll(Observable.from(people).concatWith(Observable.<Person>error(new IllegalStateException())),
+                2, Long.MAX_VALUE, 60000).subscribe(acks);
+        acks.awaitTerminalEvent(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList(2, 1), acks.getOnNextEvents());
+        assertTrue(acks.getOnErrorEvents().get(0) instanceof IllegalStateException);
+        assertEquals(toSet(people), toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
+
+    @Test
+    public void testSaveAllRequestsOneBatchAhead() {
+        final List<Person> people = makeManyPeople(10);
+        final List<Long> requests = Collections.synchronizedList(new ArrayList<Long>());
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_backpressure.db"));
+        Observable<Person> source = Observable.range(0, people.size())
+                .map(new Func1<Integer, Person>() {
+                    @Override
+                    public Person call(Integer i) {
+                        return people.get(i);
+                    }
+                })
+                .doOnRequest(new Action1<Long>() {
+                    @Override
+                    public void call(Long n) {
+                        requests.add(n);
+                    }
+                });
+
+        List<Integer> acks = db.saveAll(source, 4, Long.MAX_VALUE, 60000).toList().toBlocking().single();
+
+        assertEquals(Arrays.asList(4, 4, 2), acks);
+        assertEquals(Arrays.asList(4L, 4L, 4L), requests);
+    }
+
+    @Test
+    public void testSaveAllUnsubscribeStopsSaving() throws Exception {
+        List<Person> people = makeManyPeople(4);
+        Database db = Database.create(new AndroidStorageBackend(context, "save_all_unsubscribe.db"));
+        PublishSubject<Person> source = PublishSubject.create();
+        TestSubscriber<Integer> acks = new TestSubscriber<Integer>();
+        db.saveAll(source, 100, Long.MAX_VALUE, 50).subscribe(acks);
+        await(hasObservers(source));
+        source.onNext(people.get(0));
+        source.onNext(people.get(1));
+        await(hasEvents(acks, 1));
+
+        acks.unsubscribe();
+        assertFalse(source.hasObservers());
+        source.onNext(people.get(2));
+        source.onNext(people.get(3));
+        Thread.sleep(200);
+
+        assertEquals(Arrays.asList(2), acks.getOnNextEvents());
+        assertEquals(toSet(people.subList(0, 2)),
+                toSet(db.load(TYPE.person).<Person>execute().toBlocking().single()));
+    }
 }
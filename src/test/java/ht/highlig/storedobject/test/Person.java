@@ -47,6 +47,7 @@ public class Person implements Database.StoredObject {
     public List<SearchableTagValuePair> getStoredObjectSearchableTags() {
         List<SearchableTagValuePair> persons = new ArrayList<SearchableTagValuePair>();
         persons.add(new SearchableTagValuePair("name", name));
+        persons.add(new SearchableTagValuePair("age", String.valueOf(age)));
         return persons;
     }
 
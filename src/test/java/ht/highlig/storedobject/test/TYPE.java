@@ -17,7 +17,7 @@ public enum TYPE implements Database.StoredObject.TYPE {
 
     @Override
     public String getTypeName() {
-        return "person";
+        return name();
     }
 
     @Override